@@ -0,0 +1,391 @@
+package norswap.sigh;
+
+import norswap.autumn.Autumn;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.SighRunner.Backend;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.CompiledScript;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+import norswap.utils.IO;
+import norswap.utils.visitors.Walker;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static norswap.utils.Util.cast;
+
+/**
+ * Crude wall-clock benchmarks for the Sigh backends, meant to be run by hand (like {@link Test})
+ * to compare the performance of an implementation change before and after.
+ *
+ * <p>Each workload is parsed and analyzed once, then executed repeatedly, with each of the {@link
+ * Backend backends}, and as bytecode compiled by {@link BytecodeCompiler}. Standard output is
+ * discarded while measuring. Results are reported in microseconds per execution.
+ *
+ * <p>The number of bytes allocated per iteration of the loop workload is also reported, using the
+ * per-thread allocation counter of HotSpot. It is computed from the difference between two runs
+ * with a different number of iterations, so that the constant costs (linking, compilation, frame
+ * allocation) cancel out.
+ *
+ * <p>The throughput of a single {@link Interpreter} shared by several threads, each executing the
+ * same tree over and over, is reported in executions per second for an increasing number of
+ * threads.
+ */
+public final class Benchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    // fizzbuzz.si is left out: it does not pass semantic analysis (prints an Int).
+    private static final String[] EXAMPLES = {
+        "kitchensink.si", "Car.si", "BoxInFunction.si", "boxArrays.si"
+    };
+
+    /** A loop-heavy script exercising variable accesses and arithmetic. */
+    private static final String LOOP = loop(10000);
+
+    /** A call-heavy script, including nested calls in argument position. */
+    private static final String CALLS =
+        "fun add (a: Int, b: Int): Int { return a + b }\n" +
+        "var i: Int = 0\n" +
+        "var sum: Int = 0\n" +
+        "while i < 2000 {\n" +
+        "    sum = add(sum, add(i, add(1, 2)))\n" +
+        "    i = i + 1\n" +
+        "}\n" +
+        "return sum";
+
+    /** The calls workload, but calling the function through a function value. */
+    private static final String FUNCTION_VALUES =
+        "fun add (a: Int, b: Int): Int { return a + b }\n" +
+        "var i: Int = 0\n" +
+        "var sum: Int = 0\n" +
+        "while i < 2000 {\n" +
+        "    sum = (add)(sum, (add)(i, (add)(1, 2)))\n" +
+        "    i = i + 1\n" +
+        "}\n" +
+        "return sum";
+
+    /** The calls workload, with a nested helper function that captures a variable. */
+    private static final String NESTED_CALLS =
+        "fun total (n: Int): Int {\n" +
+        "    var sum: Int = 0\n" +
+        "    fun add (a: Int, b: Int): Int { return a + b + n - n }\n" +
+        "    var i: Int = 0\n" +
+        "    while i < n {\n" +
+        "        sum = add(sum, add(i, add(1, 2)))\n" +
+        "        i = i + 1\n" +
+        "    }\n" +
+        "    return sum\n" +
+        "}\n" +
+        "return total(2000)";
+
+    /** Recursive calls, each ending with a return statement nested in an if statement. */
+    private static final String FIB =
+        "fun fib (n: Int): Int {\n" +
+        "    if (n < 2) return n\n" +
+        "    else return fib(n - 1) + fib(n - 2)\n" +
+        "}\n" +
+        "return fib(20)";
+
+    /** Structure allocations, field reads and field writes. */
+    private static final String STRUCTS =
+        "struct Point { var x: Int; var y: Int }\n" +
+        "var p: Point = $Point(0, 0)\n" +
+        "var i: Int = 0\n" +
+        "while i < 5000 {\n" +
+        "    var q: Point = $Point(i, p.y)\n" +
+        "    q.y = q.x + p.y\n" +
+        "    p = q\n" +
+        "    i = i + 1\n" +
+        "}\n" +
+        "return p.x + p.y";
+
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args)
+    {
+        for (String file: EXAMPLES) {
+            String path = Paths.get("examples/", file).toAbsolutePath().toString();
+            bench(file, IO.slurp(path), 2000, 10000);
+        }
+        bench("loop", LOOP, 5, 20);
+        bench("calls", CALLS, 5, 20);
+        bench("function values", FUNCTION_VALUES, 5, 20);
+        bench("nested calls", NESTED_CALLS, 5, 20);
+        bench("fib", FIB, 20, 20);
+        bench("structs", STRUCTS, 20, 20);
+
+        invocationLatency();
+        preparedExecution();
+
+        throughput("fib", FIB, 200);
+        throughput("structs", STRUCTS, 200);
+
+        for (Backend backend: Backend.values())
+            loopAllocations(backend);
+
+        arrayFootprint("Int", "1");
+        arrayFootprint("Float", "1.0");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a script looping {@code n} times, exercising variable accesses and arithmetic.
+     */
+    private static String loop (int n) {
+        return "" +
+            "var i: Int = 0\n" +
+            "var sum: Int = 0\n" +
+            "while i < " + n + " {\n" +
+            "    sum = sum + i % 7\n" +
+            "    i = i + 1\n" +
+            "}\n" +
+            "return sum";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Measures the execution of the source with each of the {@link Backend backends}.
+     */
+    private static void bench (String name, String src, int warmup, int iterations)
+    {
+        SighNode tree = analyze(src);
+        Reactor reactor = lastReactor;
+        for (Backend backend: Backend.values())
+            time(backend.name().toLowerCase() + " " + name, warmup, iterations,
+                () -> backend.execute(reactor, tree));
+
+        // The bytecode is compiled and loaded once: only the execution is measured.
+        CompiledScript script;
+        try {
+            script = CompiledScript.load(
+                new BytecodeCompiler(reactor).compile("BenchmarkRun", tree));
+        } catch (UnsupportedOperationException e) {
+            System.out.printf("%-40s %15s%n", "bytecode " + name, "unsupported");
+            return;
+        }
+        time("bytecode " + name, warmup, iterations, script::run);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Measures the overhead of invoking a compiled script, through reflection ({@link
+     * CompilationResult#callRun}) and through the method handle of a {@link CompiledScript}.
+     */
+    private static void invocationLatency ()
+    {
+        int calls = 1000;
+        SighNode tree = analyze("return 1");
+        CompiledScript script = CompiledScript.load(
+            new BytecodeCompiler(lastReactor).compile("BenchmarkRun", tree));
+        Class<?> mainClass = script.mainClass;
+
+        time("reflective callRun x" + calls, 2000, 2000, () -> {
+            for (int i = 0; i < calls; ++i) CompilationResult.callRun(mainClass);
+        });
+        time("CompiledScript.run x" + calls, 2000, 2000, () -> {
+            for (int i = 0; i < calls; ++i) script.run();
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Measures the cost of running a short script through {@link SighRunner#run}, which parses and
+     * analyzes it every time, against executing its {@link PreparedProgram}.
+     */
+    private static void preparedExecution ()
+    {
+        String src = loop(100);
+        SighRunner runner = new SighRunner();
+        PreparedProgram program = runner.prepare(src);
+
+        time("SighRunner.run", 200, 1000, () -> runner.run(src));
+        time("PreparedProgram.execute", 200, 1000, () -> program.execute(Backend.INTERPRETER));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Measures the throughput of a single {@link Interpreter} executing the source concurrently
+     * from 1, 2, 4, ... threads (up to the number of processors), each running {@code executions}
+     * executions.
+     */
+    private static void throughput (String name, String src, int executions)
+    {
+        SighNode tree = analyze(src);
+        Interpreter interpreter = new Interpreter(lastReactor);
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            int count = threads;
+            double nanos = measure(1, 3, () -> {
+                Thread[] workers = new Thread[count];
+                for (int i = 0; i < count; ++i) {
+                    workers[i] = new Thread(() -> {
+                        for (int j = 0; j < executions; ++j) interpreter.interpret(tree);
+                    });
+                    workers[i].start();
+                }
+                for (Thread worker: workers) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            System.out.printf("%-40s %12.0f executions/s%n",
+                "interpreter " + name + " x" + threads + " threads",
+                count * executions / (nanos / 1e9));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the number of bytes allocated per iteration of the loop workload.
+     */
+    private static void loopAllocations (Backend backend)
+    {
+        int small = 10_000, large = 110_000;
+        long smallBytes = allocations(backend, loop(small));
+        long largeBytes = allocations(backend, loop(large));
+        System.out.printf("%-40s %12.2f bytes/iteration%n", backend.name().toLowerCase()
+            + " loop allocations", (largeBytes - smallBytes) / (double) (large - small));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints the number of bytes retained per component by arrays of the given type, whose
+     * components are computed (and so not shared with the constants of the tree).
+     */
+    private static void arrayFootprint (String type, String one)
+    {
+        int size = 10_000, copies = 100;
+        String literal = IntStream.range(0, size).mapToObj(i -> "one * " + (1000 * i))
+            .collect(Collectors.joining(", ", "[", "]"));
+        SighNode tree = analyze("var one: " + type + " = " + one + "\nreturn " + literal);
+        Reactor reactor = lastReactor;
+
+        for (Backend backend: Backend.values()) {
+            backend.execute(reactor, tree); // warmup
+            Object[] arrays = new Object[copies];
+            long before = usedHeap();
+            for (int i = 0; i < copies; ++i)
+                arrays[i] = backend.execute(reactor, tree);
+            long bytes = usedHeap() - before;
+            System.out.printf("%-40s %12.2f bytes/component (%s)%n",
+                backend.name().toLowerCase() + " " + type + "[] footprint",
+                bytes / (double) (size * copies), arrays[0].getClass().getSimpleName());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long usedHeap ()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes allocated by an execution of the given script (after a few
+     * warmup executions).
+     */
+    private static long allocations (Backend backend, String src)
+    {
+        SighNode tree = analyze(src);
+        Reactor reactor = lastReactor;
+        for (int i = 0; i < 5; ++i) backend.execute(reactor, tree);
+
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+        backend.execute(reactor, tree);
+        return bean.getThreadAllocatedBytes(thread) - before;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Reactor lastReactor;
+
+    /**
+     * Parses and analyzes the source, then runs {@link ConstantFolding} and {@link
+     * LoopOptimization}, returning the tree and leaving the reactor in {@link #lastReactor}.
+     */
+    static SighNode analyze (String src)
+    {
+        ParseResult result = Autumn.parse(new SighGrammar().root, src, ParseOptions.get());
+        if (!result.fullMatch)
+            throw new AssertionError(result.toString());
+
+        SighNode tree = cast(result.topValue());
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(tree);
+        reactor.run();
+
+        if (!reactor.errors().isEmpty())
+            throw new AssertionError(reactor.reportErrors(Object::toString));
+
+        ConstantFolding.run(reactor, tree);
+        LoopOptimization.run(reactor, tree);
+        lastReactor = reactor;
+        return tree;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code body} {@code warmup} times, then measures {@code iterations} runs and prints
+     * the average time per run.
+     */
+    static void time (String label, int warmup, int iterations, Runnable body) {
+        double nanos = measure(warmup, iterations, body);
+        System.out.printf("%-40s %12.2f us/op%n", label, nanos / 1000.0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs {@code body} {@code warmup} times, then measures {@code iterations} runs and returns
+     * the average time per run in nanoseconds. Standard output is discarded meanwhile.
+     */
+    private static double measure (int warmup, int iterations, Runnable body)
+    {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override public void write (int b) {}
+            @Override public void write (byte[] b, int off, int len) {}
+        }));
+
+        long elapsed;
+        try {
+            for (int i = 0; i < warmup; ++i) body.run();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) body.run();
+            elapsed = System.nanoTime() - start;
+        } finally {
+            System.setOut(out);
+        }
+        return elapsed / (double) iterations;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
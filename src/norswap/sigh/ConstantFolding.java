@@ -0,0 +1,311 @@
+package norswap.sigh;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+
+/**
+ * An optimization pass, to be run after {@link SemanticAnalysis} has completed successfully and
+ * before the tree is handed to a backend, which folds constant expressions and simplifies
+ * algebraic identities.
+ *
+ * <p>The tree is not rewritten (its nodes are immutable, and all attributes are keyed by node):
+ * instead, the pass sets attributes on the {@link BinaryExpressionNode} and {@link
+ * UnaryExpressionNode} it optimizes, which every backend checks before compiling or evaluating
+ * these nodes:
+ * <ul>
+ *     <li>{@code constant}: the value of an expression whose operands are all constants (literals,
+ *     {@code true} and {@code false}, unless they are assigned somewhere, since they are ordinary
+ *     variables of the root scope), represented as in the {@link
+ *     norswap.sigh.interpreter.Interpreter}: a {@link Long}, {@link Double}, {@link Boolean} or
+ *     {@link String}.</li>
+ *
+ *     <li>{@code simplified}: an operand of the expression which always evaluates to the same value
+ *     as the expression, e.g. {@code x} for {@code x + 0}, {@code x * 1}, {@code x && true} or
+ *     {@code !!x}.</li>
+ * </ul>
+ *
+ * <p>Folding follows the run-time semantics: {@code Int} operands are promoted when mixed with
+ * {@code Float} operands, integer overflow wraps around, and numbers are converted to strings as
+ * the backends do. Expressions that fail at run time (integer division by zero) are not folded,
+ * and neither are equality tests on strings, which compare references.
+ *
+ * <p>Identities are only applied to {@code Int} and {@code Bool} operands, for which they hold
+ * for every value. They do not hold for {@code Float} ({@code -0.0 + 0} is {@code 0.0}), and
+ * the interpreters do not convert parameters to their declared type, so that a {@code Float}
+ * parameter may hold an {@code Int}. The operand that is dropped is always a constant, so that
+ * no side effect is lost.
+ */
+public final class ConstantFolding
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** The values of the constant expressions (including literals) found so far. */
+    private final IdentityHashMap<ExpressionNode, Object> values = new IdentityHashMap<>();
+
+    /** The declarations of the variables that are assigned somewhere in the tree. */
+    private final Set<Object> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ConstantFolding (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the pass over the given tree, whose semantic analysis must have completed successfully
+     * using {@code reactor}, and sets the {@code constant} and {@code simplified} attributes in
+     * the reactor.
+     */
+    public static void run (Reactor reactor, SighNode root)
+    {
+        ConstantFolding folding = new ConstantFolding(reactor);
+
+        // assignments may follow the references they affect
+        ReflectiveFieldWalker<SighNode> assignments = new ReflectiveFieldWalker<>(
+            SighNode.class, POST_VISIT);
+        assignments.register(AssignmentNode.class, POST_VISIT, folding::assignment);
+        assignments.registerFallback(POST_VISIT, node -> {});
+        assignments.walk(root);
+
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, POST_VISIT);
+
+        walker.register(IntLiteralNode.class,       POST_VISIT, folding::intLiteral);
+        walker.register(FloatLiteralNode.class,     POST_VISIT, folding::floatLiteral);
+        walker.register(StringLiteralNode.class,    POST_VISIT, folding::stringLiteral);
+        walker.register(ReferenceNode.class,        POST_VISIT, folding::reference);
+        walker.register(ParenthesizedNode.class,    POST_VISIT, folding::parenthesized);
+        walker.register(UnaryExpressionNode.class,  POST_VISIT, folding::unaryExpression);
+        walker.register(BinaryExpressionNode.class, POST_VISIT, folding::binaryExpression);
+
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void intLiteral (IntLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    private void floatLiteral (FloatLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    private void stringLiteral (StringLiteralNode node) {
+        values.put(node, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        if (node.left instanceof ReferenceNode)
+            assigned.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        Object decl = reactor.get(node, "decl");
+        if (!(decl instanceof SyntheticDeclarationNode) || assigned.contains(decl)) return;
+        String name = ((SyntheticDeclarationNode) decl).name();
+        if (name.equals("true"))  values.put(node, true);
+        if (name.equals("false")) values.put(node, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void parenthesized (ParenthesizedNode node) {
+        Object value = values.get(node.expression);
+        if (value != null) values.put(node, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void unaryExpression (UnaryExpressionNode node)
+    {
+        // there is only NOT
+        Object operand = values.get(node.operand);
+        if (operand != null) {
+            fold(node, !(boolean) operand);
+            return;
+        }
+
+        // !!x => x
+        ExpressionNode inner = unparenthesized(node.operand);
+        if (inner instanceof UnaryExpressionNode)
+            reactor.set(node, "simplified", ((UnaryExpressionNode) inner).operand);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void binaryExpression (BinaryExpressionNode node)
+    {
+        Type leftType  = reactor.get(node.left, "type");
+        Type rightType = reactor.get(node.right, "type");
+        Object left  = values.get(node.left);
+        Object right = values.get(node.right);
+
+        switch (node.operator) {
+            case AND: logical(node, left, right, true);  return;
+            case OR:  logical(node, left, right, false); return;
+        }
+
+        if (left != null && right != null) {
+            Object value = evaluate(node.operator, leftType, rightType, left, right);
+            if (value != null) fold(node, value);
+            return;
+        }
+
+        if (leftType instanceof IntType && rightType instanceof IntType)
+            simplifyInt(node, left, right);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Folds or simplifies {@code &&} (if {@code isAnd}) or {@code ||}: the right operand is only
+     * evaluated if the left one is {@code true} (resp. {@code false}).
+     */
+    private void logical (BinaryExpressionNode node, Object left, Object right, boolean isAnd)
+    {
+        if (left != null) {
+            if ((boolean) left != isAnd)
+                fold(node, left); // false && x, true || x
+            else if (right != null)
+                fold(node, right);
+            else
+                reactor.set(node, "simplified", node.right); // true && x, false || x
+        }
+        else if (right != null && (boolean) right == isAnd)
+            reactor.set(node, "simplified", node.left); // x && true, x || false
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Applies the identities of integer arithmetic, given the value of the constant operand (if
+     * any): {@code x + 0}, {@code 0 + x}, {@code x - 0}, {@code x * 1}, {@code 1 * x} and
+     * {@code x / 1} are all {@code x}.
+     */
+    private void simplifyInt (BinaryExpressionNode node, Object left, Object right)
+    {
+        long l = left  == null ? -1 : (long) left;
+        long r = right == null ? -1 : (long) right;
+        ExpressionNode simplified = null;
+
+        switch (node.operator) {
+            case ADD:
+                if (r == 0) simplified = node.left;
+                if (l == 0) simplified = node.right;
+                break;
+            case SUBTRACT:
+                if (r == 0) simplified = node.left;
+                break;
+            case MULTIPLY:
+                if (r == 1) simplified = node.left;
+                if (l == 1) simplified = node.right;
+                break;
+            case DIVIDE:
+                if (r == 1) simplified = node.left;
+                break;
+        }
+
+        if (simplified != null)
+            reactor.set(node, "simplified", simplified);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the operation on the given constants, or null if it can't be folded.
+     * Mirrors {@code Execution#binaryExpression}.
+     */
+    private static Object evaluate
+        (BinaryOperator operator, Type leftType, Type rightType, Object left, Object right)
+    {
+        if (operator == BinaryOperator.ADD
+                && (leftType instanceof StringType || rightType instanceof StringType))
+            return String.valueOf(left) + right;
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType) {
+            double l = ((Number) left).doubleValue();
+            double r = ((Number) right).doubleValue();
+            switch (operator) {
+                case MULTIPLY:      return l *  r;
+                case DIVIDE:        return l /  r;
+                case REMAINDER:     return l %  r;
+                case ADD:           return l +  r;
+                case SUBTRACT:      return l -  r;
+                case GREATER:       return l >  r;
+                case LOWER:         return l <  r;
+                case GREATER_EQUAL: return l >= r;
+                case LOWER_EQUAL:   return l <= r;
+                case EQUALITY:      return l == r;
+                case NOT_EQUALS:    return l != r;
+                default:            return null;
+            }
+        }
+
+        if (leftType instanceof IntType) {
+            long l = (long) left;
+            long r = (long) right;
+            switch (operator) {
+                case MULTIPLY:      return l * r;
+                case DIVIDE:        return r == 0 ? null : l / r;
+                case REMAINDER:     return r == 0 ? null : l % r;
+                case ADD:           return l + r;
+                case SUBTRACT:      return l - r;
+                case GREATER:       return l >  r;
+                case LOWER:         return l <  r;
+                case GREATER_EQUAL: return l >= r;
+                case LOWER_EQUAL:   return l <= r;
+                case EQUALITY:      return l == r;
+                case NOT_EQUALS:    return l != r;
+                default:            return null;
+            }
+        }
+
+        if (leftType instanceof BoolType)
+            switch (operator) {
+                case EQUALITY:   return left.equals(right);
+                case NOT_EQUALS: return !left.equals(right);
+            }
+
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void fold (ExpressionNode node, Object value) {
+        values.put(node, value);
+        reactor.set(node, "constant", value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static ExpressionNode unparenthesized (ExpressionNode node) {
+        while (node instanceof ParenthesizedNode)
+            node = ((ParenthesizedNode) node).expression;
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,584 @@
+package norswap.sigh;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.DeclarationKind;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.sigh.ast.BinaryOperator.*;
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * An optimization pass, to be run after {@link SemanticAnalysis} has completed successfully (and
+ * after {@link ConstantFolding}, if used), which avoids evaluating the same array and field reads
+ * over and over in while loops.
+ *
+ * <p>The pass only considers <i>pure reads</i>: array accesses, field accesses and box attribute
+ * accesses (including the length of arrays) whose subexpressions are variables, literals,
+ * operators and other pure reads. It performs two optimizations:
+ * <ul>
+ *     <li>Loop-invariant code motion: pure reads in the condition of a loop whose value can't
+ *     change while the loop runs (no variable, array or field they read is written in the loop,
+ *     and the loop doesn't call any function that could write them) are evaluated once, before
+ *     the loop. Only the reads that are evaluated first, before any other operation that could
+ *     fail or have side effects, are hoisted: evaluating them early is then unobservable.</li>
+ *
+ *     <li>Common subexpression elimination: in a straight-line part of a loop body, a pure read
+ *     that was already evaluated is not evaluated again, unless something that could change its
+ *     value (an assignment to a variable it reads, a store to an array or to a field with the
+ *     same name, or a call) happened in between. Reads of hoisted expressions in the body are
+ *     also eliminated.</li>
+ * </ul>
+ *
+ * <p>As for {@link ConstantFolding}, the tree is not rewritten: the values are kept in {@link
+ * Temp temporary variables}, which the backends allocate in the frame of the enclosing function,
+ * and the pass sets attributes which every backend checks when compiling or evaluating reads and
+ * loops:
+ * <ul>
+ *     <li>{@code defines} (a {@link Temp}): the read must be evaluated as usual, and its value
+ *     stored in the temporary.</li>
+ *     <li>{@code reuses} (a {@link Temp}): the value of the read is in the temporary.</li>
+ *     <li>{@code hoisted} (a list of expressions, on {@link WhileNode}): before the loop, each
+ *     expression must be evaluated as usual (ignoring its {@code reuses} attribute), and its value
+ *     stored in the temporary it reuses.</li>
+ * </ul>
+ */
+public final class LoopOptimization
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A temporary variable, holding the value of an expression of the given type.
+     */
+    public static final class Temp
+    {
+        public final Type type;
+
+        Temp (Type type) {
+            this.type = type;
+        }
+
+        @Override public String toString () {
+            return "Temp(" + type + ")";
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** What a piece of code may write. */
+    private static final class Effects
+    {
+        final Set<DeclarationNode> variables = newIdentitySet();
+        final Set<String> fields = new HashSet<>();
+        boolean arrays;
+        boolean calls;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** What a pure read reads, and its key: equal keys denote reads with the same value. */
+    private static final class Read
+    {
+        final StringBuilder key = new StringBuilder();
+        final Set<DeclarationNode> variables = newIdentitySet();
+        final Set<String> fields = new HashSet<>();
+        boolean arrays;
+
+        boolean killedBy (Effects effects) {
+            return effects.calls
+                || arrays && effects.arrays
+                || !Collections.disjoint(variables, effects.variables)
+                || !Collections.disjoint(fields, effects.fields);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads with the same value, whose first evaluation is kept in a temporary. */
+    private static final class Group
+    {
+        final Read read;
+        /** The read whose value is stored, or null if the reads are hoisted. */
+        final ExpressionNode definition;
+        final List<ExpressionNode> uses = new ArrayList<>();
+
+        Group (Read read, ExpressionNode definition) {
+            this.read = read;
+            this.definition = definition;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private final ReflectiveFieldWalker<SighNode> children
+        = new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+
+    /** Maps variables and parameters to their enclosing function, method or root. */
+    private final IdentityHashMap<DeclarationNode, SighNode> owners = new IdentityHashMap<>();
+
+    /** Variables assigned in a function or method other than the one that declares them. */
+    private final Set<DeclarationNode> assignedElsewhere = newIdentitySet();
+
+    /** Stack of the functions, methods and root enclosing the current node during the walk. */
+    private final ArrayDeque<SighNode> stack = new ArrayDeque<>();
+
+    private final List<WhileNode> loops = new ArrayList<>();
+    private final List<Group> groups = new ArrayList<>();
+
+    /** Numbers the variables, to build the keys of reads. */
+    private final IdentityHashMap<DeclarationNode, Integer> ids = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private LoopOptimization (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the pass over the given tree, whose semantic analysis must have completed successfully
+     * using {@code reactor}, and sets the {@code defines}, {@code reuses} and {@code hoisted}
+     * attributes in the reactor.
+     */
+    public static void run (Reactor reactor, SighNode root)
+    {
+        LoopOptimization pass = new LoopOptimization(reactor);
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(RootNode.class,              PRE_VISIT,  pass.stack::push);
+        walker.register(FunDeclarationNode.class,    PRE_VISIT,  pass.stack::push);
+        walker.register(MethodDeclarationNode.class, PRE_VISIT,  pass.stack::push);
+        walker.register(VarDeclarationNode.class,    PRE_VISIT,  pass::declare);
+        walker.register(ParameterNode.class,         PRE_VISIT,  pass::declare);
+        walker.register(AssignmentNode.class,        PRE_VISIT,  pass::assignment);
+        walker.register(WhileNode.class,             PRE_VISIT,  pass.loops::add);
+
+        walker.register(FunDeclarationNode.class,    POST_VISIT, node -> pass.stack.pop());
+        walker.register(MethodDeclarationNode.class, POST_VISIT, node -> pass.stack.pop());
+
+        walker.registerFallback(PRE_VISIT, node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+
+        for (WhileNode loop: pass.loops)
+            pass.optimize(loop);
+        pass.setAttributes();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node) {
+        owners.put(node, stack.peek());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node)
+    {
+        if (!(node.left instanceof ReferenceNode)) return;
+        DeclarationNode decl = reactor.get(node.left, "decl");
+        if (owners.get(decl) != stack.peek())
+            assignedElsewhere.add(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void optimize (WhileNode loop)
+    {
+        Effects effects = new Effects();
+        collectEffects(loop, effects);
+
+        // hoisting
+        HashMap<String, Group> hoisted = new HashMap<>();
+        hoist(loop.condition, effects, hoisted);
+        List<ExpressionNode> definitions = new ArrayList<>();
+        for (Group group: hoisted.values()) {
+            definitions.add(group.uses.get(0));
+            groups.add(group);
+        }
+        if (!definitions.isEmpty())
+            reactor.set(loop, "hoisted", definitions);
+
+        // common subexpression elimination, starting with the hoisted reads
+        statement(loop.body, hoisted);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Hoists the invariant reads in the expression, in evaluation order, and returns false as soon
+     * as an operation that may fail or have side effects is encountered (or an operand that is
+     * not always evaluated).
+     */
+    private boolean hoist (ExpressionNode node, Effects effects, HashMap<String, Group> hoisted)
+    {
+        Read read = read(node);
+        if (read != null && isInvariant(read, effects)) {
+            String key = read.key.toString();
+            hoisted.computeIfAbsent(key, k -> new Group(read, null)).uses.add(node);
+            return true;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            return hoist(((ParenthesizedNode) node).expression, effects, hoisted);
+
+        if (node instanceof UnaryExpressionNode)
+            return hoist(((UnaryExpressionNode) node).operand, effects, hoisted);
+
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            if (!hoist(binary.left, effects, hoisted)) return false;
+            switch (binary.operator) {
+                case AND: case OR:                 return false; // right operand is conditional
+                case DIVIDE: case REMAINDER:       return false; // may fail
+            }
+            return hoist(binary.right, effects, hoisted);
+        }
+
+        return node instanceof IntLiteralNode
+            || node instanceof FloatLiteralNode
+            || node instanceof StringLiteralNode
+            || node instanceof ReferenceNode;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the value of the read can't change while running code with the given effects.
+     */
+    private boolean isInvariant (Read read, Effects effects)
+    {
+        if (read.arrays && effects.arrays
+                || !Collections.disjoint(read.variables, effects.variables)
+                || !Collections.disjoint(read.fields, effects.fields))
+            return false;
+        // calls can write arrays, fields, and the variables of other functions
+        return !effects.calls || !read.arrays && read.fields.isEmpty()
+            && Collections.disjoint(read.variables, assignedElsewhere);
+    }
+
+    // =============================================================================================
+    // Common subexpression elimination
+    // =============================================================================================
+
+    /**
+     * Eliminates the common reads in the statement, given the reads available when it starts
+     * executing (which is updated to those available after it).
+     */
+    private void statement (StatementNode node, HashMap<String, Group> available)
+    {
+        if (node instanceof BlockNode)
+            for (StatementNode statement: ((BlockNode) node).statements)
+                statement(statement, available);
+
+        else if (node instanceof ExpressionStatementNode)
+            expression(((ExpressionStatementNode) node).expression, available, true);
+
+        else if (node instanceof VarDeclarationNode) {
+            expression(((VarDeclarationNode) node).initializer, available, true);
+            Effects effects = new Effects();
+            effects.variables.add((VarDeclarationNode) node);
+            kill(available, effects);
+        }
+        else if (node instanceof ReturnNode) {
+            ExpressionNode expression = ((ReturnNode) node).expression;
+            if (expression != null) expression(expression, available, true);
+        }
+        else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            expression(ifNode.condition, available, true);
+            // each branch starts afresh
+            Effects effects = new Effects();
+            statement(ifNode.trueStatement, new HashMap<>());
+            collectEffects(ifNode.trueStatement, effects);
+            if (ifNode.falseStatement != null) {
+                statement(ifNode.falseStatement, new HashMap<>());
+                collectEffects(ifNode.falseStatement, effects);
+            }
+            kill(available, effects);
+        }
+        else if (node instanceof WhileNode) {
+            // optimized separately
+            Effects effects = new Effects();
+            collectEffects(node, effects);
+            kill(available, effects);
+        }
+        // other declarations have no effects when executed
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Eliminates the common reads in the expression, following the evaluation order. New reads
+     * only become available if the expression is {@code unconditional}, i.e. if it is always
+     * evaluated when the code that follows is.
+     */
+    private void expression (ExpressionNode node, HashMap<String, Group> available,
+                             boolean unconditional)
+    {
+        Read read = read(node);
+        if (read != null) {
+            String key = read.key.toString();
+            Group group = available.get(key);
+            if (group != null) {
+                group.uses.add(node);
+                return;
+            }
+            readOperands(node, available, unconditional);
+            if (unconditional) {
+                group = new Group(read, node);
+                available.put(key, group);
+                groups.add(group);
+            }
+            return;
+        }
+
+        if (node instanceof ParenthesizedNode)
+            expression(((ParenthesizedNode) node).expression, available, unconditional);
+
+        else if (node instanceof UnaryExpressionNode)
+            expression(((UnaryExpressionNode) node).operand, available, unconditional);
+
+        else if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            expression(binary.left, available, unconditional);
+            boolean conditional = binary.operator == AND || binary.operator == OR;
+            expression(binary.right, available, unconditional && !conditional);
+        }
+        else if (node instanceof ArrayAccessNode
+                || node instanceof FieldAccessNode
+                || node instanceof BoxElementAccessNode)
+            readOperands(node, available, unconditional);
+
+        else if (node instanceof ArrayLiteralNode)
+            for (ExpressionNode component: ((ArrayLiteralNode) node).components)
+                expression(component, available, unconditional);
+
+        else if (node instanceof FunCallNode) {
+            FunCallNode call = (FunCallNode) node;
+            if (call.function instanceof BoxElementAccessNode) // method: only the stem is evaluated
+                expression(((BoxElementAccessNode) call.function).stem, available, unconditional);
+            else
+                expression(call.function, available, unconditional);
+            for (ExpressionNode argument: call.arguments)
+                expression(argument, available, unconditional);
+            Effects effects = new Effects();
+            effects.calls = true;
+            kill(available, effects);
+        }
+        else if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            if (!(assignment.left instanceof ReferenceNode))
+                readOperands(assignment.left, available, unconditional);
+            expression(assignment.right, available, unconditional);
+            Effects effects = new Effects();
+            collectWrite(assignment, effects);
+            kill(available, effects);
+        }
+        // literals and references: nothing to do
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Eliminates the common reads in the operands of an array, field or box attribute access.
+     */
+    private void readOperands (ExpressionNode node, HashMap<String, Group> available,
+                               boolean unconditional)
+    {
+        if (node instanceof ArrayAccessNode) {
+            expression(((ArrayAccessNode) node).array, available, unconditional);
+            expression(((ArrayAccessNode) node).index, available, unconditional);
+        }
+        else if (node instanceof FieldAccessNode)
+            expression(((FieldAccessNode) node).stem, available, unconditional);
+        else if (node instanceof BoxElementAccessNode)
+            expression(((BoxElementAccessNode) node).stem, available, unconditional);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void kill (HashMap<String, Group> available, Effects effects) {
+        available.values().removeIf(group -> group.read.killedBy(effects));
+    }
+
+    // =============================================================================================
+    // Reads and effects
+    // =============================================================================================
+
+    /**
+     * Returns a description of the expression if it is a pure read, or null.
+     */
+    private Read read (ExpressionNode node)
+    {
+        if (!(node instanceof ArrayAccessNode
+                || node instanceof FieldAccessNode
+                || node instanceof BoxElementAccessNode))
+            return null;
+        Read read = new Read();
+        return describe(node, read) ? read : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends the key of the expression to the read and records what it reads, returning false
+     * if the expression isn't pure.
+     */
+    private boolean describe (ExpressionNode node, Read read)
+    {
+        StringBuilder key = read.key;
+
+        if (node instanceof IntLiteralNode) {
+            key.append(((IntLiteralNode) node).value);
+            return true;
+        }
+        if (node instanceof FloatLiteralNode) {
+            key.append(((FloatLiteralNode) node).value).append('f');
+            return true;
+        }
+        if (node instanceof ReferenceNode) {
+            DeclarationNode decl = reactor.get(node, "decl");
+            if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
+                read.variables.add(decl);
+                key.append('$').append(ids.computeIfAbsent(decl, it -> ids.size()));
+                return true;
+            }
+            if (decl instanceof SyntheticDeclarationNode
+                    && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE) {
+                key.append(decl.name()); // true, false, null
+                return true;
+            }
+            return false;
+        }
+        if (node instanceof ParenthesizedNode)
+            return describe(((ParenthesizedNode) node).expression, read);
+
+        if (node instanceof UnaryExpressionNode) {
+            key.append(((UnaryExpressionNode) node).operator.string);
+            return describe(((UnaryExpressionNode) node).operand, read);
+        }
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            key.append('(');
+            if (!describe(binary.left, read)) return false;
+            key.append(binary.operator.string);
+            if (!describe(binary.right, read)) return false;
+            key.append(')');
+            return true;
+        }
+        if (node instanceof ArrayAccessNode) {
+            read.arrays = true;
+            key.append('[');
+            if (!describe(((ArrayAccessNode) node).array, read)) return false;
+            key.append(',');
+            if (!describe(((ArrayAccessNode) node).index, read)) return false;
+            key.append(']');
+            return true;
+        }
+        if (node instanceof FieldAccessNode)
+            return describeField(node, ((FieldAccessNode) node).stem,
+                ((FieldAccessNode) node).fieldName, '.', read);
+
+        if (node instanceof BoxElementAccessNode)
+            return describeField(node, ((BoxElementAccessNode) node).stem,
+                ((BoxElementAccessNode) node).elementName, '#', read);
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean describeField
+        (ExpressionNode node, ExpressionNode stem, String name, char separator, Read read)
+    {
+        if (reactor.get(node, "type") instanceof FunType) // method
+            return false;
+        // the length of arrays never changes
+        if (!(reactor.get(stem, "type") instanceof ArrayType))
+            read.fields.add(name);
+        read.key.append('(');
+        if (!describe(stem, read)) return false;
+        read.key.append(')').append(separator).append(name);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds what the code may write when executed to {@code effects} (the bodies of the functions
+     * it declares are not executed).
+     */
+    private void collectEffects (SighNode node, Effects effects)
+    {
+        if (node instanceof FunDeclarationNode
+                || node instanceof StructDeclarationNode
+                || node instanceof BoxDeclarationNode)
+            return;
+        if (node instanceof FunCallNode)
+            effects.calls = true;
+        if (node instanceof AssignmentNode)
+            collectWrite((AssignmentNode) node, effects);
+        if (node instanceof VarDeclarationNode)
+            effects.variables.add((VarDeclarationNode) node);
+        for (SighNode child: children.children(node))
+            collectEffects(child, effects);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void collectWrite (AssignmentNode node, Effects effects)
+    {
+        if (node.left instanceof ReferenceNode) {
+            DeclarationNode decl = reactor.get(node.left, "decl");
+            effects.variables.add(decl);
+            if (decl instanceof AttributeDeclarationNode) // attribute of the receiver of a method
+                effects.fields.add(decl.name());
+        }
+        else if (node.left instanceof ArrayAccessNode)
+            effects.arrays = true;
+        else if (node.left instanceof FieldAccessNode)
+            effects.fields.add(((FieldAccessNode) node.left).fieldName);
+        else if (node.left instanceof BoxElementAccessNode)
+            effects.fields.add(((BoxElementAccessNode) node.left).elementName);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void setAttributes ()
+    {
+        for (Group group: groups) {
+            if (group.definition != null && group.uses.isEmpty()) continue;
+            ExpressionNode first = group.definition != null ? group.definition : group.uses.get(0);
+            Temp temp = new Temp(reactor.get(first, "type"));
+            if (group.definition != null)
+                reactor.set(group.definition, "defines", temp);
+            for (ExpressionNode use: group.uses)
+                reactor.set(use, "reuses", temp);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static <T> Set<T> newIdentitySet () {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
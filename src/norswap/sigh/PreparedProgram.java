@@ -0,0 +1,90 @@
+package norswap.sigh;
+
+import norswap.autumn.positions.LineMapString;
+import norswap.sigh.SighRunner.Backend;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.interpreter.ClosureInterpreter;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.RegisterInterpreter;
+import norswap.uranium.Reactor;
+
+/**
+ * A program that has been parsed, analyzed and optimized once (see {@link SighRunner#prepare}),
+ * and can then be executed any number of times without going through the front end again — much
+ * like a prepared statement in a database.
+ *
+ * <p>A prepared program is frozen: neither its tree nor the reactor holding its attributes are
+ * exposed, so they cannot be modified once prepared. It is thread-safe, and can be shared between
+ * runners (see {@link ScriptCache}) and executed concurrently.
+ *
+ * <p>The {@link Interpreter} and {@link ClosureInterpreter} used by {@link #execute} are shared
+ * by all executions, so that the program is only linked (and compiled to closures, or to bytecode
+ * by the tiered interpreter) once. The {@link RegisterInterpreter} is not thread-safe, so a new
+ * one is used for each execution.
+ */
+public final class PreparedProgram
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final String source;
+    private final RootNode root;
+    private final Reactor reactor;
+
+    private final Interpreter interpreter;
+    private final Interpreter tieredInterpreter;
+    private final ClosureInterpreter closureInterpreter;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a prepared program from the tree parsed from {@code source}, whose semantic analysis
+     * has completed successfully using {@code reactor}. Neither should be modified afterwards.
+     */
+    PreparedProgram (String source, RootNode root, Reactor reactor)
+    {
+        this.source = source;
+        this.root = root;
+        this.reactor = reactor;
+        this.interpreter = new Interpreter(reactor);
+        this.tieredInterpreter = new Interpreter(reactor, Backend.TIER_UP);
+        this.closureInterpreter = new ClosureInterpreter(reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Executes the program with the given backend, and returns its return value. May be called
+     * concurrently.
+     */
+    public Object execute (Backend backend)
+    {
+        switch (backend) {
+            case INTERPRETER: return interpreter.interpret(root);
+            case CLOSURES:    return closureInterpreter.interpret(root);
+            case REGISTERS:   return new RegisterInterpreter(reactor).interpret(root);
+            case TIERED:      return tieredInterpreter.interpret(root);
+            default: throw new Error("unknown backend: " + backend);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the program to JVM classes, the main class having the given (dot-separated) binary
+     * name (see {@link SighRunner#compile}).
+     *
+     * <p>The classes carry line numbers, and their source file is named after the main class
+     * (e.g. {@code Script.si} for {@code org.example.Script}), matching the default naming of
+     * {@link SighCompiler}.
+     */
+    public CompilationResult compile (String binaryName)
+    {
+        String sourceFile = binaryName.substring(binaryName.lastIndexOf('.') + 1) + ".si";
+        return new BytecodeCompiler(reactor, new LineMapString(sourceFile, source))
+            .compile(binaryName, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
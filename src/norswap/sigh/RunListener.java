@@ -0,0 +1,73 @@
+package norswap.sigh;
+
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+
+/**
+ * Receives the wall-clock duration of the phases of the work done by a {@link SighRunner}, as
+ * well as metrics about this work. See {@link RunMetrics} for an implementation accumulating
+ * them.
+ *
+ * <p>A runner created without a listener does not measure anything. Listeners may be called
+ * concurrently if the runner is used from multiple threads.
+ */
+public interface RunListener
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The phases of the work of a runner. Phases whose result is found in the {@link ScriptCache}
+     * of the runner are not reported.
+     */
+    enum Phase
+    {
+        /** Parsing the source. */
+        PARSE,
+        /** Running the semantic analysis: walking the tree and running the reactor. */
+        ANALYSIS,
+        /** Running {@link ConstantFolding} and {@link LoopOptimization}. */
+        OPTIMIZATION,
+        /** Compiling to JVM classes ({@link SighRunner#compile}). */
+        COMPILATION,
+        /** Executing the program with the backend of the runner ({@link SighRunner#run}). */
+        EXECUTION
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The metrics reported by a runner, each reported after the phase it relates to.
+     */
+    enum Metric
+    {
+        /** Number of nodes in the tree produced by {@link Phase#PARSE}. */
+        NODES,
+        /** Number of attributes computed by the reactor during {@link Phase#ANALYSIS}. */
+        ATTRIBUTES,
+        /** Number of classes generated by {@link Phase#COMPILATION}. */
+        CLASSES_GENERATED,
+        /** Number of bytes of the classes generated by {@link Phase#COMPILATION}. */
+        BYTECODE_BYTES,
+        /**
+         * Number of classes loaded by a {@link ByteArrayClassLoader} during {@link
+         * Phase#EXECUTION} (by tiered execution). Classes loaded concurrently by other threads are
+         * also counted.
+         */
+        CLASSES_LOADED
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when a phase completes successfully, with its duration in nanoseconds.
+     */
+    void phase (Phase phase, long nanos);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called with the value of a metric for the phase that just completed.
+     */
+    void metric (Metric metric, long value);
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,112 @@
+package norswap.sigh;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link RunListener} accumulating the reported durations and metrics, to be read with {@link
+ * #nanos}, {@link #count} and {@link #total}, or scraped all at once with {@link #snapshot}.
+ *
+ * <p>This class is thread-safe, and can be shared by several runners.
+ */
+public final class RunMetrics implements RunListener
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Metric[] METRICS = Metric.values();
+
+    private final AtomicLongArray nanos  = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray totals = new AtomicLongArray(METRICS.length);
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void phase (Phase phase, long nanos) {
+        this.nanos.addAndGet(phase.ordinal(), nanos);
+        counts.incrementAndGet(phase.ordinal());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void metric (Metric metric, long value) {
+        totals.addAndGet(metric.ordinal(), value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Total time spent in the phase, in nanoseconds.
+     */
+    public long nanos (Phase phase) {
+        return nanos.get(phase.ordinal());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of times the phase has been completed.
+     */
+    public long count (Phase phase) {
+        return counts.get(phase.ordinal());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sum of the reported values of the metric.
+     */
+    public long total (Metric metric) {
+        return totals.get(metric.ordinal());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns all the values, keyed by lowercase names: {@code <phase>.nanos} and {@code
+     * <phase>.count} for every phase, then the name of every metric. The values are read one by
+     * one, and so may not be consistent with each other if runners are still reporting.
+     */
+    public Map<String, Long> snapshot ()
+    {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (Phase phase: PHASES) {
+            String name = phase.name().toLowerCase();
+            snapshot.put(name + ".nanos", nanos(phase));
+            snapshot.put(name + ".count", count(phase));
+        }
+        for (Metric metric: METRICS)
+            snapshot.put(metric.name().toLowerCase(), total(metric));
+        return snapshot;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Resets all the values to zero.
+     */
+    public void reset ()
+    {
+        for (int i = 0; i < PHASES.length; ++i) {
+            nanos.set(i, 0);
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < METRICS.length; ++i)
+            totals.set(i, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns one {@code name value} line per entry of the {@link #snapshot}.
+     */
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder();
+        snapshot().forEach((name, value) -> b.append(name).append(' ').append(value).append('\n'));
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
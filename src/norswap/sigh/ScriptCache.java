@@ -0,0 +1,217 @@
+package norswap.sigh;
+
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A content-addressed cache for the front end of {@link SighRunner}: prepared programs (used by
+ * {@link SighRunner#prepare} and {@link SighRunner#run}) and compiled classes (used by {@link
+ * SighRunner#compile}).
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the source text, of {@link BytecodeCompiler#VERSION}
+ * and, for compiled classes, of the name of the main class. Each kind of entry is kept in memory
+ * in a map holding at most {@code maxEntries} entries, evicting the least recently used entry
+ * when full.
+ *
+ * <p>If a directory is given, compiled classes are also stored on disk, as a jar named after the
+ * key (see {@link CompilationResult#writeJar}), and looked up there on memory misses, so that
+ * they survive restarts. Prepared programs are only kept in memory.
+ *
+ * <p>The cache is thread-safe. Two threads that miss on the same key at the same time may both
+ * compute the entry, in which case the first one to finish is kept.
+ */
+public final class ScriptCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final int maxEntries;
+    private final Path directory;
+    private final LruMap<PreparedProgram> analyses;
+    private final LruMap<CompilationResult> compilations;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A {@link LinkedHashMap} in access order, which evicts its eldest entry when full. */
+    private final class LruMap<V> extends LinkedHashMap<String, V>
+    {
+        LruMap () {
+            super(16, 0.75f, true);
+        }
+
+        @Override protected boolean removeEldestEntry (Map.Entry<String, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an in-memory cache holding at most {@code maxEntries} prepared programs and {@code
+     * maxEntries} compilation results.
+     */
+    public ScriptCache (int maxEntries) {
+        this(maxEntries, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache holding at most {@code maxEntries} prepared programs and {@code maxEntries}
+     * compilation results in memory, which also stores compilation results in {@code directory}
+     * (created if needed) if non-null.
+     */
+    public ScriptCache (int maxEntries, Path directory)
+    {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        this.maxEntries = maxEntries;
+        this.directory = directory;
+        this.analyses = new LruMap<>();
+        this.compilations = new LruMap<>();
+
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the hexadecimal SHA-256 hash of the given parts (separated by a null character) and
+     * of {@link BytecodeCompiler#VERSION}.
+     */
+    public static String key (String... parts)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(BytecodeCompiler.VERSION.getBytes(StandardCharsets.UTF_8));
+            for (String part: parts) {
+                digest.update((byte) 0);
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder b = new StringBuilder();
+            for (byte x: digest.digest())
+                b.append(String.format("%02x", x));
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // every JVM must support SHA-256
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached prepared program for the given source, computing it with {@code analyze}
+     * on a miss.
+     */
+    public PreparedProgram analysis (String source, Supplier<PreparedProgram> analyze)
+    {
+        String key = key("analysis", source);
+        PreparedProgram analysis;
+        synchronized (this) {
+            analysis = analyses.get(key);
+            if (analysis != null) {
+                ++ hits;
+                return analysis;
+            }
+            ++ misses;
+        }
+        analysis = analyze.get();
+        synchronized (this) {
+            PreparedProgram previous = analyses.putIfAbsent(key, analysis);
+            return previous != null ? previous : analysis;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the cached compilation result of the given source with the given main class name,
+     * looking it up on disk if not in memory, and computing it with {@code compile} otherwise.
+     */
+    public CompilationResult compilation (
+            String source, String binaryName, Supplier<CompilationResult> compile)
+    {
+        String key = key("compilation", binaryName, source);
+        CompilationResult result;
+        synchronized (this) {
+            result = compilations.get(key);
+            if (result != null) {
+                ++ hits;
+                return result;
+            }
+        }
+
+        Path jar = directory == null ? null : directory.resolve(key + ".jar");
+        try {
+            if (jar != null && Files.exists(jar)) {
+                result = CompilationResult.readJar(jar);
+                synchronized (this) { ++ hits; }
+            } else {
+                synchronized (this) { ++ misses; }
+                result = compile.get();
+                if (jar != null) {
+                    // write then move, so that readers never see a partial jar
+                    Path tmp = Files.createTempFile(directory, key, ".tmp");
+                    result.writeJar(tmp);
+                    Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized (this) {
+            CompilationResult previous = compilations.putIfAbsent(key, result);
+            return previous != null ? previous : result;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of lookups that were served from memory or disk.
+     */
+    public synchronized long hits () {
+        return hits;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of lookups that required the entry to be computed.
+     */
+    public synchronized long misses () {
+        return misses;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all entries from memory (but not from disk).
+     */
+    public synchronized void clear () {
+        analyses.clear();
+        compilations.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
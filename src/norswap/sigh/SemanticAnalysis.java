@@ -395,14 +395,16 @@ public final class SemanticAnalysis
 
                 StructDeclarationNode decl = ((StructType) type).node;
 
-                for (DeclarationNode field: decl.fields)
+                for (int i = 0; i < decl.fields.size(); ++i)
                 {
+                    DeclarationNode field = decl.fields.get(i);
                     if (!field.name().equals(node.fieldName)) continue;
 
                     R.rule(node, "type")
                         .using(field, "type")
                         .by(Rule::copyFirst);
 
+                    setFieldIndex(node, i);
                     return;
                 }
 
@@ -414,6 +416,18 @@ public final class SemanticAnalysis
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Sets the {@code fieldIndex} attribute of a field or box element access: the index of the
+     * field, attribute or method in the declaration of the structure or box (the methods of a box
+     * being numbered after its attributes). This is used to lay out instances at run time.
+     */
+    private void setFieldIndex (ExpressionNode node, int index) {
+        R.rule(node, "fieldIndex")
+            .by(r -> r.set(0, index));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void boxElementAccess (BoxElementAccessNode node)
     {
         R.rule()
@@ -440,25 +454,30 @@ public final class SemanticAnalysis
 
                 BoxDeclarationNode decl = ((BoxType) type).node;
 
-                for (DeclarationNode attribute: decl.attributes)
+                for (int i = 0; i < decl.attributes.size(); ++i)
                 {
+                    DeclarationNode attribute = decl.attributes.get(i);
                     if (!attribute.name().equals(node.elementName)) continue;
 
                     R.rule(node, "type")
                         .using(attribute, "type")
                         .by(Rule::copyFirst);
 
+                    setFieldIndex(node, i);
                     return;
                 }
 
-                for (DeclarationNode method: decl.methods)
+                // methods are stored after the attributes in box instances
+                for (int i = 0; i < decl.methods.size(); ++i)
                 {
+                    DeclarationNode method = decl.methods.get(i);
                     if (!method.name().equals(node.elementName)) continue;
 
                     R.rule(node, "type")
                         .using(method, "type")
                         .by(Rule::copyFirst);
 
+                    setFieldIndex(node, decl.attributes.size() + i);
                     return;
                 }
 
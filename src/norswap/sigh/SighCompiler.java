@@ -0,0 +1,57 @@
+package norswap.sigh;
+
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.utils.IO;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command line entry point to compile a Sigh source file ahead of time, to a jar or to a
+ * directory of class files.
+ *
+ * <pre>{@code SighCompiler <source.si> <output.jar | output directory> [<main class name>]}</pre>
+ *
+ * <p>The name of the main class defaults to the name of the source file, without extension. The
+ * compiled script can then be run with {@code java} (the Sigh jar must be on the class path), or
+ * loaded with {@link CompilationResult#loadCompiled} and run with {@link
+ * CompilationResult#callRun}.
+ */
+public final class SighCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println(
+                "usage: SighCompiler <source.si> <output.jar | output directory> [<main class name>]");
+            System.exit(1);
+        }
+
+        Path source = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        String binaryName = args.length == 3 ? args[2] : defaultName(source);
+
+        CompilationResult result = new SighRunner().compile(IO.slurp(args[0]), binaryName);
+
+        if (output.toString().endsWith(".jar"))
+            result.writeJar(output);
+        else
+            result.writeClasses(output);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the source file, without extension.
+     */
+    private static String defaultName (Path source)
+    {
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
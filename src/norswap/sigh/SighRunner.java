@@ -3,9 +3,17 @@ package norswap.sigh;
 import norswap.autumn.Autumn;
 import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
+import norswap.sigh.RunListener.Metric;
+import norswap.sigh.RunListener.Phase;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.RootNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.GeneratedClass;
+import norswap.sigh.interpreter.ClosureInterpreter;
 import norswap.sigh.interpreter.Interpreter;
+import norswap.sigh.interpreter.RegisterInterpreter;
 import norswap.uranium.AttributeTreeFormatter;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
@@ -21,6 +29,51 @@ public final class SighRunner
 {
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The available execution backends.
+     */
+    public enum Backend
+    {
+        /** {@link Interpreter}: walks the tree directly. */
+        INTERPRETER,
+        /** {@link ClosureInterpreter}: compiles the tree to specialized executable nodes first. */
+        CLOSURES,
+        /**
+         * {@link RegisterInterpreter}: compiles the tree to register-based instructions first.
+         * Calls don't use the Java stack, so deep recursion doesn't overflow it.
+         */
+        REGISTERS,
+        /** {@link Interpreter} which compiles hot functions to bytecode (see {@link #TIER_UP}). */
+        TIERED;
+
+        /** Compile threshold used by {@link #TIERED}. */
+        public static final int TIER_UP = 1000;
+
+        /**
+         * Executes the tree, whose semantic analysis must have completed successfully using
+         * {@code reactor}, and returns its return value.
+         */
+        public Object execute (Reactor reactor, SighNode root) {
+            switch (this) {
+                case INTERPRETER: return new Interpreter(reactor).interpret(root);
+                case CLOSURES:    return new ClosureInterpreter(reactor).interpret(root);
+                case REGISTERS:   return new RegisterInterpreter(reactor).interpret(root);
+                case TIERED:      return new Interpreter(reactor, TIER_UP).interpret(root);
+                default: throw new Error("unknown backend: " + this);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Backend backend;
+
+    /** The cache for analyzed trees and compiled classes, or null to disable caching. */
+    private final ScriptCache cache;
+
+    /** The listener receiving phase durations and metrics, or null to disable measurements. */
+    private final RunListener listener;
+
     private final SighGrammar grammar = new SighGrammar();
 
     private final ParseOptions parseOptions = ParseOptions.builder()
@@ -29,11 +82,109 @@ public final class SighRunner
 
     // ---------------------------------------------------------------------------------------------
 
-    public Object run(String input) {
+    public SighRunner () {
+        this(Backend.INTERPRETER);
+    }
+
+    public SighRunner (Backend backend) {
+        this(backend, null);
+    }
+
+    /**
+     * Creates a runner using the given backend, and caching the results of the front end and
+     * the compiler in {@code cache}, which can be shared by multiple runners.
+     */
+    public SighRunner (Backend backend, ScriptCache cache) {
+        this(backend, cache, null);
+    }
+
+    /**
+     * Creates a runner using the given backend and cache (which may be null), and reporting the
+     * duration of its phases and metrics about them to {@code listener} if non-null.
+     */
+    public SighRunner (Backend backend, ScriptCache cache, RunListener listener) {
+        this.backend = backend;
+        this.cache = cache;
+        this.listener = listener;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Object run(String input)
+    {
+        PreparedProgram program = prepare(input);
+        if (listener == null)
+            return program.execute(backend);
+
+        long loaded = ByteArrayClassLoader.loadedClasses();
+        long start = System.nanoTime();
+        Object result = program.execute(backend);
+        lap(Phase.EXECUTION, start);
+        listener.metric(Metric.CLASSES_LOADED, ByteArrayClassLoader.loadedClasses() - loaded);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses and analyzes the input once, returning a program that can be executed repeatedly
+     * without going through the front end again.
+     *
+     * <p>If the runner has a {@link ScriptCache}, the program is looked up there first.
+     */
+    public PreparedProgram prepare (String input) {
+        return cache == null
+            ? analyze(input)
+            : cache.analysis(input, () -> analyze(input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the input to JVM classes (see {@link BytecodeCompiler}), the main class having the
+     * given (dot-separated) binary name. The classes can be written to disk (see {@link
+     * CompilationResult#writeJar} and {@link CompilationResult#writeClasses}) to be loaded without
+     * going through the parser, the semantic analysis and the compiler again.
+     *
+     * <p>If the runner has a {@link ScriptCache}, the result is looked up there first.
+     */
+    public CompilationResult compile (String input, String binaryName)
+    {
+        if (cache != null)
+            return cache.compilation(input, binaryName, () -> compileUncached(input, binaryName));
+        return compileUncached(input, binaryName);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CompilationResult compileUncached (String input, String binaryName)
+    {
+        PreparedProgram program = analyze(input);
+        if (listener == null)
+            return program.compile(binaryName);
+
+        long start = System.nanoTime();
+        CompilationResult result = program.compile(binaryName);
+        lap(Phase.COMPILATION, start);
+        long bytes = 0;
+        for (GeneratedClass generated: result.classes())
+            bytes += generated.bytes().length;
+        listener.metric(Metric.CLASSES_GENERATED, result.classes().size());
+        listener.metric(Metric.BYTECODE_BYTES, bytes);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the input, runs the semantic analysis and the {@link ConstantFolding} and {@link
+     * LoopOptimization} passes, returning the resulting program.
+     */
+    private PreparedProgram analyze (String input) {
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
 
+        long time = listener == null ? 0 : System.nanoTime();
         ParseResult result = Autumn.parse(grammar.root, input, parseOptions);
         if (!result.fullMatch) {
             // TODO improve
@@ -46,6 +197,12 @@ public final class SighRunner
         }
 
         RootNode root = result.topValue();
+        if (listener != null) {
+            time = lap(Phase.PARSE, time);
+            listener.metric(Metric.NODES, countNodes(root));
+            time = System.nanoTime(); // excluding the node count
+        }
+
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -61,7 +218,39 @@ public final class SighRunner
             throw new AssertionError("semantic errors");
         }
 
-        return interpreter.interpret(root);
+        if (listener != null) {
+            time = lap(Phase.ANALYSIS, time);
+            listener.metric(Metric.ATTRIBUTES, reactor.getAttributes().size());
+        }
+
+        ConstantFolding.run(reactor, root);
+        LoopOptimization.run(reactor, root);
+        if (listener != null)
+            lap(Phase.OPTIMIZATION, time);
+        return new PreparedProgram(input, root, reactor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reports the completion of the phase started at time {@code start} (as given by {@link
+     * System#nanoTime}) to the listener, which must be non-null, and returns the current time.
+     */
+    private long lap (Phase phase, long start) {
+        long now = System.nanoTime();
+        listener.phase(phase, now - start);
+        return now;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int countNodes (SighNode root) {
+        int[] count = { 0 };
+        ReflectiveFieldWalker<SighNode> walker =
+            new ReflectiveFieldWalker<>(SighNode.class, PRE_VISIT);
+        walker.registerFallback(PRE_VISIT, node -> ++ count[0]);
+        walker.walk(root);
+        return count[0];
     }
 
     // ---------------------------------------------------------------------------------------------
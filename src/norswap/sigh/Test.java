@@ -52,6 +52,8 @@ public final class Test
             return;
         }
 
+        ConstantFolding.run(reactor, tree);
+        LoopOptimization.run(reactor, tree);
         Interpreter interpreter = new Interpreter(reactor);
         interpreter.interpret(tree);
         System.out.println("success");
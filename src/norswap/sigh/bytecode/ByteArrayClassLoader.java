@@ -1,7 +1,25 @@
 package norswap.sigh.bytecode;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A class loader with the ability to load class from bytecode arrays.
+ *
+ * <p>Classes can only be unloaded by the JVM once their class loader is garbage collected. Using
+ * a new loader for each compilation unit (as {@link CompilationResult#load()} does) thus allows
+ * the classes of a script to be unloaded as soon as the script isn't used anymore, and allows
+ * different scripts to define classes with the same name.
+ *
+ * <p>The class keeps track of the number of classes defined by all its instances ({@link
+ * #loadedClasses()}) and of the number of these classes that were unloaded ({@link
+ * #unloadedClasses()}), i.e. whose loader was garbage collected.
  */
 public final class ByteArrayClassLoader extends ClassLoader
 {
@@ -13,20 +31,93 @@ public final class ByteArrayClassLoader extends ClassLoader
 
     // ---------------------------------------------------------------------------------------------
 
+    private static final AtomicLong loaded = new AtomicLong();
+    private static final AtomicLong unloaded = new AtomicLong();
+
+    /** Enqueues the {@link Tracker} of a loader once the loader has been garbage collected. */
+    private static final ReferenceQueue<ByteArrayClassLoader> collected = new ReferenceQueue<>();
+
+    /** Keeps the trackers reachable until they are enqueued. */
+    private static final Set<Tracker> trackers =
+        Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    /** Counts the classes defined by a loader, and outlives it. */
+    private static final class Tracker extends PhantomReference<ByteArrayClassLoader>
+    {
+        final AtomicInteger classes = new AtomicInteger();
+
+        Tracker (ByteArrayClassLoader loader) {
+            super(loader, collected);
+        }
+    }
+
+    private final Tracker tracker = new Tracker(this);
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
-     * Default reusable instance of the class loader.
+     * Default reusable instance of the class loader. The classes it loads are never unloaded, and
+     * it cannot load two classes with the same name: prefer creating a new loader for each
+     * compilation unit.
      */
     public static final ByteArrayClassLoader INSTANCE = new ByteArrayClassLoader();
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Creates a new class loader, whose parent is the loader of this class (so that generated
+     * classes can access the runtime support classes of this package).
+     */
+    public ByteArrayClassLoader () {
+        super(ByteArrayClassLoader.class.getClassLoader());
+        trackers.add(tracker);
+        pollCollected();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Given a class' (dot-separated) binary name and the bytecode array, load the class
      * and return the corresponding {@link Class} object.
      */
     public Class<?> defineClass (String binaryName, byte[] bytecode) {
-        return defineClass(binaryName, bytecode, 0, bytecode.length);
+        Class<?> klass = defineClass(binaryName, bytecode, 0, bytecode.length);
+        tracker.classes.incrementAndGet();
+        loaded.incrementAndGet();
+        return klass;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of classes defined by all instances of this class so far.
+     */
+    public static long loadedClasses () {
+        return loaded.get();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of classes defined by instances of this class, whose loader has been
+     * garbage collected (which means that the classes have been unloaded). This is only updated
+     * once the garbage collector has processed the loader, which may take several collections.
+     */
+    public static long unloadedClasses () {
+        pollCollected();
+        return unloaded.get();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void pollCollected ()
+    {
+        for (Reference<?> ref = collected.poll(); ref != null; ref = collected.poll()) {
+            Tracker tracker = (Tracker) ref;
+            trackers.remove(tracker);
+            unloaded.addAndGet(tracker.classes.get());
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
-}
\ No newline at end of file
+}
@@ -1,5 +1,7 @@
 package norswap.sigh.bytecode;
 
+import norswap.autumn.positions.LineMap;
+import norswap.sigh.LoopOptimization.Temp;
 import norswap.sigh.ast.*;
 import norswap.sigh.interpreter.Constructor;
 import norswap.sigh.scopes.Scope;
@@ -14,10 +16,13 @@ import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -30,8 +35,23 @@ import static org.objectweb.asm.Opcodes.*;
 /**
  * <h2>Limitations</h2>
  * <ul>
- *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function).</li>
+ *     <li>Methods cannot use the variables of a function in which their box is declared.</li>
+ * </ul>
+ *
+ * <h2>Functions and Variables</h2>
+ * <ul>
+ *     <li>Functions are static methods of the container class, and top-level code is in its
+ *     static {@code run} method. Nested functions are lifted to the same level, under a mangled
+ *     name, except that functions nested in a method are instance methods of the method's box.
+ *     See {@link ClosureConversion} for the details.</li>
+ *     <li>Parameters and variables are JVM local variables of the method they are declared in.</li>
+ *     <li>Top-level variables that are used in some function or method are static fields of the
+ *     container class instead, which all functions can access with {@code GETSTATIC} and {@code
+ *     PUTSTATIC}. Top-level variables that aren't (the common case for loop counters and
+ *     temporaries) stay local variables, which the JIT compiler handles better.</li>
+ *     <li>Other variables used by a nested function are passed to it as extra leading parameters.
+ *     If the variable is ever assigned, it is stored in a one-element array (a cell) shared by all
+ *     functions that use it.</li>
  * </ul>
  *
  * <h2>Data Representation</h2>
@@ -45,12 +65,27 @@ import static org.objectweb.asm.Opcodes.*;
  *     arrays, object arrays (e.g. {@code Object[][]}).</li>
  *     <li>Structs: A Java class encoding the structure, in the default package and using the
  *     structure's name.</li>
- *     <li>TODO: Functions: a {@link MethodHandle} to the method that implements the function in
- *     bytecode.</li>
+ *     <li>Boxes: A Java class encoding the box, in the default package and using the box's name.
+ *     Attributes are fields (with default values until assigned), and methods are instance methods.
+ *     Inside methods, references to attributes and methods of the box refer to the receiver
+ *     ({@code this}).</li>
+ *     <li>Functions: a {@link MethodHandle} to the method that implements the function in
+ *     bytecode (bound to the receiver for box methods). Calls to function values go through an
+ *     {@code invokedynamic} instruction, linked by {@link FunctionCallSite}.</li>
  *     <li>Types: the {@link Class} object for the type representation. {@code Type} itself (the
  *     type of types) is represented by {@code Class.class}.</li>
  * </ul>
  *
+ * <h2>Debug Information</h2>
+ * <ul>
+ *     <li>Parameters, variables and the receiver of methods are named in the {@code
+ *     LocalVariableTable} of their method, scoped to their block. The temporaries introduced by
+ *     {@link norswap.sigh.LoopOptimization} are not named.</li>
+ *     <li>If the compiler is given a {@link LineMap} for the source, every statement is mapped to
+ *     its line in the {@code LineNumberTable}, and every class records the name of the line map
+ *     as its {@code SourceFile}, so that stack traces and profilers show script lines.</li>
+ * </ul>
+ *
  * <h2>Useful Links</h2>
  * <ul>
  *     <li>https://en.wikipedia.org/wiki/Java_bytecode_instruction_listings</li>
@@ -72,18 +107,62 @@ public class BytecodeCompiler
     // TODO: prune util classes?
     // TODO: add a top type, and make print take it and convert
     //       (further: is operator, casts, flow casts)
-    // TODO: function objects
     // TODO: simplify with https://asm.ow2.io/javadoc/org/objectweb/asm/commons/GeneratorAdapter.html ?
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Version of the compiler and of the front end it depends on, part of the keys of {@link
+     * norswap.sigh.ScriptCache}. Must be changed whenever a change to the parser, the semantic
+     * analysis or the compiler can change the compiled code, so that stale cache entries are
+     * ignored.
+     */
+    public static final String VERSION = "sigh-4";
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final AtomicLong uniqueCounter = new AtomicLong();
+
+    /**
+     * Returns a (dot-separated) binary name made of the given prefix and of a suffix that is
+     * unique within this JVM, suitable as a main class name for {@link #compile}. This makes the
+     * classes of different compilations distinguishable, e.g. in stack traces and heap dumps.
+     *
+     * <p>The classes for structures and boxes are named after the structures and boxes, so
+     * compilation units that define the same structure must be loaded with different class
+     * loaders (as {@link CompilationResult#load()} does).
+     */
+    public static String uniqueName (String prefix) {
+        return prefix + "$" + uniqueCounter.incrementAndGet();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
 
+    /** Maps the spans of the nodes to source lines, or null to omit line numbers. */
+    private final LineMap lineMap;
+
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Creates a compiler for trees analyzed using {@code reactor}, which does not emit line
+     * numbers.
+     */
     public BytecodeCompiler (Reactor reactor) {
+        this(reactor, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a compiler for trees analyzed using {@code reactor}, which maps statements to source
+     * lines using {@code lineMap} (built from the source of the compiled tree), unless null.
+     */
+    public BytecodeCompiler (Reactor reactor, LineMap lineMap) {
         this.reactor = reactor;
+        this.lineMap = lineMap;
 
         // expressions
         visitor.register(IntLiteralNode.class,           this::intLiteral);
@@ -91,10 +170,12 @@ public class BytecodeCompiler
         visitor.register(StringLiteralNode.class,        this::stringLiteral);
         visitor.register(ReferenceNode.class,            this::reference);
         visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(BoxConstructorNode.class,       this::boxConstructor);
         visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
         visitor.register(ParenthesizedNode.class,        this::parenthesized);
-        visitor.register(FieldAccessNode.class,          this::fieldAccess);
-        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
+        visitor.register(FieldAccessNode.class,          this::read);
+        visitor.register(BoxElementAccessNode.class,     this::read);
+        visitor.register(ArrayAccessNode.class,          this::read);
         visitor.register(FunCallNode.class,              this::funCall);
         visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
         visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
@@ -108,6 +189,9 @@ public class BytecodeCompiler
         visitor.register(ParameterNode.class,            this::parameter);
         visitor.register(FunDeclarationNode.class,       this::funDecl);
         visitor.register(StructDeclarationNode.class,    this::structDecl);
+        visitor.register(BoxDeclarationNode.class,       this::boxDecl);
+        visitor.register(AttributeDeclarationNode.class, this::attrDecl);
+        visitor.register(MethodDeclarationNode.class,    this::methDecl);
 
         // statements
         visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
@@ -128,22 +212,40 @@ public class BytecodeCompiler
     /* Class writer for the class representing the struct currently being emitted. */
     private ClassWriter struct;
 
+    /* Class writer for the class representing the box currently being emitted. */
+    private ClassWriter box;
+
     /** The list of (class name, class writer) pairs for the classes representing the structures
-     * defined in the source unit. */
+     * and boxes defined in the source unit. */
     ArrayList<Pair<String, ClassWriter>> structs = new ArrayList<>();
 
     /* MethodVisitor for current method. */
     private MethodVisitor method;
 
-    /** Maps variables in a scope to a variable index. */
-    private final HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
+    /** Maps the variables and parameters accessible in the current method to their index. */
+    private IdentityHashMap<DeclarationNode, Integer> variables = new IdentityHashMap<>();
 
     /** Counter used to number variables in {@link #variables}. */
     private int variableCounter = 0;
 
+    /**
+     * Maps the temporaries introduced by {@link norswap.sigh.LoopOptimization} to their variable
+     * index. Each temporary is only used in a single method.
+     */
+    private final IdentityHashMap<Temp, Integer> temps = new IdentityHashMap<>();
+
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** The named variables of the current method whose scope is still open, innermost last. */
+    private ArrayList<Local> locals = new ArrayList<>();
+
+    /** The last source line mapped in the current method, or -1. */
+    private int line = -1;
+
+    /** How variables used outside of their function are represented, and how functions are named. */
+    private ClosureConversion closures;
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -174,16 +276,19 @@ public class BytecodeCompiler
     {
         container = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
         container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
+        visitSource(container);
 
         // Top-level code belongs in the run method.
         method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "run",
             "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
         method.visitCode();
         topLevel = true;
+        closures = ClosureConversion.run(reactor, node);
         node.statements.forEach(this::run);
         // append "return null;" since we do not know if top-level code always returns
         loadConstant(method, null);
         method.visitInsn(ARETURN);
+        closeLocals(0);
         method.visitEnd();
         method.visitMaxs(-1, -1);
         container.visitEnd();
@@ -209,16 +314,35 @@ public class BytecodeCompiler
     private Object funDecl (FunDeclarationNode node)
     {
         int surroundingVariableCounter = variableCounter;
+        IdentityHashMap<DeclarationNode, Integer> surroundingVariables = variables;
         MethodVisitor surroundingMethod = method;
         boolean surroundingIsTopLevel = topLevel;
-
-        variableCounter = 0;
+        ArrayList<Local> surroundingLocals = locals;
+        int surroundingLine = line;
+
+        // functions nested in methods are instance methods, with the receiver in variable 0
+        MethodDeclarationNode enclosingMethod = closures.enclosingMethod(node);
+        boolean inMethod = enclosingMethod != null;
+        variableCounter = inMethod ? 1 : 0;
+        variables = new IdentityHashMap<>();
         topLevel = false;
+        locals = new ArrayList<>();
+        line = -1;
+        closures.captures(node).forEach(decl -> registerVariable(decl, capturedAsmType(decl)));
         node.parameters.forEach(this::run);
 
-        String descriptor = methodDescriptor(reactor.get(node, "type"));
-        method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
+        String descriptor = liftedDescriptor(node);
+        method = inMethod
+            ? box.visitMethod(ACC_PUBLIC, closures.name(node), descriptor, null, null)
+            : container.visitMethod(ACC_PUBLIC | ACC_STATIC, closures.name(node), descriptor,
+                null, null);
         method.visitCode();
+        if (inMethod)
+            declareLocal("this", ownerBinaryName(enclosingMethod), 0);
+        closures.captures(node).forEach(decl ->
+            declareLocal(decl.name(), capturedAsmType(decl), variables.get(decl)));
+        node.parameters.forEach(this::declareParameter);
+        node.parameters.forEach(this::moveToCell);
         run(node.block);
 
         // NOTE: The current semantic analysis check guarantee that there is we unconditionally
@@ -229,12 +353,16 @@ public class BytecodeCompiler
         if (descriptor.endsWith("V"))
             method.visitInsn(RETURN);
 
+        closeLocals(0);
         method.visitEnd();
         method.visitMaxs(-1, -1);
 
         method = surroundingMethod;
         variableCounter = surroundingVariableCounter;
+        variables = surroundingVariables;
         topLevel = surroundingIsTopLevel;
+        locals = surroundingLocals;
+        line = surroundingLine;
         return null;
     }
 
@@ -285,7 +413,7 @@ public class BytecodeCompiler
         } else if (compType instanceof TypeType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/types/TypeType");
         } else if (compType instanceof FunType) {
-            throw new UnsupportedOperationException("TODO"); // TODO
+            method.visitTypeInsn(ANEWARRAY, "java/lang/invoke/MethodHandle");
         } else if (compType instanceof NullType) {
             method.visitTypeInsn(ANEWARRAY, "norswap/sigh/bytecode/Null");
         } else if (compType instanceof VoidType || compType instanceof ArrayType) {
@@ -294,6 +422,8 @@ public class BytecodeCompiler
             method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
         } else if (compType instanceof StructType) {
             method.visitTypeInsn(ANEWARRAY, structBinaryName((StructType) compType));
+        } else if (compType instanceof BoxType) {
+            method.visitTypeInsn(ANEWARRAY, boxBinaryName((BoxType) compType));
         }
 
         int i = 0;
@@ -311,6 +441,8 @@ public class BytecodeCompiler
 
     private Object binaryExpression (BinaryExpressionNode node)
     {
+        if (folded(node)) return null;
+
         if (isShortCircuit(node.operator))
             return shortCircuit(node);
 
@@ -367,6 +499,27 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * If the expression was optimized by {@link norswap.sigh.ConstantFolding}, compiles its folded
+     * value or the operand it simplifies to and returns true, otherwise returns false.
+     */
+    private boolean folded (ExpressionNode node)
+    {
+        Object constant = reactor.get(node, "constant");
+        if (constant instanceof Boolean)
+            loadConstant(method, (boolean) constant ? 1 : 0);
+        else if (constant != null)
+            loadConstant(method, constant);
+        else {
+            ExpressionNode simplified = reactor.get(node, "simplified");
+            if (simplified == null) return false;
+            run(simplified);
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private boolean enablesPromotion (BinaryOperator op) {
         return isArithmetic(op) || isComparison(op) || isEquality(op);
     }
@@ -429,7 +582,7 @@ public class BytecodeCompiler
             invokeStatic(method, String.class, "valueOf", Object.class);
         } else if (type instanceof FunType) {
             throw new UnsupportedOperationException("TODO"); // TODO
-        } else if (type instanceof StructType) {
+        } else if (type instanceof StructType || type instanceof BoxType) {
             // String.valueOf -> Object#toString (or override)
             invokeStatic(method, String.class, "valueOf", Object.class);
         } else {
@@ -498,6 +651,8 @@ public class BytecodeCompiler
 
     private Object unaryExpression (UnaryExpressionNode node)
     {
+        if (folded(node)) return null;
+
         // there is only NOT
         assert node.operator == UnaryOperator.NOT;
 
@@ -515,6 +670,59 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Compiles an array access, field access or box element access, using or filling the
+     * temporary assigned to it by {@link norswap.sigh.LoopOptimization}, if any.
+     */
+    private Object read (ExpressionNode node)
+    {
+        Temp reused = reactor.get(node, "reuses");
+        if (reused != null) {
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), temps.get(reused));
+            return null;
+        }
+
+        readUncached(node);
+        Temp defined = reactor.get(node, "defines");
+        if (defined != null) {
+            dup(reactor.get(node, "type"));
+            storeTemp(node, defined);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void readUncached (ExpressionNode node)
+    {
+        if (node instanceof ArrayAccessNode)
+            arrayAccess((ArrayAccessNode) node);
+        else if (node instanceof FieldAccessNode)
+            fieldAccess((FieldAccessNode) node);
+        else
+            boxElementAccess((BoxElementAccessNode) node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Stores the value of the read at the top of the stack into the given temporary, allocating a
+     * variable for it if needed.
+     */
+    private void storeTemp (ExpressionNode node, Temp temp)
+    {
+        org.objectweb.asm.Type type = nodeAsmType(node);
+        Integer index = temps.get(temp);
+        if (index == null) {
+            index = variableCounter;
+            variableCounter += type.getSize();
+            temps.put(temp, index);
+        }
+        method.visitVarInsn(type.getOpcode(ISTORE), index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object arrayAccess (ArrayAccessNode node)
     {
         run(node.array);
@@ -530,34 +738,75 @@ public class BytecodeCompiler
     {
         FunType funType = reactor.get(node.function, "type");
 
-        // The function part can either be a reference, in which case we emit a call,
-        // or a more complex expression, which will evaluate to a lambda.
+        // The function part can either be a reference to a declared function, a constructor or a
+        // method, in which case we emit a direct call, or a more complex expression, which will
+        // evaluate to a function value (a method handle).
+
+        DeclarationNode decl = node.function instanceof ReferenceNode
+            ? reactor.get(node.function, "decl")
+            : null;
 
-        if (node.function instanceof ReferenceNode) {
-            DeclarationNode decl = reactor.get(node.function, "decl");
+        if (decl != null && !(decl instanceof VarDeclarationNode || decl instanceof ParameterNode)) {
             if (decl instanceof SyntheticDeclarationNode) {
                 return builtin(funType, decl.name(), node.arguments);
             }
             else if (decl instanceof FunDeclarationNode) {
+                FunDeclarationNode fun = (FunDeclarationNode) decl;
+                MethodDeclarationNode enclosingMethod = closures.enclosingMethod(fun);
+                if (enclosingMethod != null)
+                    method.visitVarInsn(ALOAD, 0);
+                loadCaptures(fun);
                 runArguments(funType, node.arguments);
-                method.visitMethodInsn(INVOKESTATIC, containerName,
-                    decl.name(), methodDescriptor(funType), false);
+                if (enclosingMethod == null)
+                    method.visitMethodInsn(INVOKESTATIC, containerName,
+                        closures.name(fun), liftedDescriptor(fun), false);
+                else
+                    method.visitMethodInsn(INVOKEVIRTUAL, ownerBinaryName(enclosingMethod),
+                        closures.name(fun), liftedDescriptor(fun), false);
             }
-            else { // TODO
-                throw new UnsupportedOperationException("variables or parameters containing a function value");
+            else if (decl instanceof MethodDeclarationNode) {
+                // call from a method to another method of the same box
+                method.visitVarInsn(ALOAD, 0);
+                runArguments(funType, node.arguments);
+                method.visitMethodInsn(INVOKEVIRTUAL, ownerBinaryName(decl),
+                    decl.name(), methodDescriptor(funType), false);
             }
+            else
+                throw new Error("unexpected function declaration: " + decl);
         }
         else if (node.function instanceof ConstructorNode) {
-            StructDeclarationNode decl = reactor.get(((ConstructorNode) node.function).ref, "decl");
-            String binaryName = structBinaryName(reactor.get(decl, "declared"));
+            StructDeclarationNode struct = reactor.get(((ConstructorNode) node.function).ref, "decl");
+            String binaryName = structBinaryName(reactor.get(struct, "declared"));
             method.visitTypeInsn(NEW, binaryName);
             method.visitInsn(DUP);
             runArguments(funType, node.arguments);
             String descriptor = methodDescriptor(VoidType.INSTANCE, funType.paramTypes);
             method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", descriptor, false);
         }
-        else
-            throw new UnsupportedOperationException("complex expression evaluating to a function value");
+        else if (node.function instanceof BoxConstructorNode) {
+            BoxDeclarationNode box = reactor.get(((BoxConstructorNode) node.function).ref, "decl");
+            String binaryName = boxBinaryName(reactor.get(box, "declared"));
+            method.visitTypeInsn(NEW, binaryName);
+            method.visitInsn(DUP);
+            method.visitMethodInsn(INVOKESPECIAL, binaryName, "<init>", "()V", false);
+        }
+        else if (node.function instanceof BoxElementAccessNode) {
+            BoxElementAccessNode function = (BoxElementAccessNode) node.function;
+            run(function.stem);
+            runArguments(funType, node.arguments);
+            BoxType boxType = reactor.get(function.stem, "type");
+            method.visitMethodInsn(INVOKEVIRTUAL, boxBinaryName(boxType),
+                function.elementName, methodDescriptor(funType), false);
+        }
+        else {
+            // function value: call the method handle through an inline-caching call site
+            run(node.function);
+            runArguments(funType, node.arguments);
+            method.visitInvokeDynamicInsn("call",
+                "(" + fieldDescriptor(funType) + methodDescriptor(funType).substring(1),
+                staticHandle(FunctionCallSite.class, "bootstrap",
+                    MethodHandles.Lookup.class, String.class, MethodType.class));
+        }
 
         return null;
     }
@@ -593,6 +842,7 @@ public class BytecodeCompiler
     // ---------------------------------------------------------------------------------------------
 
     private Object expressionStmt (ExpressionStatementNode node) {
+        lineNumber(node);
         run(node.expression);
         if (node.expression instanceof AssignmentNode)
             pop(reactor.get(node.expression, "type"));
@@ -606,6 +856,7 @@ public class BytecodeCompiler
     // ---------------------------------------------------------------------------------------------
 
     private Object returnStmt (ReturnNode node) {
+        lineNumber(node);
         if (node.expression == null) {
             if (topLevel) {
                 loadConstant(method, null);
@@ -637,7 +888,9 @@ public class BytecodeCompiler
     // ---------------------------------------------------------------------------------------------
 
     private Object block (BlockNode node) {
+        int outerLocals = locals.size();
         node.statements.forEach(this::run);
+        closeLocals(outerLocals);
         return null;
     }
 
@@ -648,6 +901,7 @@ public class BytecodeCompiler
         Label elseLabel = new Label();
         Label endLabel = new Label();
         boolean hasElse = node.falseStatement != null;
+        lineNumber(node);
         run(node.condition);
         method.visitJumpInsn(IFEQ, hasElse ? elseLabel : endLabel);
         run(node.trueStatement);
@@ -664,6 +918,14 @@ public class BytecodeCompiler
 
     private Object whileStmt (WhileNode node)
     {
+        lineNumber(node);
+        List<ExpressionNode> hoisted = reactor.get(node, "hoisted");
+        if (hoisted != null)
+            for (ExpressionNode read: hoisted) {
+                readUncached(read);
+                storeTemp(read, reactor.get(read, "reuses"));
+            }
+
         Label startLabel = new Label();
         Label endLabel = new Label();
         method.visitLabel(startLabel);
@@ -681,25 +943,39 @@ public class BytecodeCompiler
     {
         DeclarationNode decl = reactor.get(node, "decl");
 
-        // TODO distinguish local variables from closures
-        if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), varIndex(node));
+        if (closures.isGlobal(decl)) {
+            method.visitFieldInsn(GETSTATIC, containerName, decl.name(), nodeFieldDescriptor(decl));
+        }
+        else if (closures.isCell(decl)) {
+            method.visitVarInsn(ALOAD, variables.get(decl));
+            method.visitInsn(ICONST_0);
+            method.visitInsn(nodeAsmType(decl).getOpcode(IALOAD));
+        }
+        else if (decl instanceof VarDeclarationNode || decl instanceof ParameterNode) {
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), variables.get(decl));
+        }
+        else if (decl instanceof AttributeDeclarationNode) {
+            // only visible in the methods of the box: an attribute of the receiver
+            method.visitVarInsn(ALOAD, 0);
+            method.visitFieldInsn(GETFIELD, ownerBinaryName(decl), decl.name(),
+                nodeFieldDescriptor(decl));
         }
-        else if (decl instanceof StructDeclarationNode) {
+        else if (decl instanceof StructDeclarationNode || decl instanceof BoxDeclarationNode) {
             // NOTE: This is not used when the reference is part of a constructor call, the
             // resolution is handled in #funCall.
             org.objectweb.asm.Type asmType = asmType(reactor.get(decl, "declared"));
             method.visitLdcInsn(asmType); // class constant for emitted type
         }
+        else if (decl instanceof MethodDeclarationNode) {
+            // only visible in the methods of the box: a method of the receiver
+            // NOTE: This is not used when the reference is part of a function call.
+            method.visitVarInsn(ALOAD, 0);
+            boundMethodHandle(decl);
+        }
         else if (decl instanceof FunDeclarationNode) {
             // NOTE: This is not used when the reference is part of a function call, the resolution
             // is handled in #funCall.
-
-            // TODO proper handling/representation of function object
-            //  For now I use a method handle. There is no way to use it in the language however.
-            method.visitLdcInsn(new Handle(
-                H_INVOKESTATIC, containerName, decl.name(),
-                methodDescriptor(reactor.get(decl, "type")), false));
+            functionHandle((FunDeclarationNode) decl);
         }
         else if (decl instanceof SyntheticDeclarationNode) {
             switch (decl.name()) {
@@ -722,7 +998,6 @@ public class BytecodeCompiler
                     method.visitLdcInsn(org.objectweb.asm.Type.getType(Class.class));
                     break;
                 case "print":
-                    // TODO cf FunDeclarationNode case above
                     method.visitLdcInsn(staticHandle(SighRuntime.class, "print", String.class));
                     break;
                 case "true":  loadConstant(method, 1);      break;
@@ -739,13 +1014,35 @@ public class BytecodeCompiler
 
     private Object varDecl (VarDeclarationNode node)
     {
+        lineNumber(node);
+        if (closures.isGlobal(node)) {
+            String descriptor = nodeFieldDescriptor(node);
+            container.visitField(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
+            run(node.initializer);
+            implicitConversion(node, node.initializer);
+            method.visitFieldInsn(PUTSTATIC, containerName, node.name, descriptor);
+            return null;
+        }
+
+        if (closures.isCell(node)) {
+            int index = registerVariable(node, capturedAsmType(node));
+            newCell(node);
+            method.visitInsn(DUP);
+            method.visitInsn(ICONST_0);
+            run(node.initializer);
+            implicitConversion(node, node.initializer);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+            method.visitVarInsn(ASTORE, index);
+            declareLocal(node.name, capturedAsmType(node), index);
+            return null;
+        }
+
         org.objectweb.asm.Type type = nodeAsmType(node);
         int index = registerVariable(node, type);
         run(node.initializer);
         implicitConversion(node, node.initializer);
         method.visitVarInsn(type.getOpcode(ISTORE), index);
-        // LATER: method.visitLocalVariable for debug information
-        // https://stackoverflow.com/questions/28633731
+        declareLocal(node.name, type, index);
         return null;
     }
 
@@ -760,12 +1057,41 @@ public class BytecodeCompiler
 
     public Object assignment (AssignmentNode node)
     {
-        if (node.left instanceof ReferenceNode) {
-            ReferenceNode left = (ReferenceNode) node.left;
+        if (node.left instanceof ReferenceNode
+                && reactor.get(node.left, "decl") instanceof AttributeDeclarationNode) {
+            // only visible in the methods of the box: an attribute of the receiver
+            DeclarationNode decl = reactor.get(node.left, "decl");
+            method.visitVarInsn(ALOAD, 0);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x1(type);
+            method.visitFieldInsn(PUTFIELD, ownerBinaryName(decl), decl.name(),
+                nodeFieldDescriptor(decl));
+        }
+        else if (node.left instanceof ReferenceNode
+                && closures.isGlobal(reactor.get(node.left, "decl"))) {
+            DeclarationNode decl = reactor.get(node.left, "decl");
             run(node.right);
             Type type = implicitConversion(node, node.right);
             dup(type);
-            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE), varIndex(left));
+            method.visitFieldInsn(PUTSTATIC, containerName, decl.name(), nodeFieldDescriptor(decl));
+        }
+        else if (node.left instanceof ReferenceNode
+                && closures.isCell(reactor.get(node.left, "decl"))) {
+            DeclarationNode decl = reactor.get(node.left, "decl");
+            method.visitVarInsn(ALOAD, variables.get(decl));
+            method.visitInsn(ICONST_0);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x2(type);
+            method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        }
+        else if (node.left instanceof ReferenceNode) {
+            DeclarationNode decl = reactor.get(node.left, "decl");
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup(type);
+            method.visitVarInsn(nodeAsmType(node).getOpcode(ISTORE), variables.get(decl));
         }
         else if (node.left instanceof ArrayAccessNode) {
             ArrayAccessNode left = (ArrayAccessNode) node.left;
@@ -788,6 +1114,17 @@ public class BytecodeCompiler
             method.visitFieldInsn(PUTFIELD, structBinaryName(structType), left.fieldName,
                 fieldDescriptor(fieldType));
         }
+        else if (node.left instanceof BoxElementAccessNode) {
+            BoxElementAccessNode left = (BoxElementAccessNode) node.left;
+            run(left.stem);
+            run(node.right);
+            Type type = implicitConversion(node, node.right);
+            dup_x1(type);
+            BoxType boxType = reactor.get(left.stem, "type");
+            Type attributeType = reactor.get(node, "type");
+            method.visitFieldInsn(PUTFIELD, boxBinaryName(boxType), left.elementName,
+                fieldDescriptor(attributeType));
+        }
         return null;
     }
 
@@ -798,6 +1135,7 @@ public class BytecodeCompiler
         String binaryName = node.name;
         struct = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
         struct.visit(V1_8, ACC_PUBLIC, binaryName, null, "java/lang/Object", null);
+        visitSource(struct);
         node.fields.forEach(this::run);
 
         // generate constructor
@@ -838,7 +1176,12 @@ public class BytecodeCompiler
 
     private Object fieldAccess (FieldAccessNode node) {
         run(node.stem);
-        String binaryName = asmType(reactor.get(node.stem, "type")).getClassName();
+        Type stemType = reactor.get(node.stem, "type");
+        if (stemType instanceof ArrayType) {
+            arrayLength(); // only field on arrays
+            return null;
+        }
+        String binaryName = asmType(stemType).getClassName();
         method.visitFieldInsn(GETFIELD, binaryName, node.fieldName, nodeFieldDescriptor(node));
         return null;
     }
@@ -850,6 +1193,116 @@ public class BytecodeCompiler
         return null;
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    private Object boxDecl (BoxDeclarationNode node)
+    {
+        String binaryName = boxBinaryName(reactor.get(node, "declared"));
+        box = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        box.visit(V1_8, ACC_PUBLIC, binaryName, null, "java/lang/Object", null);
+        visitSource(box);
+        node.attributes.forEach(this::run);
+
+        // generate constructor: the attributes keep their default values until assigned
+        MethodVisitor init = box.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0); // this
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(-1,-1);
+        init.visitEnd();
+
+        node.methods.forEach(this::run);
+
+        box.visitEnd();
+        structs.add(new Pair<>(binaryName, box));
+        box = null;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object attrDecl (AttributeDeclarationNode node)
+    {
+        box.visitField(ACC_PUBLIC, node.name, nodeFieldDescriptor(node), null, null);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object methDecl (MethodDeclarationNode node)
+    {
+        int surroundingVariableCounter = variableCounter;
+        IdentityHashMap<DeclarationNode, Integer> surroundingVariables = variables;
+        MethodVisitor surroundingMethod = method;
+        boolean surroundingIsTopLevel = topLevel;
+
+        ArrayList<Local> surroundingLocals = locals;
+        int surroundingLine = line;
+
+        variableCounter = 1; // variable 0 holds the receiver (this)
+        variables = new IdentityHashMap<>();
+        topLevel = false;
+        locals = new ArrayList<>();
+        line = -1;
+        node.parameters.forEach(this::run);
+
+        String descriptor = methodDescriptor(reactor.get(node, "type"));
+        method = box.visitMethod(ACC_PUBLIC, node.name, descriptor, null, null);
+        method.visitCode();
+        declareLocal("this", ownerBinaryName(node), 0);
+        node.parameters.forEach(this::declareParameter);
+        node.parameters.forEach(this::moveToCell);
+        run(node.block);
+
+        // See the note in #funDecl.
+        if (descriptor.endsWith("V"))
+            method.visitInsn(RETURN);
+
+        closeLocals(0);
+        method.visitEnd();
+        method.visitMaxs(-1, -1);
+
+        method = surroundingMethod;
+        variableCounter = surroundingVariableCounter;
+        variables = surroundingVariables;
+        topLevel = surroundingIsTopLevel;
+        locals = surroundingLocals;
+        line = surroundingLine;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object boxElementAccess (BoxElementAccessNode node)
+    {
+        run(node.stem);
+        Type stemType = reactor.get(node.stem, "type");
+        if (stemType instanceof ArrayType) {
+            arrayLength(); // only element on arrays
+            return null;
+        }
+
+        BoxType boxType = (BoxType) stemType;
+        int index = reactor.get(node, "fieldIndex");
+        if (index >= boxType.node.attributes.size()) { // methods come after the attributes
+            // NOTE: This is not used when the access is part of a method call.
+            boundMethodHandle(boxType.node.methods.get(index - boxType.node.attributes.size()));
+            return null;
+        }
+
+        method.visitFieldInsn(GETFIELD, boxBinaryName(boxType), node.elementName,
+            nodeFieldDescriptor(node));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object boxConstructor (BoxConstructorNode node) {
+        // not needed - handled in funCall instead
+        return null;
+    }
+
     // =============================================================================================
     // region [Utilities]
     // =============================================================================================
@@ -873,6 +1326,45 @@ public class BytecodeCompiler
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the slash-separated binary name of the class of the box that declares the given
+     * attribute or method.
+     */
+    private String ownerBinaryName (DeclarationNode member)
+    {
+        Scope scope = reactor.get(member, "scope");
+        if (member instanceof MethodDeclarationNode)
+            scope = scope.parent; // the scope of a method is the one it introduces
+        return boxBinaryName(reactor.get(scope.node, "declared"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the box instance at the top of the stack by a method handle for the given method
+     * of the box, bound to that instance.
+     */
+    private void boundMethodHandle (DeclarationNode decl)
+    {
+        method.visitLdcInsn(new Handle(H_INVOKEVIRTUAL, ownerBinaryName(decl), decl.name(),
+            methodDescriptor(reactor.get(decl, "type")), false));
+        method.visitInsn(SWAP);
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "bindTo",
+            "(Ljava/lang/Object;)Ljava/lang/invoke/MethodHandle;", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the array at the top of the stack by its length, as a {@code long}.
+     */
+    private void arrayLength () {
+        method.visitInsn(ARRAYLENGTH);
+        method.visitInsn(I2L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Declares a variable introduce by the given declaration (which must be a {@link
      * VarDeclarationNode} or {@link ParameterNode}, and returns its index in its JVM method
@@ -891,17 +1383,244 @@ public class BytecodeCompiler
     private int registerVariable (DeclarationNode node, org.objectweb.asm.Type type) {
         int index = variableCounter;
         variableCounter += type.getSize();
-        variables.put(new Pair<>(reactor.get(node, "scope"), node.name()), index);
+        variables.put(node, index);
         return index;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the variable index for the given reference, which must be a reference to a variable.
+     * A named variable of the current method, whose scope starts at {@link #start}.
      */
-    private int varIndex (ReferenceNode node) {
-        return variables.get(new Pair<>((Scope) reactor.get(node, "scope"), node.name));
+    private static final class Local
+    {
+        final String name;
+        final String descriptor;
+        final int index;
+        final Label start;
+
+        Local (String name, String descriptor, int index, Label start) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.index = index;
+            this.start = start;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Names the variable with the given index in the debug information, from the current position
+     * until the scope is closed by {@link #closeLocals}.
+     */
+    private void declareLocal (String name, org.objectweb.asm.Type type, int index) {
+        Label start = new Label();
+        method.visitLabel(start);
+        locals.add(new Local(name, type.getDescriptor(), index, start));
+    }
+
+    /** Like {@link #declareLocal(String, org.objectweb.asm.Type, int)}, for a class instance. */
+    private void declareLocal (String name, String binaryName, int index) {
+        declareLocal(name, org.objectweb.asm.Type.getObjectType(binaryName), index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declareParameter (ParameterNode node) {
+        declareLocal(node.name, nodeAsmType(node), variables.get(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Ends the scope of the variables declared since {@link #locals} had the given size, at the
+     * current position.
+     */
+    private void closeLocals (int size)
+    {
+        if (locals.size() == size) return;
+        Label end = new Label();
+        method.visitLabel(end);
+        List<Local> closed = locals.subList(size, locals.size());
+        for (Local local: closed)
+            method.visitLocalVariable(local.name, local.descriptor, null,
+                local.start, end, local.index);
+        closed.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps the code emitted from now on to the line of the given statement, if the compiler has a
+     * line map and the line is not already the current one.
+     */
+    private void lineNumber (StatementNode node)
+    {
+        if (lineMap == null) return;
+        int line = lineMap.lineFrom(node.span.start);
+        if (line == this.line) return;
+        this.line = line;
+        Label label = new Label();
+        method.visitLabel(label);
+        method.visitLineNumber(line, label);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records the name of the line map as the source file of the class, if the compiler has one.
+     */
+    private void visitSource (ClassWriter writer) {
+        if (lineMap != null)
+            writer.visitSource(lineMap.name(), null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If the given parameter is a cell, moves its value to a new cell, stored in a new variable.
+     */
+    private void moveToCell (ParameterNode node)
+    {
+        if (!closures.isCell(node)) return;
+        newCell(node);
+        method.visitInsn(DUP);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(nodeAsmType(node).getOpcode(ILOAD), variables.get(node));
+        method.visitInsn(nodeAsmType(node).getOpcode(IASTORE));
+        int index = registerVariable(node, capturedAsmType(node));
+        method.visitVarInsn(ASTORE, index);
+        declareLocal(node.name, capturedAsmType(node), index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a new cell (one-element array) for the given variable or parameter on the stack.
+     */
+    private void newCell (DeclarationNode node)
+    {
+        loadConstant(method, 1);
+        Type type = reactor.get(node, "type");
+        if (type instanceof IntType)
+            method.visitIntInsn(NEWARRAY, T_LONG);
+        else if (type instanceof FloatType)
+            method.visitIntInsn(NEWARRAY, T_DOUBLE);
+        else if (type instanceof BoolType)
+            method.visitIntInsn(NEWARRAY, T_BOOLEAN);
+        else
+            method.visitTypeInsn(ANEWARRAY, nodeAsmType(node).getInternalName());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the ASM type of the given captured variable or parameter, as passed to the functions
+     * that capture it: either its value or its cell.
+     */
+    private org.objectweb.asm.Type capturedAsmType (DeclarationNode node) {
+        return org.objectweb.asm.Type.getType(capturedDescriptor(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the given captured variable or parameter, as passed to the
+     * functions that capture it: either its value or its cell.
+     */
+    private String capturedDescriptor (DeclarationNode node) {
+        String descriptor = nodeFieldDescriptor(node);
+        return closures.isCell(node) ? "[" + descriptor : descriptor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the descriptor of the JVM method that implements the given function: the captured
+     * variables come first, followed by the declared parameters.
+     */
+    private String liftedDescriptor (FunDeclarationNode fun)
+    {
+        StringBuilder b = new StringBuilder("(");
+        closures.captures(fun).forEach(decl -> b.append(capturedDescriptor(decl)));
+        return b.append(methodDescriptor(reactor.get(fun, "type")).substring(1)).toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes the variables captured by the given function (their values or their cells) on the
+     * stack, as expected by the method that implements it.
+     */
+    private void loadCaptures (FunDeclarationNode fun) {
+        for (DeclarationNode decl: closures.captures(fun))
+            method.visitVarInsn(capturedAsmType(decl).getOpcode(ILOAD), variables.get(decl));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes a method handle for the given function. For functions nested in a method, the handle
+     * is bound to the receiver, and the captured variables are bound to the handle.
+     */
+    private void functionHandle (FunDeclarationNode fun)
+    {
+        MethodDeclarationNode enclosingMethod = closures.enclosingMethod(fun);
+        if (enclosingMethod == null) {
+            method.visitLdcInsn(new Handle(H_INVOKESTATIC, containerName, closures.name(fun),
+                liftedDescriptor(fun), false));
+        } else {
+            method.visitLdcInsn(new Handle(H_INVOKEVIRTUAL, ownerBinaryName(enclosingMethod),
+                closures.name(fun), liftedDescriptor(fun), false));
+            method.visitVarInsn(ALOAD, 0);
+            method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "bindTo",
+                "(Ljava/lang/Object;)Ljava/lang/invoke/MethodHandle;", false);
+        }
+
+        if (closures.captures(fun).isEmpty())
+            return;
+
+        // MethodHandles.insertArguments(handle, 0, new Object[] { captures... })
+        loadConstant(method, 0);
+        loadConstant(method, closures.captures(fun).size());
+        method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        int i = 0;
+        for (DeclarationNode decl: closures.captures(fun)) {
+            method.visitInsn(DUP);
+            loadConstant(method, i++);
+            org.objectweb.asm.Type type = capturedAsmType(decl);
+            method.visitVarInsn(type.getOpcode(ILOAD), variables.get(decl));
+            box(type);
+            method.visitInsn(AASTORE);
+        }
+        method.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "insertArguments",
+            "(Ljava/lang/invoke/MethodHandle;I[Ljava/lang/Object;)Ljava/lang/invoke/MethodHandle;",
+            false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Boxes the value at the top of the stack if it has a primitive type.
+     */
+    private void box (org.objectweb.asm.Type type)
+    {
+        switch (type.getSort()) {
+            case org.objectweb.asm.Type.LONG:
+                method.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf",
+                    "(J)Ljava/lang/Long;", false);
+                break;
+            case org.objectweb.asm.Type.DOUBLE:
+                method.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf",
+                    "(D)Ljava/lang/Double;", false);
+                break;
+            case org.objectweb.asm.Type.BOOLEAN:
+                method.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf",
+                    "(Z)Ljava/lang/Boolean;", false);
+                break;
+            default:
+                break;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
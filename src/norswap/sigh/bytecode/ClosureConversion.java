@@ -0,0 +1,280 @@
+package norswap.sigh.bytecode;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.Scope;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * A pass run by {@link BytecodeCompiler} before compiling a tree, which determines how the
+ * variables that are used outside of the function that declares them are represented, so that
+ * every function can be compiled to a plain JVM method (lambda lifting).
+ *
+ * <p>Top-level variables (declared in the root scope) that are used in some function or method
+ * are {@link #isGlobal globals}: static fields of the container class.
+ *
+ * <p>Other variables (and parameters) that are used in a nested function are {@link #captures
+ * captured} by that function: they become additional leading parameters of the method that
+ * implements it. A function also captures the variables captured by the functions it references
+ * and that it doesn't declare itself, so that it can supply them when calling these functions.
+ *
+ * <p>Captured variables that are assigned anywhere are {@link #isCell cells}: they are stored in
+ * a one-element array (of the variable's representation type) allocated by the declaring
+ * function, and the array is passed along instead of the value, so that all functions share
+ * the same variable.
+ *
+ * <p>The pass also chooses the {@link #name JVM method name} of each function, since nested
+ * functions can share the same name: functions declared in the root scope keep their name, the
+ * others are prefixed with the name of their enclosing function (e.g. {@code array_add$add}).
+ * Functions nested in a method are {@link #enclosingMethod compiled} to instance methods of the
+ * box, so that they can access the receiver.
+ *
+ * <p>Methods cannot capture variables (which is only an issue for boxes declared inside a
+ * function): this is reported as an {@link UnsupportedOperationException}.
+ */
+final class ClosureConversion
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** Maps variables, parameters and functions to their enclosing function, method or root. */
+    private final IdentityHashMap<SighNode, SighNode> owners = new IdentityHashMap<>();
+
+    private final Set<DeclarationNode> globals = newIdentitySet();
+    private final Set<DeclarationNode> assigned = newIdentitySet();
+    private final Set<DeclarationNode> cells = newIdentitySet();
+
+    private final IdentityHashMap<FunDeclarationNode, LinkedHashSet<DeclarationNode>> captures
+        = new IdentityHashMap<>();
+
+    /** Functions referenced in the body of each function (excluding nested functions). */
+    private final IdentityHashMap<FunDeclarationNode, List<FunDeclarationNode>> references
+        = new IdentityHashMap<>();
+
+    private final IdentityHashMap<FunDeclarationNode, String> names = new IdentityHashMap<>();
+    private final Set<String> usedNames = new HashSet<>();
+
+    private final IdentityHashMap<FunDeclarationNode, MethodDeclarationNode> enclosingMethods
+        = new IdentityHashMap<>();
+
+    /** Stack of the functions, methods and root enclosing the current node during the walk. */
+    private final ArrayDeque<SighNode> stack = new ArrayDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ClosureConversion (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static <T> Set<T> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the pass over the given tree, whose semantic analysis must have completed successfully
+     * using {@code reactor}.
+     */
+    static ClosureConversion run (Reactor reactor, RootNode root)
+    {
+        ClosureConversion conversion = new ClosureConversion(reactor);
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(RootNode.class,              PRE_VISIT,  conversion::root);
+        walker.register(FunDeclarationNode.class,    PRE_VISIT,  conversion::funDecl);
+        walker.register(MethodDeclarationNode.class, PRE_VISIT,  conversion.stack::push);
+        walker.register(VarDeclarationNode.class,    PRE_VISIT,  conversion::declare);
+        walker.register(ParameterNode.class,         PRE_VISIT,  conversion::declare);
+        walker.register(ReferenceNode.class,         PRE_VISIT,  conversion::reference);
+        walker.register(AssignmentNode.class,        PRE_VISIT,  conversion::assignment);
+
+        walker.register(FunDeclarationNode.class,    POST_VISIT, node -> conversion.stack.pop());
+        walker.register(MethodDeclarationNode.class, POST_VISIT, node -> conversion.stack.pop());
+
+        walker.registerFallback(PRE_VISIT,  node -> {});
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+
+        conversion.propagateCaptures();
+        return conversion;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void root (RootNode node)
+    {
+        stack.push(node);
+        // reserve the names of the functions declared in the root scope
+        for (StatementNode statement: node.statements)
+            if (statement instanceof FunDeclarationNode)
+                usedNames.add(((FunDeclarationNode) statement).name);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funDecl (FunDeclarationNode node)
+    {
+        SighNode owner = stack.peek();
+        owners.put(node, owner);
+        Scope scope = reactor.get(node, "scope"); // the scope introduced by the function
+
+        if (scope.parent instanceof RootScope)
+            names.put(node, node.name);
+        else {
+            String prefix = owner instanceof RootNode ? "" : nameOf(owner) + "$";
+            String name = prefix + node.name;
+            for (int i = 2; !usedNames.add(name); ++i)
+                name = prefix + node.name + "$" + i;
+            names.put(node, name);
+        }
+
+        if (owner instanceof MethodDeclarationNode)
+            enclosingMethods.put(node, (MethodDeclarationNode) owner);
+        else if (owner instanceof FunDeclarationNode && enclosingMethods.containsKey(owner))
+            enclosingMethods.put(node, enclosingMethods.get(owner));
+
+        captures.put(node, new LinkedHashSet<>());
+        references.put(node, new ArrayList<>());
+        stack.push(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private String nameOf (SighNode owner) {
+        return owner instanceof FunDeclarationNode
+            ? names.get(owner)
+            : ((MethodDeclarationNode) owner).name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node) {
+        owners.put(node, stack.peek());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        DeclarationNode decl = reactor.get(node, "decl");
+        SighNode current = stack.peek();
+
+        if (decl instanceof FunDeclarationNode && current instanceof FunDeclarationNode) {
+            references.get(current).add((FunDeclarationNode) decl);
+            return;
+        }
+
+        if (!(decl instanceof VarDeclarationNode || decl instanceof ParameterNode))
+            return;
+
+        SighNode owner = owners.get(decl);
+        if (owner == current)
+            return;
+
+        if (owner instanceof RootNode && reactor.get(decl, "scope") instanceof RootScope)
+            globals.add(decl);
+        else if (current instanceof FunDeclarationNode)
+            captures.get(current).add(decl);
+        else
+            throw new UnsupportedOperationException(
+                "method capturing a local variable: " + node.name);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        if (node.left instanceof ReferenceNode)
+            assigned.add(reactor.get(node.left, "decl"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the captures of the functions referenced by each function to the captures of that
+     * function (except those it declares), until a fixed point is reached. Then determines the
+     * cells.
+     */
+    private void propagateCaptures ()
+    {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunDeclarationNode fun: captures.keySet())
+                for (FunDeclarationNode referenced: references.get(fun))
+                    for (DeclarationNode decl: new ArrayList<>(captures.get(referenced)))
+                        if (owners.get(decl) != fun && captures.get(fun).add(decl))
+                            changed = true;
+        }
+
+        for (LinkedHashSet<DeclarationNode> captured: captures.values())
+            for (DeclarationNode decl: captured)
+                if (assigned.contains(decl))
+                    cells.add(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given declaration is a top-level variable represented as a static field.
+     */
+    boolean isGlobal (DeclarationNode decl) {
+        return globals.contains(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given variable or parameter is stored in a one-element array.
+     */
+    boolean isCell (DeclarationNode decl) {
+        return cells.contains(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The variables and parameters captured by the given function, in the order in which they are
+     * passed to the method that implements it.
+     */
+    Set<DeclarationNode> captures (FunDeclarationNode fun) {
+        return captures.get(fun);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The name of the JVM method that implements the given function.
+     */
+    String name (FunDeclarationNode fun) {
+        return names.get(fun);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the method that (transitively) encloses the given function, or null if there are
+     * none. Functions nested in a method are instance methods of the method's box.
+     */
+    MethodDeclarationNode enclosingMethod (FunDeclarationNode fun) {
+        return enclosingMethods.get(fun);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,14 +1,35 @@
 package norswap.sigh.bytecode;
 
 import norswap.utils.exceptions.NoStackException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 /**
  * Represents the result of compiling a single source unit (~ a source file, but it could
  * be programatically generated instead of being read form a file).
  *
  * <p>This result is a set of {@link GeneratedClass} corresponding to the emitted JVM classes.
+ *
+ * <p>The classes can be loaded in the current JVM right away ({@link #load}), or written to a
+ * directory ({@link #writeClasses}) or a jar ({@link #writeJar}) to be loaded later with {@link
+ * #loadCompiled}, without having to parse, analyze and compile the source again. Compiled classes
+ * refer to a few classes of this package at run time ({@link Null}, {@link FunctionCallSite}, ...),
+ * so the Sigh jar must be on the class path when running them.
  */
 public final class CompilationResult
 {
@@ -47,11 +68,124 @@ public final class CompilationResult
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Load the generated class in the current JVM (using {@link ByteArrayClassLoader#INSTANCE} and
+     * Load the generated classes in the current JVM using a new {@link ByteArrayClassLoader} and
      * return the {@link Class} object for {@link #mainClass}.
+     *
+     * <p>The classes are unloaded once the returned class (and the other loaded classes, their
+     * instances and the loader) are not reachable anymore. This can be called multiple times, each
+     * call loading a separate copy of the classes.
      */
     public Class<?> load() {
-        return load(ByteArrayClassLoader.INSTANCE);
+        return load(new ByteArrayClassLoader());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns all the generated classes: {@link #mainClass} followed by the {@link #structures}.
+     */
+    public List<GeneratedClass> classes () {
+        ArrayList<GeneratedClass> classes = new ArrayList<>(structures.size() + 1);
+        classes.add(mainClass);
+        classes.addAll(structures);
+        return classes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the generated classes as class files in the given directory (which is created if
+     * needed), laid out in subdirectories according to their package, as expected on a class path.
+     */
+    public void writeClasses (Path directory) throws IOException
+    {
+        for (GeneratedClass klass: classes()) {
+            Path file = directory.resolve(klass.slashBinaryName() + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, klass.bytes());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the generated classes to a jar file at the given path (replacing any existing file),
+     * whose manifest names {@link #mainClass} as the main class.
+     */
+    public void writeJar (Path jar) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass.binaryName());
+
+        try (OutputStream out = Files.newOutputStream(jar);
+             JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+            for (GeneratedClass klass: classes()) {
+                jarOut.putNextEntry(new JarEntry(klass.slashBinaryName() + ".class"));
+                jarOut.write(klass.bytes());
+                jarOut.closeEntry();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reads back the classes written by {@link #writeJar}.
+     */
+    public static CompilationResult readJar (Path jar) throws IOException
+    {
+        try (JarInputStream in = new JarInputStream(Files.newInputStream(jar))) {
+            String mainName = in.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+            GeneratedClass mainClass = null;
+            List<GeneratedClass> structures = new ArrayList<>();
+            for (JarEntry entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+                String name = entry.getName();
+                if (!name.endsWith(".class")) continue;
+                name = name.substring(0, name.length() - ".class".length());
+                GeneratedClass klass = new GeneratedClass(name, readAll(in));
+                if (klass.binaryName().equals(mainName))
+                    mainClass = klass;
+                else
+                    structures.add(klass);
+            }
+            if (mainClass == null)
+                throw new IOException("main class " + mainName + " not found in " + jar);
+            return new CompilationResult(mainClass, structures);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] readAll (InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Loads the main class with the given (dot-separated) binary name from classes written with
+     * {@link #writeClasses} or {@link #writeJar}, given the directory or jar they were written to,
+     * and returns its {@link Class} object, on which {@link #callRun} and {@link #callMain} can be
+     * used.
+     *
+     * <p>The classes are loaded by a new class loader, whose parent is the loader of this class.
+     */
+    public static Class<?> loadCompiled (Path location, String binaryName)
+    {
+        try {
+            URL url = location.toUri().toURL();
+            URLClassLoader loader = new URLClassLoader(new URL[]{ url },
+                CompilationResult.class.getClassLoader());
+            return loader.loadClass(binaryName);
+        } catch (MalformedURLException | ClassNotFoundException e) {
+            throw new NoStackException(e);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -61,6 +195,9 @@ public final class CompilationResult
      *
      * <p>Unlike the {@code main} method, the {@code run} method is able to return a value!
      * The {@code main} method just calls the {@code run} method and ignores its return value.
+     *
+     * <p>The method is looked up and invoked reflectively on each call: use {@link CompiledScript}
+     * to run a script repeatedly.
      */
     public static Object callRun (Class<?> mainClass, String... args) {
         try {
@@ -76,8 +213,8 @@ public final class CompilationResult
     /**
      * Call the {@code run} method of the given class, see {@link #callRun}.
      */
-    public static void callRun (Class<?> mainClass) {
-        callMain(mainClass, new String[0]);
+    public static Object callRun (Class<?> mainClass) {
+        return callRun(mainClass, new String[0]);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,103 @@
+package norswap.sigh.bytecode;
+
+import norswap.utils.exceptions.NoStackException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * A loaded compiled script, whose entry points ({@code run} and {@code main}) are resolved once
+ * to {@link MethodHandle}s, making repeated invocations much cheaper than {@link
+ * CompilationResult#callRun} and {@link CompilationResult#callMain}, which look up the method
+ * and call it reflectively every time.
+ *
+ * <p>Unlike these methods, exceptions thrown by the script are not wrapped.
+ */
+public final class CompiledScript
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The main class of the script.
+     */
+    public final Class<?> mainClass;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** {@code static Object run(String[])} */
+    private final MethodHandle run;
+
+    /** {@code static void main(String[])} */
+    private final MethodHandle main;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a script from the main class of a {@link CompilationResult}, loaded either from
+     * {@link CompilationResult#load} or from {@link CompilationResult#loadCompiled}.
+     */
+    public CompiledScript (Class<?> mainClass)
+    {
+        this.mainClass = mainClass;
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            run  = lookup.findStatic(mainClass, "run",  methodType(Object.class, String[].class));
+            main = lookup.findStatic(mainClass, "main", methodType(void.class,   String[].class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new NoStackException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Loads the compilation result in a new class loader (see {@link CompilationResult#load()})
+     * and returns the corresponding script.
+     */
+    public static CompiledScript load (CompilationResult result) {
+        return new CompiledScript(result.load());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the {@code run} method of the script, which returns the value returned by the
+     * top-level code (or null).
+     */
+    public Object run (String... args)
+    {
+        try {
+            return (Object) run.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new NoStackException(t);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the {@code main} method of the script, which calls {@code run}, ignoring its return
+     * value.
+     */
+    public void main (String... args)
+    {
+        try {
+            main.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new NoStackException(t);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "CompiledScript(" + mainClass.getName() + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,110 @@
+package norswap.sigh.bytecode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * The call site for calls to function values, which are represented by {@link MethodHandle}s.
+ *
+ * <p>The compiled code emits an {@code invokedynamic} instruction whose bootstrap method is {@link
+ * #bootstrap}, and whose type is that of the function, with the function value itself prepended
+ * as first parameter.
+ *
+ * <p>The call site implements an inline cache: every time it is called with a function it hasn't
+ * seen before, it links a guard that checks for that function (by identity) and calls it
+ * directly, in front of the existing target. Because the handle is a constant in the guarded
+ * path, the JIT compiler is able to inline the call. After {@link #MAX_DEPTH} different functions,
+ * the call site is deemed megamorphic and falls back to a generic invoker.
+ */
+public final class FunctionCallSite extends MutableCallSite
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The maximum number of functions cached by a call site.
+     */
+    public static final int MAX_DEPTH = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final MethodHandle MISS;
+    private static final MethodHandle SAME;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MISS = lookup.findVirtual(FunctionCallSite.class, "miss",
+                methodType(Object.class, Object[].class));
+            SAME = lookup.findStatic(FunctionCallSite.class, "same",
+                methodType(boolean.class, MethodHandle.class, MethodHandle.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new Error(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of functions cached by this call site so far.
+     */
+    private int depth = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private FunctionCallSite (MethodType type)
+    {
+        super(type);
+        setTarget(MISS.bindTo(this)
+            .asCollector(Object[].class, type.parameterCount())
+            .asType(type));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Bootstrap method for the {@code invokedynamic} instructions that call function values.
+     */
+    public static CallSite bootstrap (MethodHandles.Lookup lookup, String name, MethodType type) {
+        return new FunctionCallSite(type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when none of the cached functions matches the called function ({@code args[0]}):
+     * adds the function to the cache, then calls it.
+     */
+    private Object miss (Object[] args) throws Throwable
+    {
+        MethodHandle function = (MethodHandle) args[0];
+        MethodType type = type();
+
+        if (depth < MAX_DEPTH) {
+            ++depth;
+            MethodHandle test = MethodHandles.insertArguments(SAME, 0, function);
+            MethodHandle call = MethodHandles.dropArguments(
+                function.asType(type.dropParameterTypes(0, 1)), 0, MethodHandle.class);
+            setTarget(MethodHandles.guardWithTest(test, call, getTarget()));
+        }
+        else {
+            // megamorphic: the invoker calls its first argument with the others
+            setTarget(MethodHandles.invoker(type.dropParameterTypes(0, 1)));
+        }
+
+        return function.invokeWithArguments(Arrays.copyOfRange(args, 1, args.length));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean same (MethodHandle expected, MethodHandle actual) {
+        return expected == actual;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
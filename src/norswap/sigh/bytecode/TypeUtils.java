@@ -1,6 +1,7 @@
 package norswap.sigh.bytecode;
 
 import norswap.sigh.types.*;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Array;
 
 /**
@@ -38,7 +39,7 @@ public final class TypeUtils {
      * <p>This is fragile when structure types are involved, since they have no compile-time {@link
      * Class} representation ({@code Object.class} is returned).
      */
-    static Class<?> javaClass (Type type)
+    public static Class<?> javaClass (Type type)
     {
         if (type instanceof IntType)
             return long.class;
@@ -57,7 +58,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return Type.class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle.class;
         else if (type instanceof StructType)
             return Object.class; // the proper class type is not available at compile time
         else if (type instanceof BoxType)
@@ -94,7 +95,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return Type[].class;
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return MethodHandle[].class;
         else if (type instanceof StructType)
             return Object[].class; // the proper class type is not available at compile time
         else if (type instanceof BoxType)
@@ -127,7 +128,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return "Lnorswap/sigh/types/Type;";
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return "Ljava/lang/invoke/MethodHandle;";
         else if (type instanceof StructType)
             return "L" + structBinaryName((StructType) type) + ";";
         else if (type instanceof BoxType)
@@ -161,7 +162,7 @@ public final class TypeUtils {
         else if (type instanceof TypeType)
             return "Lnorswap/sigh/types/Type;";
         else if (type instanceof FunType)
-            throw new UnsupportedOperationException(); // TODO
+            return "Ljava/lang/invoke/MethodHandle;";
         else if (type instanceof StructType)
             return "L" + structBinaryName((StructType) type) + ";";
         else if (type instanceof BoxType)
@@ -10,9 +10,11 @@ import norswap.sigh.ast.BoxDeclarationNode;
 public class BoxConstructor
 {
     public final BoxDeclarationNode declaration;
+    public final Shape shape;
 
-    public BoxConstructor (BoxDeclarationNode declaration) {
+    public BoxConstructor (BoxDeclarationNode declaration, Shape shape) {
         this.declaration = declaration;
+        this.shape = shape;
     }
 
     @Override public int hashCode () {
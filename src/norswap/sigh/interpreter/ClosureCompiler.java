@@ -0,0 +1,612 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.ExecNodes.*;
+import norswap.sigh.interpreter.Linker.Slot;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.utils.Util.cast;
+
+/**
+ * Compiles a linked tree into a tree of {@link ExecNode executable nodes}, for use by {@link
+ * ClosureInterpreter}.
+ *
+ * <p>Every AST node is compiled exactly once, into a node specialized using the information
+ * gathered by semantic analysis (as snapshotted by the {@link Linker}). For instance, the addition
+ * of two {@code Int} values compiles to an {@link IntAdd} node, and a call to a function whose
+ * declaration is known statically compiles to a {@link Call} node that directly references the
+ * compiled function.
+ */
+final class ClosureCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, ExecNode> visitor = new ValuedVisitor<>();
+    private final Linker linker;
+
+    /** Compiled code for every frame owner, created on demand and filled when compiled. */
+    private final IdentityHashMap<SighNode, CompiledFunction> functions = new IdentityHashMap<>();
+
+    /** The owner of the frame in which the code being compiled will run. */
+    private SighNode owner;
+
+    // ---------------------------------------------------------------------------------------------
+
+    ClosureCompiler (Linker linker)
+    {
+        this.linker = linker;
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(BoxConstructorNode.class,       this::boxConstructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::read);
+        visitor.register(BoxElementAccessNode.class,     this::read);
+        visitor.register(ArrayAccessNode.class,          this::read);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        visitor.register(BoxDeclarationNode.class,       this::boxDecl);
+        // other declarations do not generate code (use fallback)
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        visitor.registerFallback(node -> null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the whole program, returning the compiled code for the main script.
+     */
+    CompiledFunction compile (RootNode root) {
+        return compileBody(root, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode compile (SighNode node)
+    {
+        ExecNode exec = visitor.apply(node);
+        ArrayType widening = node instanceof ExpressionNode
+            ? linker.widening((ExpressionNode) node)
+            : null;
+        return widening == null ? exec : new Widen(node, exec, widening);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode[] compile (List<? extends SighNode> nodes)
+    {
+        ExecNode[] out = new ExecNode[nodes.size()];
+        for (int i = 0; i < out.length; ++i)
+            out[i] = compile(nodes.get(i));
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled code for the given frame owner, creating it if necessary (its body
+     * will be filled when the owner is compiled).
+     */
+    private CompiledFunction function (SighNode owner) {
+        return functions.computeIfAbsent(owner, it ->
+            new CompiledFunction(it, linker.enclosingOwner(it),
+                linker.frameSize(it), linker.primitiveFrameSize(it)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CompiledFunction compileBody (SighNode owner, SighNode body)
+    {
+        SighNode oldOwner = this.owner;
+        this.owner = owner;
+        CompiledFunction function = function(owner);
+        function.body = compile(body);
+        this.owner = oldOwner;
+        return function;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode intLiteral (IntLiteralNode node) {
+        return new Constant(node, node.value);
+    }
+
+    private ExecNode floatLiteral (FloatLiteralNode node) {
+        return new Constant(node, node.value);
+    }
+
+    private ExecNode stringLiteral (StringLiteralNode node) {
+        return new Constant(node, node.value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode parenthesized (ParenthesizedNode node) {
+        return compile(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode arrayLiteral (ArrayLiteralNode node)
+    {
+        Type componentType = ((ArrayType) linker.type(node)).componentType;
+        ExecNode[] components = compile(node.components);
+        if (componentType instanceof IntType)
+            return new LongArrayLiteral(node, components);
+        else if (componentType instanceof FloatType)
+            return new DoubleArrayLiteral(node, components);
+        else if (componentType instanceof BoolType)
+            return new BooleanArrayLiteral(node, components);
+        else
+            return new ArrayLiteral(node, components);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode reference (ReferenceNode node)
+    {
+        Slot slot = linker.slot(node);
+        if (slot == null) // structure, box or function
+            return new Constant(node, linker.decl(node));
+        return load(node, slot);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a read of the variable (or temporary) at {@code slot}.
+     */
+    private ExecNode load (ExpressionNode node, Slot slot)
+    {
+        switch (slot.kind) {
+            case LONG:    return new ReadLong(node, slot);
+            case DOUBLE:  return new ReadDouble(node, slot);
+            case BOOLEAN: return new ReadBoolean(node, slot);
+            default:
+                return slot.depth == 0
+                    ? new Local(node, slot.index)
+                    : new Outer(node, slot);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        StructDeclarationNode decl = cast(linker.decl(node.ref));
+        return new Constant(node, new Constructor(decl, linker.shape(decl)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode boxConstructor (BoxConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        BoxDeclarationNode decl = cast(linker.decl(node.ref));
+        return new Constant(node, new BoxConstructor(decl, linker.shape(decl)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an array access, field access or box element access, using or filling the
+     * temporary assigned to it by {@link norswap.sigh.LoopOptimization}, if any.
+     */
+    private ExecNode read (ExpressionNode node)
+    {
+        Slot reused = linker.reusedTemp(node);
+        if (reused != null)
+            return load(node, reused);
+
+        ExecNode value = readUncached(node);
+        Slot defined = linker.definedTemp(node);
+        return defined != null
+            ? storeTemp(node, defined, value)
+            : value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode readUncached (ExpressionNode node)
+    {
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node);
+        if (node instanceof FieldAccessNode)
+            return fieldAccess((FieldAccessNode) node);
+        return boxElementAccess((BoxElementAccessNode) node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the assignment of {@code value} to a temporary, evaluating to the value.
+     */
+    private ExecNode storeTemp (ExpressionNode node, Slot slot, ExecNode value)
+    {
+        // temporaries are never of kind DOUBLE, and always in the current frame
+        switch (slot.kind) {
+            case LONG:    return new StoreLong(node, slot, value);
+            case BOOLEAN: return new StoreBoolean(node, slot, value);
+            default:      return new StoreLocal(node, slot.index, value, false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode fieldAccess (FieldAccessNode node)
+    {
+        String message = "accessing field of null object";
+        ExecNode stem = compile(node.stem);
+        return linker.type(node.stem) instanceof ArrayType
+            ? new ArrayLength(node, stem, message) // only field on arrays
+            : new FieldLoad(node, stem, linker.fieldIndex(node), message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode boxElementAccess (BoxElementAccessNode node)
+    {
+        String message = "accessing attribute of null object";
+        ExecNode stem = compile(node.stem);
+        return linker.type(node.stem) instanceof ArrayType
+            ? new ArrayLength(node, stem, message) // only element on arrays
+            : new FieldLoad(node, stem, linker.fieldIndex(node), message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode arrayAccess (ArrayAccessNode node)
+    {
+        Type componentType = ((ArrayType) linker.type(node.array)).componentType;
+        ExecNode array = compile(node.array);
+        ExecNode index = compile(node.index);
+        if (componentType instanceof IntType)
+            return new LongArrayLoad(node, array, index);
+        else if (componentType instanceof FloatType)
+            return new DoubleArrayLoad(node, array, index);
+        else if (componentType instanceof BoolType)
+            return new BooleanArrayLoad(node, array, index);
+        else
+            return new ArrayLoad(node, array, index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode unaryExpression (UnaryExpressionNode node)
+    {
+        Object constant = linker.constant(node);
+        if (constant != null) return new Constant(node, constant);
+        ExpressionNode simplified = linker.simplified(node);
+        if (simplified != null) return compile(simplified);
+
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        return new Not(node, compile(node.operand));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode binaryExpression (BinaryExpressionNode node)
+    {
+        Object constant = linker.constant(node);
+        if (constant != null) return new Constant(node, constant);
+        ExpressionNode simplified = linker.simplified(node);
+        if (simplified != null) return compile(simplified);
+
+        Type leftType  = linker.type(node.left);
+        Type rightType = linker.type(node.right);
+        ExecNode left  = compile(node.left);
+        ExecNode right = compile(node.right);
+
+        switch (node.operator) {
+            case OR:  return new Or(node, left, right);
+            case AND: return new And(node, left, right);
+        }
+
+        if (node.operator == BinaryOperator.ADD
+            && (leftType instanceof StringType || rightType instanceof StringType))
+            return new Concat(node, left, right);
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType)
+            return floatOp(node, left, right);
+
+        if (leftType instanceof IntType)
+            return intOp(node, left, right);
+
+        switch (node.operator) {
+            case EQUALITY:
+                return leftType.isPrimitive()
+                    ? new Equals(node, left, right, false)
+                    : new Same(node, left, right, false);
+            case NOT_EQUALS:
+                return leftType.isPrimitive()
+                    ? new Equals(node, left, right, true)
+                    : new Same(node, left, right, true);
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode intOp (BinaryExpressionNode node, ExecNode left, ExecNode right)
+    {
+        switch (node.operator) {
+            case MULTIPLY:      return new IntMultiply     (node, left, right);
+            case DIVIDE:        return new IntDivide       (node, left, right);
+            case REMAINDER:     return new IntRemainder    (node, left, right);
+            case ADD:           return new IntAdd          (node, left, right);
+            case SUBTRACT:      return new IntSubtract     (node, left, right);
+            case GREATER:       return new IntGreater      (node, left, right);
+            case LOWER:         return new IntLower        (node, left, right);
+            case GREATER_EQUAL: return new IntGreaterEqual (node, left, right);
+            case LOWER_EQUAL:   return new IntLowerEqual   (node, left, right);
+            case EQUALITY:      return new IntEquals       (node, left, right);
+            case NOT_EQUALS:    return new IntNotEquals    (node, left, right);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode floatOp (BinaryExpressionNode node, ExecNode left, ExecNode right)
+    {
+        switch (node.operator) {
+            case MULTIPLY:      return new FloatMultiply     (node, left, right);
+            case DIVIDE:        return new FloatDivide       (node, left, right);
+            case REMAINDER:     return new FloatRemainder    (node, left, right);
+            case ADD:           return new FloatAdd          (node, left, right);
+            case SUBTRACT:      return new FloatSubtract     (node, left, right);
+            case GREATER:       return new FloatGreater      (node, left, right);
+            case LOWER:         return new FloatLower        (node, left, right);
+            case GREATER_EQUAL: return new FloatGreaterEqual (node, left, right);
+            case LOWER_EQUAL:   return new FloatLowerEqual   (node, left, right);
+            case EQUALITY:      return new FloatEquals       (node, left, right);
+            case NOT_EQUALS:    return new FloatNotEquals    (node, left, right);
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode assignment (AssignmentNode node)
+    {
+        if (node.left instanceof ReferenceNode) {
+            ReferenceNode ref = (ReferenceNode) node.left;
+            Slot slot = linker.slot(ref);
+            if (slot == null)
+                return new StoreInvalid(node, ref.name, compile(node.right));
+            return store(node, slot, linker.type(node), node.right);
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            Type componentType = ((ArrayType) linker.type(arrayAccess.array)).componentType;
+            ExecNode array = compile(arrayAccess.array);
+            ExecNode index = compile(arrayAccess.index);
+            ExecNode value = compile(node.right);
+            if (componentType instanceof IntType)
+                return new LongArrayStore(node, array, index, value);
+            else if (componentType instanceof FloatType)
+                return new DoubleArrayStore(node, array, index, value);
+            else if (componentType instanceof BoolType)
+                return new BooleanArrayStore(node, array, index, value);
+            else
+                return new ArrayStore(node, array, index, value);
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            return new FieldStore(node, compile(fieldAccess.stem), linker.fieldIndex(fieldAccess),
+                compile(node.right), "accessing field of null object");
+        }
+
+        if (node.left instanceof BoxElementAccessNode) {
+            BoxElementAccessNode boxAccess = (BoxElementAccessNode) node.left;
+            return new FieldStore(node, compile(boxAccess.stem), linker.fieldIndex(boxAccess),
+                compile(node.right), "accessing box of null object");
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode funCall (FunCallNode node)
+    {
+        ExecNode[] arguments = compile(node.arguments);
+
+        if (node.function instanceof ConstructorNode)
+            return new NewStruct(node,
+                linker.shape(linker.decl(((ConstructorNode) node.function).ref)), arguments);
+
+        if (node.function instanceof BoxConstructorNode)
+            return new NewBox(node,
+                linker.shape(linker.decl(((BoxConstructorNode) node.function).ref)), arguments);
+
+        if (node.function instanceof ReferenceNode) {
+            DeclarationNode decl = linker.decl((ReferenceNode) node.function);
+
+            if (decl instanceof SyntheticDeclarationNode)
+                return new Builtin(node, ((SyntheticDeclarationNode) decl).name(), arguments);
+
+            if (decl instanceof FunDeclarationNode) {
+                CompiledFunction function = function(decl);
+                int depth = depth(function.enclosing);
+                if (depth >= 0)
+                    return new Call(node, function, depth, arguments);
+            }
+        }
+
+        return new DynamicCall(node, compile(node.function), arguments, functions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of frames to go up from the frame of the current owner to reach the
+     * frame of {@code target}, or -1 if {@code target} doesn't enclose the current owner.
+     */
+    private int depth (SighNode target)
+    {
+        int depth = 0;
+        for (SighNode it = owner; it != null; it = linker.enclosingOwner(it), ++depth)
+            if (it == target)
+                return depth;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode root (RootNode node) {
+        return new Block(node, statements(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode block (BlockNode node) {
+        return new Block(node, statements(node.statements));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a list of statements, dropping declarations that do not generate code.
+     */
+    private ExecNode[] statements (List<StatementNode> statements)
+    {
+        ArrayList<ExecNode> out = new ArrayList<>(statements.size());
+        for (StatementNode statement: statements) {
+            ExecNode compiled = compile(statement);
+            if (compiled != null) out.add(compiled);
+        }
+        return out.toArray(new ExecNode[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a statement that is a branch or a loop body, using an empty block if it doesn't
+     * generate code.
+     */
+    private ExecNode statement (StatementNode statement) {
+        ExecNode compiled = compile(statement);
+        return compiled != null ? compiled : new Block(statement, new ExecNode[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode varDecl (VarDeclarationNode node) {
+        // a declaration is always in the frame of the current function
+        return store(node, linker.slot(node), linker.type(node), node.initializer);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the assignment of {@code value} to the variable at {@code slot}, whose type is
+     * {@code type}.
+     */
+    private ExecNode store (SighNode node, Slot slot, Type type, ExpressionNode value)
+    {
+        ExecNode compiled = compile(value);
+        switch (slot.kind) {
+            case LONG:
+                return new StoreLong(node, slot, compiled);
+            case DOUBLE:
+                return new StoreDouble(node, slot, compiled,
+                    linker.type(value) instanceof IntType);
+            case BOOLEAN:
+                return new StoreBoolean(node, slot, compiled);
+            default:
+                boolean toFloat = type instanceof FloatType;
+                return slot.depth == 0
+                    ? new StoreLocal(node, slot.index, compiled, toFloat)
+                    : new StoreOuter(node, slot, compiled, toFloat);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode funDecl (FunDeclarationNode node) {
+        compileBody(node, node.block);
+        return null; // functions are not stored in frames
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode boxDecl (BoxDeclarationNode node) {
+        for (MethodDeclarationNode method: node.methods)
+            compileBody(method, method.block);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode expressionStmt (ExpressionStatementNode node) {
+        return compile(node.expression); // value discarded
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode ifStmt (IfNode node) {
+        return new If(node, compile(node.condition), statement(node.trueStatement),
+            node.falseStatement == null ? null : statement(node.falseStatement));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode whileStmt (WhileNode node)
+    {
+        ExecNode loop = new While(node, compile(node.condition), statement(node.body));
+        List<ExpressionNode> hoisted = linker.hoisted(node);
+        if (hoisted == null)
+            return loop;
+
+        ExecNode[] statements = new ExecNode[hoisted.size() + 1];
+        for (int i = 0; i < hoisted.size(); ++i) {
+            ExpressionNode read = hoisted.get(i);
+            statements[i] = storeTemp(read, linker.reusedTemp(read), readUncached(read));
+        }
+        statements[hoisted.size()] = loop;
+        return new Block(node, statements);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNode returnStmt (ReturnNode node) {
+        return new Return(node, node.expression == null ? null : compile(node.expression));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,91 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.uranium.Reactor;
+import norswap.utils.exceptions.Exceptions;
+
+import static norswap.utils.Util.cast;
+
+/**
+ * An alternative to {@link Interpreter}, that first compiles the tree into a tree of specialized
+ * {@link ExecNode executable nodes} (see {@link ClosureCompiler}), then runs it.
+ *
+ * <p>Compared to {@link Interpreter}, this avoids the cost of visitor dispatch and of type tests
+ * on every evaluation, which are instead paid once per node at compile time. The runtime value
+ * representation, frame layout and observable behaviour are the same.
+ *
+ * <p>The compiled tree is immutable and reused when interpreting the same tree again, so that an
+ * interpreter is thread-safe in the same way as {@link Interpreter}.
+ */
+public final class ClosureInterpreter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** The last tree compiled by this interpreter, reused when interpreting the same tree again. */
+    private volatile Compiled compiled;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A tree, its link step and its compiled code. */
+    private static final class Compiled
+    {
+        final SighNode root;
+        final Linker linker;
+        final CompiledFunction main;
+
+        Compiled (SighNode root, Linker linker, CompiledFunction main) {
+            this.root = root;
+            this.linker = linker;
+            this.main = main;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public ClosureInterpreter (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Object interpret (SighNode root)
+    {
+        Compiled compiled = compile(root);
+        Linker linker = compiled.linker;
+        CompiledFunction main = compiled.main;
+
+        RootScope rootScope = linker.rootScope();
+        Frame frame = main.newFrame(null);
+        frame.set(linker.slot(rootScope._true),  true);
+        frame.set(linker.slot(rootScope._false), false);
+        frame.set(linker.slot(rootScope._null),  Null.INSTANCE);
+
+        try {
+            return main.run(frame);
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled code of the tree, compiling it unless it is the tree that was compiled
+     * last. Concurrent calls may compile the same tree more than once, which is harmless.
+     */
+    private Compiled compile (SighNode root)
+    {
+        Compiled last = compiled;
+        if (last != null && last.root == root)
+            return last;
+        Linker linker = Linker.link(reactor, root);
+        last = new Compiled(root, linker, new ClosureCompiler(linker).compile(cast(root)));
+        compiled = last;
+        return last;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
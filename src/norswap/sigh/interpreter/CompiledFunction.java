@@ -0,0 +1,76 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.SighNode;
+
+/**
+ * The compiled code of a frame owner (function, method or the main script) for the {@link
+ * ClosureInterpreter}.
+ */
+final class CompiledFunction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A {@code RootNode}, {@code FunDeclarationNode} or {@code MethodDeclarationNode}. */
+    final SighNode owner;
+
+    /** The owner of the lexically enclosing frame, or null for the root. */
+    final SighNode enclosing;
+
+    /** The number of boxed and primitive slots in the frames of this function. */
+    final int frameSize, primitiveFrameSize;
+
+    /** The compiled body, set by {@link ClosureCompiler} once it has been compiled. */
+    ExecNode body;
+
+    // ---------------------------------------------------------------------------------------------
+
+    CompiledFunction (SighNode owner, SighNode enclosing, int frameSize, int primitiveFrameSize) {
+        this.owner = owner;
+        this.enclosing = enclosing;
+        this.frameSize = frameSize;
+        this.primitiveFrameSize = primitiveFrameSize;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new frame for this function, with the given parent.
+     */
+    Frame newFrame (Frame parent) {
+        return new Frame(owner, parent, frameSize, primitiveFrameSize);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the body in the given frame (whose parameter slots must have been filled), and returns
+     * the returned value.
+     */
+    Object run (Frame frame) {
+        body.exec(frame);
+        return frame.returnValue;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the parent frame for a call to this function from {@code caller}, when it cannot be
+     * determined statically: the nearest frame of the enclosing function in the parent chain of
+     * the caller, or null if there is none (see {@code Execution#lexicalParent}).
+     */
+    Frame lexicalParent (Frame caller)
+    {
+        for (Frame f = caller; f != null; f = f.parent)
+            if (f.owner == enclosing)
+                return f;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "CompiledFunction(" + owner + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
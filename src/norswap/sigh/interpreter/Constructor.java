@@ -10,9 +10,11 @@ import norswap.sigh.ast.StructDeclarationNode;
 public final class Constructor
 {
     public final StructDeclarationNode declaration;
+    public final Shape shape;
 
-    public Constructor (StructDeclarationNode declaration) {
+    public Constructor (StructDeclarationNode declaration, Shape shape) {
         this.declaration = declaration;
+        this.shape = shape;
     }
 
     @Override public int hashCode () {
@@ -0,0 +1,93 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.SighNode;
+
+/**
+ * A node of the executable tree that {@link ClosureCompiler} builds from the AST, and that is run
+ * by {@link ClosureInterpreter}.
+ *
+ * <p>Each executable node is specialized for a single operation, which has been selected at
+ * compile time using the results of semantic analysis. Evaluating it therefore doesn't need any
+ * visitor dispatch or type test: it is a simple virtual call, which the JIT compiler is able to
+ * inline when the call site is monomorphic.
+ *
+ * <p>Besides {@link #eval}, nodes have entry points that return primitive values, to be used
+ * when semantic analysis proved the type of the node: {@link #evalLong} for {@code Int}, {@link
+ * #evalDouble} for {@code Float} (and {@code Int}) and {@link #evalBoolean} for {@code Bool}.
+ * Nodes that compute primitive values override these to avoid boxing, which then only happens
+ * when a value is stored somewhere that isn't typed (e.g. function arguments, arrays, or
+ * structure fields). Similarly, {@link #exec} is used when the value isn't needed at all, and
+ * for statements.
+ *
+ * <p>The concrete node classes are in {@link ExecNodes}.
+ */
+abstract class ExecNode
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The AST node this node was compiled from.
+     */
+    final SighNode node;
+
+    // ---------------------------------------------------------------------------------------------
+
+    ExecNode (SighNode node) {
+        this.node = node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates this node, where {@code frame} is the frame of the innermost function being
+     * executed, and returns its value (null for statements).
+     */
+    abstract Object eval (Frame frame);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates this node, which must be of type {@code Int}.
+     */
+    long evalLong (Frame frame) {
+        return (long) eval(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates this node, which must be of type {@code Float} or {@code Int}.
+     */
+    double evalDouble (Frame frame) {
+        return ((Number) eval(frame)).doubleValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates this node, which must be of type {@code Bool}.
+     */
+    boolean evalBoolean (Frame frame) {
+        return (boolean) eval(frame);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates this node for its side effects only. Returns true if a return statement was
+     * executed, in which case the returned value is in {@link Frame#returnValue}, and execution of
+     * the function must stop.
+     */
+    boolean exec (Frame frame) {
+        eval(frame);
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return getClass().getSimpleName() + "(" + node + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
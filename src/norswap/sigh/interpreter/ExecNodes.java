@@ -0,0 +1,1107 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.MethodDeclarationNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.Linker.Kind;
+import norswap.sigh.interpreter.Linker.Slot;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import java.util.IdentityHashMap;
+
+/**
+ * The concrete {@link ExecNode executable nodes} built by {@link ClosureCompiler}.
+ *
+ * <p>The runtime value representation is the same as in {@link Interpreter}.
+ */
+final class ExecNodes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private ExecNodes () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object[] evalAll (ExecNode[] nodes, Frame frame)
+    {
+        Object[] values = new Object[nodes.length];
+        for (int i = 0; i < nodes.length; ++i)
+            values[i] = nodes[i].eval(frame);
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object nonNull (Object object, String message) {
+        if (object == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException(message));
+        return object;
+    }
+
+    // =============================================================================================
+    // Values
+    // =============================================================================================
+
+    /** Literals, and references to functions and types. */
+    static final class Constant extends ExecNode {
+        final Object value;
+        Constant (SighNode node, Object value) {
+            super(node);
+            this.value = value;
+        }
+        @Override Object eval (Frame frame) {
+            return value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a variable of kind {@link Kind#OBJECT} of the current frame. */
+    static final class Local extends ExecNode {
+        final int index;
+        Local (SighNode node, int index) {
+            super(node);
+            this.index = index;
+        }
+        @Override Object eval (Frame frame) {
+            return frame.slots[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a variable of kind {@link Kind#OBJECT} of an enclosing frame. */
+    static final class Outer extends ExecNode {
+        final int depth, index;
+        Outer (SighNode node, Slot slot) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+        }
+        @Override Object eval (Frame frame) {
+            return frame.up(depth).slots[index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a variable of kind {@link Kind#LONG}. */
+    static final class ReadLong extends ExecNode {
+        final int depth, index;
+        ReadLong (SighNode node, Slot slot) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+        }
+        @Override long evalLong (Frame frame) {
+            return frame.up(depth).primitives[index];
+        }
+        @Override double evalDouble (Frame frame) {
+            return evalLong(frame);
+        }
+        @Override Object eval (Frame frame) {
+            return evalLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a variable of kind {@link Kind#DOUBLE}. */
+    static final class ReadDouble extends ExecNode {
+        final int depth, index;
+        ReadDouble (SighNode node, Slot slot) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+        }
+        @Override double evalDouble (Frame frame) {
+            return Double.longBitsToDouble(frame.up(depth).primitives[index]);
+        }
+        @Override Object eval (Frame frame) {
+            return evalDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a variable of kind {@link Kind#BOOLEAN}. */
+    static final class ReadBoolean extends ExecNode {
+        final int depth, index;
+        ReadBoolean (SighNode node, Slot slot) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            return frame.up(depth).primitives[index] != 0;
+        }
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Widens the value of an {@code Int[]} expression (see {@link Linker#widening}). */
+    static final class Widen extends ExecNode {
+        final ExecNode value;
+        final ArrayType type;
+        Widen (SighNode node, ExecNode value, ArrayType type) {
+            super(node);
+            this.value = value;
+            this.type = type;
+        }
+        @Override Object eval (Frame frame) {
+            return Interpreter.widen(value.eval(frame), type);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayLiteral extends ExecNode {
+        final ExecNode[] components;
+        ArrayLiteral (SighNode node, ExecNode[] components) {
+            super(node);
+            this.components = components;
+        }
+        @Override Object eval (Frame frame) {
+            return evalAll(components, frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongArrayLiteral extends ExecNode {
+        final ExecNode[] components;
+        LongArrayLiteral (SighNode node, ExecNode[] components) {
+            super(node);
+            this.components = components;
+        }
+        @Override Object eval (Frame frame) {
+            long[] array = new long[components.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = components[i].evalLong(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleArrayLiteral extends ExecNode {
+        final ExecNode[] components;
+        DoubleArrayLiteral (SighNode node, ExecNode[] components) {
+            super(node);
+            this.components = components;
+        }
+        @Override Object eval (Frame frame) {
+            double[] array = new double[components.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = components[i].evalDouble(frame);
+            return array;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanArrayLiteral extends ExecNode {
+        final ExecNode[] components;
+        BooleanArrayLiteral (SighNode node, ExecNode[] components) {
+            super(node);
+            this.components = components;
+        }
+        @Override Object eval (Frame frame) {
+            boolean[] array = new boolean[components.length];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = components[i].evalBoolean(frame);
+            return array;
+        }
+    }
+
+    // =============================================================================================
+    // Stores
+    // =============================================================================================
+
+    /**
+     * Assigns a variable of kind {@link Kind#OBJECT} of the current frame. Evaluates to the
+     * assigned value, before conversion to {@code Float} if {@code toFloat} is set.
+     */
+    static final class StoreLocal extends ExecNode {
+        final int index;
+        final ExecNode value;
+        final boolean toFloat;
+        StoreLocal (SighNode node, int index, ExecNode value, boolean toFloat) {
+            super(node);
+            this.index = index;
+            this.value = value;
+            this.toFloat = toFloat;
+        }
+        @Override Object eval (Frame frame) {
+            Object v = value.eval(frame);
+            frame.slots[index] = toFloat ? Interpreter.convertToFloat(v) : v;
+            return v;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Assigns a variable of kind {@link Kind#OBJECT} of an enclosing frame. */
+    static final class StoreOuter extends ExecNode {
+        final int depth, index;
+        final ExecNode value;
+        final boolean toFloat;
+        StoreOuter (SighNode node, Slot slot, ExecNode value, boolean toFloat) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+            this.value = value;
+            this.toFloat = toFloat;
+        }
+        @Override Object eval (Frame frame) {
+            Object v = value.eval(frame);
+            frame.up(depth).slots[index] = toFloat ? Interpreter.convertToFloat(v) : v;
+            return v;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Assigns (or declares) a variable of kind {@link Kind#LONG}. */
+    static final class StoreLong extends ExecNode {
+        final int depth, index;
+        final ExecNode value;
+        StoreLong (SighNode node, Slot slot, ExecNode value) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+            this.value = value;
+        }
+        @Override long evalLong (Frame frame) {
+            return frame.up(depth).primitives[index] = value.evalLong(frame);
+        }
+        @Override boolean exec (Frame frame) {
+            evalLong(frame);
+            return false;
+        }
+        @Override Object eval (Frame frame) {
+            return evalLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Assigns (or declares) a variable of kind {@link Kind#DOUBLE}. If {@code fromInt} is set, the
+     * value is an {@code Int}, and it is the value before conversion that the node evaluates to.
+     */
+    static final class StoreDouble extends ExecNode {
+        final int depth, index;
+        final ExecNode value;
+        final boolean fromInt;
+        StoreDouble (SighNode node, Slot slot, ExecNode value, boolean fromInt) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+            this.value = value;
+            this.fromInt = fromInt;
+        }
+        private void store (Frame frame, double v) {
+            frame.up(depth).primitives[index] = Double.doubleToRawLongBits(v);
+        }
+        @Override boolean exec (Frame frame) {
+            store(frame, value.evalDouble(frame));
+            return false;
+        }
+        @Override Object eval (Frame frame) {
+            if (fromInt) {
+                long v = value.evalLong(frame);
+                store(frame, v);
+                return v;
+            } else {
+                double v = value.evalDouble(frame);
+                store(frame, v);
+                return v;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Assigns (or declares) a variable of kind {@link Kind#BOOLEAN}. */
+    static final class StoreBoolean extends ExecNode {
+        final int depth, index;
+        final ExecNode value;
+        StoreBoolean (SighNode node, Slot slot, ExecNode value) {
+            super(node);
+            this.depth = slot.depth;
+            this.index = slot.index;
+            this.value = value;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            boolean v = value.evalBoolean(frame);
+            frame.up(depth).primitives[index] = v ? 1 : 0;
+            return v;
+        }
+        @Override boolean exec (Frame frame) {
+            evalBoolean(frame);
+            return false;
+        }
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** An assignment to something that isn't a variable (e.g. a box attribute within a method). */
+    static final class StoreInvalid extends ExecNode {
+        final String name;
+        final ExecNode value;
+        StoreInvalid (SighNode node, String name, ExecNode value) {
+            super(node);
+            this.name = name;
+            this.value = value;
+        }
+        @Override Object eval (Frame frame) {
+            value.eval(frame);
+            throw new UnsupportedOperationException("assigning to non-variable: " + name);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayStore extends ExecNode {
+        final ExecNode array, index, value;
+        ArrayStore (SighNode node, ExecNode array, ExecNode index, ExecNode value) {
+            super(node);
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+        @Override Object eval (Frame frame) {
+            Object[] array = (Object[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                return array[index] = value.eval(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongArrayStore extends ExecNode {
+        final ExecNode array, index, value;
+        LongArrayStore (SighNode node, ExecNode array, ExecNode index, ExecNode value) {
+            super(node);
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+        @Override long evalLong (Frame frame) {
+            long[] array = (long[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                return array[index] = value.evalLong(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override boolean exec (Frame frame) {
+            evalLong(frame);
+            return false;
+        }
+        @Override Object eval (Frame frame) {
+            return evalLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleArrayStore extends ExecNode {
+        final ExecNode array, index, value;
+        DoubleArrayStore (SighNode node, ExecNode array, ExecNode index, ExecNode value) {
+            super(node);
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+        @Override boolean exec (Frame frame) {
+            Object array = nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                ((double[]) array)[index] = value.evalDouble(frame);
+                return false;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override Object eval (Frame frame) {
+            // the value of the assignment is the unconverted value
+            Object array = nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                return Interpreter.arraySet(array, index, value.eval(frame));
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanArrayStore extends ExecNode {
+        final ExecNode array, index, value;
+        BooleanArrayStore (SighNode node, ExecNode array, ExecNode index, ExecNode value) {
+            super(node);
+            this.array = array;
+            this.index = index;
+            this.value = value;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            boolean[] array = (boolean[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                return array[index] = value.evalBoolean(frame);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override boolean exec (Frame frame) {
+            evalBoolean(frame);
+            return false;
+        }
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Assigns a structure field or a box attribute. */
+    static final class FieldStore extends ExecNode {
+        final ExecNode stem, value;
+        final int index;
+        final String nullMessage;
+        FieldStore (SighNode node, ExecNode stem, int index, ExecNode value, String nullMessage) {
+            super(node);
+            this.stem = stem;
+            this.index = index;
+            this.value = value;
+            this.nullMessage = nullMessage;
+        }
+        @Override Object eval (Frame frame) {
+            Instance instance = (Instance) nonNull(stem.eval(frame), nullMessage);
+            return instance.values[index] = value.eval(frame);
+        }
+    }
+
+    // =============================================================================================
+    // Accesses
+    // =============================================================================================
+
+    static final class ArrayLoad extends ExecNode {
+        final ExecNode array, index;
+        ArrayLoad (SighNode node, ExecNode array, ExecNode index) {
+            super(node);
+            this.array = array;
+            this.index = index;
+        }
+        @Override Object eval (Frame frame) {
+            Object[] array = (Object[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                return array[Interpreter.checkIndex(index.evalLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class LongArrayLoad extends ExecNode {
+        final ExecNode array, index;
+        LongArrayLoad (SighNode node, ExecNode array, ExecNode index) {
+            super(node);
+            this.array = array;
+            this.index = index;
+        }
+        @Override long evalLong (Frame frame) {
+            long[] array = (long[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                return array[Interpreter.checkIndex(index.evalLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override double evalDouble (Frame frame) {
+            return evalLong(frame);
+        }
+        @Override Object eval (Frame frame) {
+            return evalLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class DoubleArrayLoad extends ExecNode {
+        final ExecNode array, index;
+        DoubleArrayLoad (SighNode node, ExecNode array, ExecNode index) {
+            super(node);
+            this.array = array;
+            this.index = index;
+        }
+        @Override double evalDouble (Frame frame) {
+            Object array = nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                int index = Interpreter.checkIndex(this.index.evalLong(frame));
+                return ((double[]) array)[index];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override Object eval (Frame frame) {
+            return evalDouble(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class BooleanArrayLoad extends ExecNode {
+        final ExecNode array, index;
+        BooleanArrayLoad (SighNode node, ExecNode array, ExecNode index) {
+            super(node);
+            this.array = array;
+            this.index = index;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            boolean[] array = (boolean[]) nonNull(this.array.eval(frame), "indexing null array");
+            try {
+                return array[Interpreter.checkIndex(index.evalLong(frame))];
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class ArrayLength extends ExecNode {
+        final ExecNode array;
+        final String nullMessage;
+        ArrayLength (SighNode node, ExecNode array, String nullMessage) {
+            super(node);
+            this.array = array;
+            this.nullMessage = nullMessage;
+        }
+        @Override Object eval (Frame frame) {
+            return Interpreter.arrayLength(nonNull(array.eval(frame), nullMessage));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Reads a structure field or a box attribute or method. */
+    static final class FieldLoad extends ExecNode {
+        final ExecNode stem;
+        final int index;
+        final String nullMessage;
+        FieldLoad (SighNode node, ExecNode stem, int index, String nullMessage) {
+            super(node);
+            this.stem = stem;
+            this.index = index;
+            this.nullMessage = nullMessage;
+        }
+        @Override Object eval (Frame frame) {
+            return ((Instance) nonNull(stem.eval(frame), nullMessage)).values[index];
+        }
+    }
+
+    // =============================================================================================
+    // Operators
+    // =============================================================================================
+
+    static abstract class Binary extends ExecNode {
+        final ExecNode left, right;
+        Binary (SighNode node, ExecNode left, ExecNode right) {
+            super(node);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Base class for binary operators evaluating to a {@code Bool}. */
+    static abstract class Predicate extends Binary {
+        Predicate (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override abstract boolean evalBoolean (Frame frame);
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class Not extends ExecNode {
+        final ExecNode operand;
+        Not (SighNode node, ExecNode operand) {
+            super(node);
+            this.operand = operand;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            return !operand.evalBoolean(frame);
+        }
+        @Override Object eval (Frame frame) {
+            return evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class And extends Predicate {
+        And (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalBoolean(frame) && right.evalBoolean(frame);
+        }
+    }
+
+    static final class Or extends Predicate {
+        Or (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalBoolean(frame) || right.evalBoolean(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class Concat extends Binary {
+        Concat (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override Object eval (Frame frame) {
+            return Interpreter.convertToString(left.eval(frame))
+                 + Interpreter.convertToString(right.eval(frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** (In)equality of values of primitive types. */
+    static final class Equals extends Predicate {
+        final boolean negate;
+        Equals (SighNode node, ExecNode left, ExecNode right, boolean negate) {
+            super(node, left, right);
+            this.negate = negate;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.eval(frame).equals(right.eval(frame)) != negate;
+        }
+    }
+
+    /** (In)equality of values of reference types. */
+    static final class Same extends Predicate {
+        final boolean negate;
+        Same (SighNode node, ExecNode left, ExecNode right, boolean negate) {
+            super(node, left, right);
+            this.negate = negate;
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            return (left.eval(frame) == right.eval(frame)) != negate;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Int operators: both operands are Int.
+
+    /** Base class for {@code Int} arithmetic operators. */
+    static abstract class IntBinary extends Binary {
+        IntBinary (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override abstract long evalLong (Frame frame);
+        @Override double evalDouble (Frame frame) {
+            return evalLong(frame);
+        }
+        @Override Object eval (Frame frame) {
+            return evalLong(frame);
+        }
+    }
+
+    static final class IntAdd extends IntBinary {
+        IntAdd (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override long evalLong (Frame frame) {
+            return left.evalLong(frame) + right.evalLong(frame);
+        }
+    }
+
+    static final class IntSubtract extends IntBinary {
+        IntSubtract (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override long evalLong (Frame frame) {
+            return left.evalLong(frame) - right.evalLong(frame);
+        }
+    }
+
+    static final class IntMultiply extends IntBinary {
+        IntMultiply (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override long evalLong (Frame frame) {
+            return left.evalLong(frame) * right.evalLong(frame);
+        }
+    }
+
+    static final class IntDivide extends IntBinary {
+        IntDivide (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override long evalLong (Frame frame) {
+            return left.evalLong(frame) / right.evalLong(frame);
+        }
+    }
+
+    static final class IntRemainder extends IntBinary {
+        IntRemainder (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override long evalLong (Frame frame) {
+            return left.evalLong(frame) % right.evalLong(frame);
+        }
+    }
+
+    static final class IntGreater extends Predicate {
+        IntGreater (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) > right.evalLong(frame);
+        }
+    }
+
+    static final class IntLower extends Predicate {
+        IntLower (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) < right.evalLong(frame);
+        }
+    }
+
+    static final class IntGreaterEqual extends Predicate {
+        IntGreaterEqual (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) >= right.evalLong(frame);
+        }
+    }
+
+    static final class IntLowerEqual extends Predicate {
+        IntLowerEqual (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) <= right.evalLong(frame);
+        }
+    }
+
+    static final class IntEquals extends Predicate {
+        IntEquals (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) == right.evalLong(frame);
+        }
+    }
+
+    static final class IntNotEquals extends Predicate {
+        IntNotEquals (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalLong(frame) != right.evalLong(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Float operators: at least one operand is a Float, the other may be an Int.
+
+    /** Base class for {@code Float} arithmetic operators. */
+    static abstract class FloatBinary extends Binary {
+        FloatBinary (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override abstract double evalDouble (Frame frame);
+        @Override Object eval (Frame frame) {
+            return evalDouble(frame);
+        }
+    }
+
+    static final class FloatAdd extends FloatBinary {
+        FloatAdd (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override double evalDouble (Frame frame) {
+            return left.evalDouble(frame) + right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatSubtract extends FloatBinary {
+        FloatSubtract (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override double evalDouble (Frame frame) {
+            return left.evalDouble(frame) - right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatMultiply extends FloatBinary {
+        FloatMultiply (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override double evalDouble (Frame frame) {
+            return left.evalDouble(frame) * right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatDivide extends FloatBinary {
+        FloatDivide (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override double evalDouble (Frame frame) {
+            return left.evalDouble(frame) / right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatRemainder extends FloatBinary {
+        FloatRemainder (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override double evalDouble (Frame frame) {
+            return left.evalDouble(frame) % right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatGreater extends Predicate {
+        FloatGreater (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) > right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatLower extends Predicate {
+        FloatLower (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) < right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatGreaterEqual extends Predicate {
+        FloatGreaterEqual (SighNode node, ExecNode left, ExecNode right) {
+            super(node, left, right);
+        }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) >= right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatLowerEqual extends Predicate {
+        FloatLowerEqual (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) <= right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatEquals extends Predicate {
+        FloatEquals (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) == right.evalDouble(frame);
+        }
+    }
+
+    static final class FloatNotEquals extends Predicate {
+        FloatNotEquals (SighNode node, ExecNode left, ExecNode right) { super(node, left, right); }
+        @Override boolean evalBoolean (Frame frame) {
+            return left.evalDouble(frame) != right.evalDouble(frame);
+        }
+    }
+
+    // =============================================================================================
+    // Calls
+    // =============================================================================================
+
+    /**
+     * A call to a function known at compile time. The arguments are evaluated directly into the
+     * new frame, whose parent is found {@code depth} levels up from the caller's frame.
+     */
+    static final class Call extends ExecNode {
+        final CompiledFunction function;
+        final int depth;
+        final ExecNode[] arguments;
+        Call (SighNode node, CompiledFunction function, int depth, ExecNode[] arguments) {
+            super(node);
+            this.function = function;
+            this.depth = depth;
+            this.arguments = arguments;
+        }
+        @Override Object eval (Frame frame) {
+            Frame callee = function.newFrame(frame.up(depth));
+            for (int i = 0; i < arguments.length; ++i)
+                callee.slots[i] = arguments[i].eval(frame);
+            return function.run(callee);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call to a function value only known at run time (e.g. a method, or a function stored
+     * in a variable).
+     */
+    static final class DynamicCall extends ExecNode {
+        final ExecNode function;
+        final ExecNode[] arguments;
+        final IdentityHashMap<SighNode, CompiledFunction> functions;
+        DynamicCall (SighNode node, ExecNode function, ExecNode[] arguments,
+                     IdentityHashMap<SighNode, CompiledFunction> functions) {
+            super(node);
+            this.function = function;
+            this.arguments = arguments;
+            this.functions = functions;
+        }
+        @Override Object eval (Frame frame)
+        {
+            Object decl = function.eval(frame);
+            Object[] args = evalAll(arguments, frame);
+
+            if (decl == Null.INSTANCE)
+                throw new PassthroughException(new NullPointerException("calling a null function"));
+
+            if (decl instanceof SyntheticDeclarationNode)
+                return Interpreter.builtin(((SyntheticDeclarationNode) decl).name(), args);
+
+            if (decl instanceof Constructor)
+                return Interpreter.buildStruct(((Constructor) decl).shape, args);
+
+            if (decl instanceof BoxConstructor)
+                return Interpreter.buildBox(((BoxConstructor) decl).shape, args);
+
+            if (decl instanceof FunDeclarationNode || decl instanceof MethodDeclarationNode) {
+                CompiledFunction function = functions.get((DeclarationNode) decl);
+                Frame callee = function.newFrame(function.lexicalParent(frame));
+                System.arraycopy(args, 0, callee.slots, 0, args.length);
+                return function.run(callee);
+            }
+
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class Builtin extends ExecNode {
+        final String name;
+        final ExecNode[] arguments;
+        Builtin (SighNode node, String name, ExecNode[] arguments) {
+            super(node);
+            this.name = name;
+            this.arguments = arguments;
+        }
+        @Override Object eval (Frame frame) {
+            return Interpreter.builtin(name, evalAll(arguments, frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class NewStruct extends ExecNode {
+        final Shape shape;
+        final ExecNode[] arguments;
+        NewStruct (SighNode node, Shape shape, ExecNode[] arguments) {
+            super(node);
+            this.shape = shape;
+            this.arguments = arguments;
+        }
+        @Override Object eval (Frame frame) {
+            return Interpreter.buildStruct(shape, evalAll(arguments, frame));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class NewBox extends ExecNode {
+        final Shape shape;
+        final ExecNode[] arguments;
+        NewBox (SighNode node, Shape shape, ExecNode[] arguments) {
+            super(node);
+            this.shape = shape;
+            this.arguments = arguments;
+        }
+        @Override Object eval (Frame frame) {
+            return Interpreter.buildBox(shape, evalAll(arguments, frame));
+        }
+    }
+
+    // =============================================================================================
+    // Statements
+    // =============================================================================================
+
+    /** Base class for statements, which do not evaluate to a value. */
+    static abstract class Statement extends ExecNode {
+        Statement (SighNode node) { super(node); }
+        @Override abstract boolean exec (Frame frame);
+        @Override Object eval (Frame frame) {
+            exec(frame);
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A sequence of statements. Unexpected exceptions are wrapped in an {@link
+     * InterpreterException} mentioning the innermost statement that caused them.
+     */
+    static final class Block extends Statement {
+        final ExecNode[] statements;
+        Block (SighNode node, ExecNode[] statements) {
+            super(node);
+            this.statements = statements;
+        }
+        @Override boolean exec (Frame frame) {
+            int i = 0;
+            try {
+                for (; i < statements.length; ++i)
+                    if (statements[i].exec(frame))
+                        return true;
+                return false;
+            } catch (InterpreterException | PassthroughException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new InterpreterException(
+                    "exception while executing " + statements[i].node, e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class If extends Statement {
+        final ExecNode condition, trueStatement, falseStatement;
+        If (SighNode node, ExecNode condition, ExecNode trueStatement, ExecNode falseStatement) {
+            super(node);
+            this.condition = condition;
+            this.trueStatement = trueStatement;
+            this.falseStatement = falseStatement;
+        }
+        @Override boolean exec (Frame frame) {
+            if (condition.evalBoolean(frame))
+                return trueStatement.exec(frame);
+            else
+                return falseStatement != null && falseStatement.exec(frame);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class While extends Statement {
+        final ExecNode condition, body;
+        While (SighNode node, ExecNode condition, ExecNode body) {
+            super(node);
+            this.condition = condition;
+            this.body = body;
+        }
+        @Override boolean exec (Frame frame) {
+            while (condition.evalBoolean(frame))
+                if (body.exec(frame))
+                    return true;
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final class Return extends Statement {
+        final ExecNode value;
+        Return (SighNode node, ExecNode value) {
+            super(node);
+            this.value = value;
+        }
+        @Override boolean exec (Frame frame) {
+            frame.returnValue = value == null ? null : value.eval(frame);
+            return true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,648 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.Linker.Slot;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static norswap.sigh.interpreter.Interpreter.*;
+import static norswap.utils.Util.cast;
+import static norswap.utils.Vanilla.map;
+
+/**
+ * A single execution of a linked tree by the {@link Interpreter}, which evaluates the nodes of the
+ * tree by walking it.
+ *
+ * <p>An execution holds all the mutable state of the interpreter: the frame of the function being
+ * executed and the root frame (plus the {@link Tiering} counters and the {@link Profiler}
+ * recording, if any). Everything else (the tree, the {@link Linker} and the table mapping node
+ * classes to the methods evaluating them) is shared between executions and never modified, so
+ * that any number of executions of the same program can run concurrently, each on its own
+ * thread.
+ */
+final class Execution
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maps each node class to the method evaluating it. Never modified after initialization. */
+    private static final HashMap<Class<?>, BiFunction<Execution, SighNode, Object>> DISPATCH
+        = new HashMap<>();
+
+    static {
+        // expressions
+        register(IntLiteralNode.class,           Execution::intLiteral);
+        register(FloatLiteralNode.class,         Execution::floatLiteral);
+        register(StringLiteralNode.class,        Execution::stringLiteral);
+        register(ReferenceNode.class,            Execution::reference);
+        register(ConstructorNode.class,          Execution::constructor);
+        register(BoxConstructorNode.class,       Execution::boxConstructor);
+        register(ArrayLiteralNode.class,         Execution::arrayLiteral);
+        register(ParenthesizedNode.class,        Execution::parenthesized);
+        register(FieldAccessNode.class,          Execution::read);
+        register(BoxElementAccessNode.class,     Execution::read);
+        register(ArrayAccessNode.class,          Execution::read);
+        register(FunCallNode.class,              Execution::funCall);
+        register(UnaryExpressionNode.class,      Execution::unaryExpression);
+        register(BinaryExpressionNode.class,     Execution::binaryExpression);
+        register(AssignmentNode.class,           Execution::assignment);
+
+        // statement groups & declarations
+        register(RootNode.class,                 Execution::root);
+        register(BlockNode.class,                Execution::block);
+        register(VarDeclarationNode.class,       Execution::varDecl);
+        // no need to register other declarations! (they evaluate to null)
+
+        // statements
+        register(ExpressionStatementNode.class,  Execution::expressionStmt);
+        register(IfNode.class,                   Execution::ifStmt);
+        register(WhileNode.class,                Execution::whileStmt);
+        register(ReturnNode.class,               Execution::returnStmt);
+    }
+
+    private static <N extends SighNode> void register
+            (Class<N> klass, BiFunction<Execution, N, ?> method) {
+        DISPATCH.put(klass, cast(method));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Linker linker;
+    private final Tiering tiering;
+    private final Profiler.Recording profile;
+    private Frame frame = null;
+    private Frame rootFrame;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an execution of the tree linked by {@code linker}, which compiles hot functions
+     * with {@code tiering} and records its profile in {@code profile}, if not null.
+     */
+    Execution (Linker linker, Tiering tiering, Profiler.Recording profile) {
+        this.linker = linker;
+        this.tiering = tiering;
+        this.profile = profile;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the node. Statements evaluate to null, or to {@link #RETURNED}.
+     */
+    Object run (SighNode node)
+    {
+        if (profile != null) {
+            long start = System.nanoTime(), self = profile.nodeSelfNanos;
+            try {
+                return dispatch(node);
+            } finally {
+                profile.node(node, start, self);
+            }
+        }
+        return dispatch(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object dispatch (SighNode node) {
+        try {
+            BiFunction<Execution, SighNode, Object> method = DISPATCH.get(node.getClass());
+            return method == null ? null : method.apply(this, node);
+        } catch (InterpreterException | PassthroughException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new InterpreterException("exception while executing " + node, e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The completion signal of statements that executed a return statement (other statements
+     * evaluate to null). The returned value is then found in {@link Frame#returnValue}.
+     */
+    private static final Object RETURNED = new Object() {
+        @Override public String toString () {
+            return "RETURNED";
+        }
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    private <T> T get(SighNode node) {
+        return cast(run(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates an expression whose value is stored in a location, widening it if its type
+     * requires (see {@link Linker#widening}).
+     */
+    private Object getStored (ExpressionNode node) {
+        Object value = run(node);
+        ArrayType widening = linker.widening(node);
+        return widening == null ? value : widen(value, widening);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Long intLiteral (IntLiteralNode node) {
+        return node.value;
+    }
+
+    private Double floatLiteral (FloatLiteralNode node) {
+        return node.value;
+    }
+
+    private String stringLiteral (StringLiteralNode node) {
+        return node.value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object parenthesized (ParenthesizedNode node) {
+        return get(node.expression);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object arrayLiteral (ArrayLiteralNode node)
+    {
+        ArrayType type = cast(linker.type(node));
+        Object array = newArray(type.componentType, node.components.size());
+        for (int i = 0; i < node.components.size(); ++i)
+            arraySet(array, i, getStored(node.components.get(i)));
+        return array;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object binaryExpression (BinaryExpressionNode node)
+    {
+        Object constant = linker.constant(node);
+        if (constant != null) return constant;
+        ExpressionNode simplified = linker.simplified(node);
+        if (simplified != null) return get(simplified);
+
+        Type leftType  = linker.type(node.left);
+        Type rightType = linker.type(node.right);
+
+        // Cases where both operands should not be evaluated.
+        switch (node.operator) {
+            case OR:  return booleanOp(node, false);
+            case AND: return booleanOp(node, true);
+        }
+
+        Object left  = get(node.left);
+        Object right = get(node.right);
+
+        if (node.operator == BinaryOperator.ADD
+            && (leftType instanceof StringType || rightType instanceof StringType))
+            return convertToString(left) + convertToString(right);
+
+        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
+        boolean numeric  = floating || leftType instanceof IntType;
+
+        if (numeric)
+            return numericOp(node, floating, (Number) left, (Number) right);
+
+        switch (node.operator) {
+            case EQUALITY:
+                return  leftType.isPrimitive() ? left.equals(right) : left == right;
+            case NOT_EQUALS:
+                return  leftType.isPrimitive() ? !left.equals(right) : left != right;
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean booleanOp (BinaryExpressionNode node, boolean isAnd)
+    {
+        boolean left = get(node.left);
+        return isAnd
+            ? left && (boolean) get(node.right)
+            : left || (boolean) get(node.right);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object numericOp
+        (BinaryExpressionNode node, boolean floating, Number left, Number right)
+    {
+        long ileft, iright;
+        double fleft, fright;
+
+        if (floating) {
+            fleft  = left.doubleValue();
+            fright = right.doubleValue();
+            ileft = iright = 0;
+        } else {
+            ileft  = left.longValue();
+            iright = right.longValue();
+            fleft = fright = 0;
+        }
+
+        Object result;
+        if (floating)
+            switch (node.operator) {
+                case MULTIPLY:      return fleft *  fright;
+                case DIVIDE:        return fleft /  fright;
+                case REMAINDER:     return fleft %  fright;
+                case ADD:           return fleft +  fright;
+                case SUBTRACT:      return fleft -  fright;
+                case GREATER:       return fleft >  fright;
+                case LOWER:         return fleft <  fright;
+                case GREATER_EQUAL: return fleft >= fright;
+                case LOWER_EQUAL:   return fleft <= fright;
+                case EQUALITY:      return fleft == fright;
+                case NOT_EQUALS:    return fleft != fright;
+                default:
+                    throw new Error("should not reach here");
+            }
+        else
+            switch (node.operator) {
+                case MULTIPLY:      return ileft *  iright;
+                case DIVIDE:        return ileft /  iright;
+                case REMAINDER:     return ileft %  iright;
+                case ADD:           return ileft +  iright;
+                case SUBTRACT:      return ileft -  iright;
+                case GREATER:       return ileft >  iright;
+                case LOWER:         return ileft <  iright;
+                case GREATER_EQUAL: return ileft >= iright;
+                case LOWER_EQUAL:   return ileft <= iright;
+                case EQUALITY:      return ileft == iright;
+                case NOT_EQUALS:    return ileft != iright;
+                default:
+                    throw new Error("should not reach here");
+            }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object assignment (AssignmentNode node)
+    {
+        if (node.left instanceof ReferenceNode) {
+            Slot slot = linker.slot((ReferenceNode) node.left);
+            Object rvalue = getStored(node.right);
+            if (slot == null)
+                throw new UnsupportedOperationException(
+                    "assigning to non-variable: " + ((ReferenceNode) node.left).name);
+            frame.set(slot, convert(rvalue, linker.type(node)));
+            return rvalue;
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            Object array = getNonNullArray(arrayAccess.array);
+            int index = getIndex(arrayAccess.index);
+            try {
+                return arraySet(array, index, getStored(node.right));
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            }
+        }
+
+        if (node.left instanceof FieldAccessNode) {
+            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
+            Object object = get(fieldAccess.stem);
+            if (object == Null.INSTANCE)
+                throw new PassthroughException(
+                    new NullPointerException("accessing field of null object"));
+            Object right = getStored(node.right);
+            ((Instance) object).values[linker.fieldIndex(fieldAccess)] = right;
+            return right;
+        }
+
+        if (node.left instanceof BoxElementAccessNode) {
+            // TODO this should change the value in the scope instead of the current way
+            BoxElementAccessNode boxAccess = (BoxElementAccessNode) node.left;
+            Object object = get(boxAccess.stem);
+            if (object == Null.INSTANCE)
+                throw new PassthroughException(
+                    new NullPointerException("accessing box of null object"));
+            Object right = getStored(node.right);
+            ((Instance) object).values[linker.fieldIndex(boxAccess)] = right;
+            return right;
+        }
+
+        throw new Error("should not reach here");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int getIndex (ExpressionNode node) {
+        return checkIndex(get(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object getNonNullArray (ExpressionNode node)
+    {
+        Object object = get(node);
+        if (object == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("indexing null array"));
+        return object;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object unaryExpression (UnaryExpressionNode node)
+    {
+        Object constant = linker.constant(node);
+        if (constant != null) return constant;
+        ExpressionNode simplified = linker.simplified(node);
+        if (simplified != null) return get(simplified);
+
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        return ! (boolean) get(node.operand);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates an array access, field access or box element access, using or filling the
+     * temporary assigned to it by {@link norswap.sigh.LoopOptimization}, if any.
+     */
+    private Object read (ExpressionNode node)
+    {
+        Slot reused = linker.reusedTemp(node);
+        if (reused != null)
+            return frame.get(reused);
+
+        Object value = readUncached(node);
+        Slot defined = linker.definedTemp(node);
+        if (defined != null)
+            frame.set(defined, value);
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object readUncached (ExpressionNode node)
+    {
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node);
+        if (node instanceof FieldAccessNode)
+            return fieldAccess((FieldAccessNode) node);
+        return boxElementAccess((BoxElementAccessNode) node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object arrayAccess (ArrayAccessNode node)
+    {
+        Object array = getNonNullArray(node.array);
+        try {
+            return arrayGet(array, getIndex(node.index));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new PassthroughException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object root (RootNode node)
+    {
+        assert frame == null;
+        RootScope rootScope = linker.rootScope();
+        frame = rootFrame = new Frame(node, null,
+            linker.frameSize(node), linker.primitiveFrameSize(node));
+        frame.set(linker.slot(rootScope._true),  true);
+        frame.set(linker.slot(rootScope._false), false);
+        frame.set(linker.slot(rootScope._null),  Null.INSTANCE);
+
+        // Function and types are not assigned values in frames - instead they derive
+        // their runtime value values from the corresponding DeclarationNode.
+
+        long start = profile == null ? 0 : System.nanoTime();
+        long self  = profile == null ? 0 : profile.functionSelfNanos;
+        try {
+            runStatements(node.statements); // allow returning from the main script
+            return frame.returnValue;
+        } finally {
+            frame = null;
+            if (profile != null) profile.function(node, start, self);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object block (BlockNode node) {
+        // variables declared in the block have their own slots in the function's frame
+        return runStatements(node.statements);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the statements in order, stopping after a return statement, in which case {@link
+     * #RETURNED} is returned (null otherwise).
+     */
+    private Object runStatements (List<StatementNode> statements)
+    {
+        for (StatementNode statement: statements)
+            if (run(statement) == RETURNED)
+                return RETURNED;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Constructor constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        StructDeclarationNode decl = get(node.ref);
+        return new Constructor(decl, linker.shape(decl));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private BoxConstructor boxConstructor (BoxConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        BoxDeclarationNode decl = get(node.ref);
+        return new BoxConstructor(decl, linker.shape(decl));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object expressionStmt (ExpressionStatementNode node) {
+        get(node.expression);
+        return null;  // discard value
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object fieldAccess (FieldAccessNode node)
+    {
+        Object stem = get(node.stem);
+        if (stem == Null.INSTANCE)
+            throw new PassthroughException(
+                new NullPointerException("accessing field of null object"));
+        return stem instanceof Instance
+            ? ((Instance) stem).values[linker.fieldIndex(node)]
+            : arrayLength(stem); // only field on arrays
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object boxElementAccess (BoxElementAccessNode node)
+    {
+        // TODO this should look in the scope to find the value
+        Object stem = get(node.stem);
+        if (stem == Null.INSTANCE)
+            throw new PassthroughException(
+                new NullPointerException("accessing attribute of null object"));
+        return stem instanceof Instance
+            ? ((Instance) stem).values[linker.fieldIndex(node)]
+            : arrayLength(stem); // only element on arrays
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object funCall (FunCallNode node)
+    {
+        Object decl = get(node.function);
+        Object[] args = map(node.arguments, new Object[0], this::getStored); // evaluated once
+
+        if (decl == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (decl instanceof SyntheticDeclarationNode)
+            return builtin(((SyntheticDeclarationNode) decl).name(), args);
+
+        if (decl instanceof Constructor)
+            return buildStruct(((Constructor) decl).shape, args);
+
+        if (decl instanceof BoxConstructor)
+            return buildBox(((BoxConstructor) decl).shape, args);
+
+        if (decl instanceof FunDeclarationNode) {
+            if (tiering != null) {
+                Object result = tiering.call((FunDeclarationNode) decl, args);
+                if (result != Tiering.INTERPRET)
+                    return result;
+            }
+            return invoke((FunDeclarationNode) decl, ((FunDeclarationNode) decl).block, args);
+        }
+
+        if (decl instanceof MethodDeclarationNode)
+            return invoke((MethodDeclarationNode) decl, ((MethodDeclarationNode) decl).block, args);
+
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the body of the given function or method in a new frame, whose first slots
+     * are filled with the arguments.
+     */
+    private Object invoke (DeclarationNode decl, BlockNode block, Object[] args)
+    {
+        Frame oldFrame = frame;
+        frame = new Frame(decl, lexicalParent(decl),
+            linker.frameSize(decl), linker.primitiveFrameSize(decl));
+        System.arraycopy(args, 0, frame.slots, 0, args.length);
+
+        long start = profile == null ? 0 : System.nanoTime();
+        long self  = profile == null ? 0 : profile.functionSelfNanos;
+        try {
+            run(block);
+            return frame.returnValue;
+        } finally {
+            frame = oldFrame;
+            if (profile != null) profile.function(decl, start, self);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame that must be the parent of a new frame for the given function or method:
+     * the nearest frame of its lexically enclosing function (or the root frame).
+     *
+     * <p>Since function values do not capture their environment, the frame is looked up in the
+     * frames of the caller, and will only be found if the function is called from within its
+     * enclosing function. Otherwise, null is returned and accessing the variables of the
+     * enclosing function will fail.
+     */
+    private Frame lexicalParent (DeclarationNode decl)
+    {
+        SighNode enclosing = linker.enclosingOwner(decl);
+        if (enclosing == rootFrame.owner)
+            return rootFrame;
+        for (Frame f = frame; f != null; f = f.parent)
+            if (f.owner == enclosing)
+                return f;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object ifStmt (IfNode node)
+    {
+        if (get(node.condition))
+            return run(node.trueStatement);
+        else if (node.falseStatement != null)
+            return run(node.falseStatement);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object whileStmt (WhileNode node)
+    {
+        List<ExpressionNode> hoisted = linker.hoisted(node);
+        if (hoisted != null)
+            for (ExpressionNode read: hoisted)
+                frame.set(linker.reusedTemp(read), readUncached(read));
+
+        while (get(node.condition)) {
+            if (run(node.body) == RETURNED)
+                return RETURNED;
+            if (tiering != null)
+                tiering.backEdge(frame.owner);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object reference (ReferenceNode node)
+    {
+        Slot slot = linker.slot(node);
+        if (slot != null) // variable
+            return frame.get(slot);
+
+        return linker.decl(node); // structure, box or function
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object returnStmt (ReturnNode node) {
+        frame.returnValue = node.expression == null ? null : getStored(node.expression);
+        return RETURNED;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Void varDecl (VarDeclarationNode node)
+    {
+        // a declaration is always in the frame of the current function
+        frame.set(linker.slot(node), convert(getStored(node.initializer), linker.type(node)));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
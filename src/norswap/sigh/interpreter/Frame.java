@@ -0,0 +1,120 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.MethodDeclarationNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+import java.util.Arrays;
+
+/**
+ * The storage for the variables of a single invocation of a function or method (or of the main
+ * script), laid out by {@link Linker}.
+ *
+ * <p>All variables declared in the function, including those declared in nested blocks, get their
+ * own slot in the frame: blocks do not need storage of their own. Variables of lexically enclosing
+ * functions are reached by following the {@link #parent} chain.
+ *
+ * <p>Variables of primitive types are stored unboxed in {@link #primitives}, while all other
+ * variables are stored in {@link #slots} (see {@link Linker.Kind}).
+ */
+public final class Frame
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The node owning this frame: a {@link RootNode}, {@link FunDeclarationNode} or {@link
+     * MethodDeclarationNode}.
+     */
+    public final SighNode owner;
+
+    /**
+     * The frame of the lexically enclosing function (or of the main script), or null for the root
+     * frame.
+     */
+    public final Frame parent;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final long[] NO_PRIMITIVES = new long[0];
+
+    final Object[] slots;
+    final long[] primitives;
+
+    /**
+     * The value of the last return statement executed in this frame (null if none, or if it
+     * didn't have a value).
+     */
+    Object returnValue;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Frame (SighNode owner, Frame parent, int size, int primitiveSize) {
+        this.owner = owner;
+        this.parent = parent;
+        this.slots = new Object[size];
+        this.primitives = primitiveSize == 0 ? NO_PRIMITIVES : new long[primitiveSize];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the frame {@code depth} levels up the {@link #parent} chain.
+     */
+    Frame up (int depth)
+    {
+        Frame frame = this;
+        for (; depth > 0; --depth)
+            frame = frame.parent;
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value at the given location, as determined by {@link Linker}, boxing it if
+     * necessary.
+     */
+    Object get (Linker.Slot slot)
+    {
+        Frame frame = up(slot.depth);
+        switch (slot.kind) {
+            case LONG:    return frame.primitives[slot.index];
+            case DOUBLE:  return Double.longBitsToDouble(frame.primitives[slot.index]);
+            case BOOLEAN: return frame.primitives[slot.index] != 0;
+            default:      return frame.slots[slot.index];
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the value at the given location, as determined by {@link Linker}, unboxing it if
+     * necessary.
+     */
+    void set (Linker.Slot slot, Object value)
+    {
+        Frame frame = up(slot.depth);
+        switch (slot.kind) {
+            case LONG:
+                frame.primitives[slot.index] = (long) value;
+                break;
+            case DOUBLE:
+                frame.primitives[slot.index] = Double.doubleToRawLongBits((double) value);
+                break;
+            case BOOLEAN:
+                frame.primitives[slot.index] = (boolean) value ? 1 : 0;
+                break;
+            default:
+                frame.slots[slot.index] = value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString() {
+        return "Frame " + owner + " " + Arrays.toString(slots)
+            + " " + Arrays.toString(primitives);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
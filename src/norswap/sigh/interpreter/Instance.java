@@ -0,0 +1,50 @@
+package norswap.sigh.interpreter;
+
+/**
+ * An instance of a structure or a box: its {@link Shape} and the values of its fields, stored in
+ * an array, in the same order as in the shape.
+ */
+public final class Instance
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final Shape shape;
+    final Object[] values;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Instance (Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the field with the given name.
+     *
+     * <p>This is meant for inspecting values from outside the interpreter, which uses field
+     * indices instead.
+     */
+    public Object get (String name)
+    {
+        int index = shape.indexOf(name);
+        if (index < 0)
+            throw new IllegalArgumentException("no field " + name + " in " + shape.declaration);
+        return values[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder("{");
+        for (int i = 0; i < values.length; ++i) {
+            if (i > 0) b.append(", ");
+            b.append(shape.names[i]).append("=").append(values[i]);
+        }
+        return b.append("}").toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,35 +1,24 @@
 package norswap.sigh.interpreter;
 
 import norswap.sigh.ast.*;
-import norswap.sigh.scopes.DeclarationKind;
-import norswap.sigh.scopes.RootScope;
-import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
 import norswap.sigh.types.FloatType;
 import norswap.sigh.types.IntType;
-import norswap.sigh.types.StringType;
 import norswap.sigh.types.Type;
 import norswap.uranium.Reactor;
-import norswap.utils.Util;
 import norswap.utils.exceptions.Exceptions;
-import norswap.utils.exceptions.NoStackException;
-import norswap.utils.visitors.ValuedVisitor;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-
-import static norswap.utils.Util.cast;
-import static norswap.utils.Vanilla.coIterate;
-import static norswap.utils.Vanilla.map;
 
 /**
  * Implements a simple but inefficient interpreter for Sigh.
  *
  * <h2>Limitations</h2>
  * <ul>
- *     <li>The compiled code currently doesn't support closures (using variables in functions that
- *     are declared in some surroudning scopes outside the function). The top scope is supported.
- *     </li>
+ *     <li>Nested functions can use the variables of their enclosing functions, but function values
+ *     do not capture their environment: a nested function can only access these variables when
+ *     called from within its enclosing function (see {@link Execution#lexicalParent}).</li>
  * </ul>
  *
  * <p>Runtime value representation:
@@ -37,282 +26,181 @@ import static norswap.utils.Vanilla.map;
  *     <li>{@code Int}, {@code Float}, {@code Bool}: {@link Long}, {@link Double}, {@link Boolean}</li>
  *     <li>{@code String}: {@link String}</li>
  *     <li>{@code null}: {@link Null#INSTANCE}</li>
- *     <li>Arrays: {@code Object[]}</li>
- *     <li>Structs: {@code HashMap<String, Object>}</li>
+ *     <li>Arrays: {@code long[]}, {@code double[]} and {@code boolean[]} for arrays of {@code Int},
+ *     {@code Float} and {@code Bool} (as in {@link norswap.sigh.bytecode.TypeUtils#javaArrayClass}),
+ *     {@code Object[]} for the others. Since {@code Int[]} is assignable to {@code Float[]}, an
+ *     {@code Int[]} value is widened to a new {@code double[]} when it is stored in a {@code
+ *     Float[]} location (see {@link Linker#widening}), and an array literal is directly created
+ *     with the representation of the location it is stored in.</li>
+ *     <li>Structs and boxes: {@link Instance}, whose fields are stored in an array, according to
+ *     the {@link Shape} of the declaration</li>
  *     <li>Functions: the corresponding {@link DeclarationNode} ({@link FunDeclarationNode} or
  *     {@link SyntheticDeclarationNode}), excepted structure and boxes constructors, which are
  *     represented by {@link Constructor} and {@link BoxConstructor}</li>
  *     <li>Types: the corresponding {@link StructDeclarationNode} and {@link BoxDeclarationNode}</li>
  * </ul>
+ *
+ * <p>Variables are stored in {@link Frame frames}, one per function invocation, whose layout is
+ * computed by {@link Linker} before execution starts. A variable access is then simply an
+ * array access, possibly after walking up a few frames for variables of enclosing functions.
+ *
+ * <p>The interpreter does not consult the {@link Reactor} during execution: the attributes it
+ * needs are snapshotted by the {@link Linker}.
+ *
+ * <p>If created with a compile threshold, the interpreter switches hot functions to compiled
+ * bytecode (see {@link Tiering}).
+ *
+ * <p>If created with a {@link Profiler}, the interpreter records the number of executions and the
+ * time spent in every node and function. Otherwise, this only costs a null check per node.
+ *
+ * <p>Return statements do not use exceptions for control flow: they store their value in the
+ * {@link Frame} and evaluate to {@link Execution#RETURNED}, which blocks, if statements and while
+ * loops propagate by stopping their execution and evaluating to it in turn.
+ *
+ * <p>An interpreter is thread-safe: the linked tree is immutable and shared (as is the code that
+ * {@link Tiering} compiled for it), while the state of each call to {@link #interpret} (its frames
+ * and its {@link Tiering} counters) lives in a separate {@link Execution}. Hence a single
+ * interpreter can run the same program concurrently from many threads, provided the tree and its
+ * attributes are not modified once it has been interpreted.
  */
 public final class Interpreter
 {
     // ---------------------------------------------------------------------------------------------
 
-    private final ValuedVisitor<SighNode, Object> visitor = new ValuedVisitor<>();
     private final Reactor reactor;
-    private ScopeStorage storage = null;
-    private RootScope rootScope;
-    private ScopeStorage rootStorage;
-
-    // ---------------------------------------------------------------------------------------------
-
-    public Interpreter (Reactor reactor) {
-        this.reactor = reactor;
-
-        // expressions
-        visitor.register(IntLiteralNode.class,           this::intLiteral);
-        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
-        visitor.register(StringLiteralNode.class,        this::stringLiteral);
-        visitor.register(ReferenceNode.class,            this::reference);
-        visitor.register(ConstructorNode.class,          this::constructor);
-        visitor.register(BoxConstructorNode.class,       this::boxConstructor);
-        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
-        visitor.register(ParenthesizedNode.class,        this::parenthesized);
-        visitor.register(FieldAccessNode.class,          this::fieldAccess);
-        visitor.register(BoxElementAccessNode.class,     this::boxElementAccess);
-        visitor.register(ArrayAccessNode.class,          this::arrayAccess);
-        visitor.register(FunCallNode.class,              this::funCall);
-        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
-        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
-        visitor.register(AssignmentNode.class,           this::assignment);
-
-        // statement groups & declarations
-        visitor.register(RootNode.class,                 this::root);
-        visitor.register(BlockNode.class,                this::block);
-        visitor.register(VarDeclarationNode.class,       this::varDecl);
-        // no need to visitor other declarations! (use fallback)
-
-        // statements
-        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
-        visitor.register(IfNode.class,                   this::ifStmt);
-        visitor.register(WhileNode.class,                this::whileStmt);
-        visitor.register(ReturnNode.class,               this::returnStmt);
-
-        visitor.registerFallback(node -> null);
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    public Object interpret (SighNode root) {
-        try {
-            return run(root);
-        } catch (PassthroughException e) {
-            throw Exceptions.runtime(e.getCause());
-        }
-    }
+    private final int compileThreshold;
 
-    // ---------------------------------------------------------------------------------------------
+    /** The profiler recording the executions, or null. */
+    private final Profiler profiler;
 
-    private Object run (SighNode node) {
-        try {
-            return visitor.apply(node);
-        } catch (InterpreterException | Return | PassthroughException e) {
-            throw e;
-        } catch (RuntimeException e) {
-            throw new InterpreterException("exception while executing " + node, e);
-        }
-    }
+    /** The last tree linked by this interpreter, reused when interpreting the same tree again. */
+    private volatile Linked linked;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Used to implement the control flow of the return statement.
+     * The outcome of an execution (see {@link #execute}).
      */
-    private static class Return extends NoStackException {
-        final Object value;
-        private Return (Object value) {
-            this.value = value;
-        }
-    }
+    public static final class Result
+    {
+        /** The return value of the program. */
+        public final Object value;
 
-    // ---------------------------------------------------------------------------------------------
+        /**
+         * The number of functions that were called in their compiled form (see {@link Tiering}),
+         * including those compiled by earlier executions of the same tree.
+         */
+        public final int compiledFunctions;
 
-    private <T> T get(SighNode node) {
-        return cast(run(node));
+        Result (Object value, int compiledFunctions) {
+            this.value = value;
+            this.compiledFunctions = compiledFunctions;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Long intLiteral (IntLiteralNode node) {
-        return node.value;
-    }
-
-    private Double floatLiteral (FloatLiteralNode node) {
-        return node.value;
-    }
-
-    private String stringLiteral (StringLiteralNode node) {
-        return node.value;
+    /** A tree, its link step and its compiled code (if tiering is enabled, or null). */
+    private static final class Linked
+    {
+        final SighNode root;
+        final Linker linker;
+        final Tiering.Code code;
+
+        Linked (SighNode root, Linker linker, Tiering.Code code) {
+            this.root = root;
+            this.linker = linker;
+            this.code = code;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object parenthesized (ParenthesizedNode node) {
-        return get(node.expression);
+    public Interpreter (Reactor reactor) {
+        this(reactor, 0);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] arrayLiteral (ArrayLiteralNode node) {
-        return map(node.components, new Object[0], visitor);
+    /**
+     * Creates an interpreter which compiles functions to bytecode once they have been called or
+     * have looped {@code compileThreshold} times (see {@link Tiering}). A threshold of 0 disables
+     * compilation.
+     */
+    public Interpreter (Reactor reactor, int compileThreshold) {
+        this(reactor, compileThreshold, null);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object binaryExpression (BinaryExpressionNode node)
-    {
-        Type leftType  = reactor.get(node.left, "type");
-        Type rightType = reactor.get(node.right, "type");
-
-        // Cases where both operands should not be evaluated.
-        switch (node.operator) {
-            case OR:  return booleanOp(node, false);
-            case AND: return booleanOp(node, true);
-        }
-
-        Object left  = get(node.left);
-        Object right = get(node.right);
-
-        if (node.operator == BinaryOperator.ADD
-            && (leftType instanceof StringType || rightType instanceof StringType))
-            return convertToString(left) + convertToString(right);
-
-        boolean floating = leftType instanceof FloatType || rightType instanceof FloatType;
-        boolean numeric  = floating || leftType instanceof IntType;
-
-        if (numeric)
-            return numericOp(node, floating, (Number) left, (Number) right);
-
-        switch (node.operator) {
-            case EQUALITY:
-                return  leftType.isPrimitive() ? left.equals(right) : left == right;
-            case NOT_EQUALS:
-                return  leftType.isPrimitive() ? !left.equals(right) : left != right;
-        }
-
-        throw new Error("should not reach here");
+    /**
+     * Creates an interpreter with the given compile threshold (see {@link #Interpreter(Reactor,
+     * int)}), which records the profile of its executions in {@code profiler}, if not null.
+     */
+    public Interpreter (Reactor reactor, int compileThreshold, Profiler profiler) {
+        if (compileThreshold < 0)
+            throw new IllegalArgumentException("negative compile threshold: " + compileThreshold);
+        this.reactor = reactor;
+        this.compileThreshold = compileThreshold;
+        this.profiler = profiler;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private boolean booleanOp (BinaryExpressionNode node, boolean isAnd)
-    {
-        boolean left = get(node.left);
-        return isAnd
-            ? left && (boolean) get(node.right)
-            : left || (boolean) get(node.right);
+    /**
+     * Executes the tree, whose semantic analysis must have completed successfully using the
+     * reactor of this interpreter, and returns its return value. May be called concurrently.
+     */
+    public Object interpret (SighNode root) {
+        return execute(root).value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object numericOp
-        (BinaryExpressionNode node, boolean floating, Number left, Number right)
+    /**
+     * Executes the tree like {@link #interpret}, and returns its return value along with
+     * information about the execution. May be called concurrently.
+     */
+    public Result execute (SighNode root)
     {
-        long ileft, iright;
-        double fleft, fright;
-
-        if (floating) {
-            fleft  = left.doubleValue();
-            fright = right.doubleValue();
-            ileft = iright = 0;
-        } else {
-            ileft  = left.longValue();
-            iright = right.longValue();
-            fleft = fright = 0;
+        Linked linked = link(root);
+        Tiering tiering = linked.code == null ? null : new Tiering(linked.code, compileThreshold);
+        Profiler.Recording profile = profiler == null ? null : profiler.new Recording();
+        try {
+            Object value = new Execution(linked.linker, tiering, profile).run(root);
+            return new Result(value, tiering == null ? 0 : tiering.compiledFunctions());
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        } finally {
+            if (profile != null) profile.merge();
         }
-
-        Object result;
-        if (floating)
-            switch (node.operator) {
-                case MULTIPLY:      return fleft *  fright;
-                case DIVIDE:        return fleft /  fright;
-                case REMAINDER:     return fleft %  fright;
-                case ADD:           return fleft +  fright;
-                case SUBTRACT:      return fleft -  fright;
-                case GREATER:       return fleft >  fright;
-                case LOWER:         return fleft <  fright;
-                case GREATER_EQUAL: return fleft >= fright;
-                case LOWER_EQUAL:   return fleft <= fright;
-                case EQUALITY:      return fleft == fright;
-                case NOT_EQUALS:    return fleft != fright;
-                default:
-                    throw new Error("should not reach here");
-            }
-        else
-            switch (node.operator) {
-                case MULTIPLY:      return ileft *  iright;
-                case DIVIDE:        return ileft /  iright;
-                case REMAINDER:     return ileft %  iright;
-                case ADD:           return ileft +  iright;
-                case SUBTRACT:      return ileft -  iright;
-                case GREATER:       return ileft >  iright;
-                case LOWER:         return ileft <  iright;
-                case GREATER_EQUAL: return ileft >= iright;
-                case LOWER_EQUAL:   return ileft <= iright;
-                case EQUALITY:      return ileft == iright;
-                case NOT_EQUALS:    return ileft != iright;
-                default:
-                    throw new Error("should not reach here");
-            }
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    public Object assignment (AssignmentNode node)
+    /**
+     * Returns the link step and compiled code of the tree, running the link step unless it is the
+     * tree that was linked last. Concurrent calls may link the same tree more than once, which is
+     * harmless (but may compile it more than once as well).
+     */
+    private Linked link (SighNode root)
     {
-        if (node.left instanceof ReferenceNode) {
-            Scope scope = reactor.get(node.left, "scope");
-            String name = ((ReferenceNode) node.left).name;
-            Object rvalue = get(node.right);
-            assign(scope, name, rvalue, reactor.get(node, "type"));
-            return rvalue;
-        }
-
-        if (node.left instanceof ArrayAccessNode) {
-            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
-            Object[] array = getNonNullArray(arrayAccess.array);
-            int index = getIndex(arrayAccess.index);
-            try {
-                return array[index] = get(node.right);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new PassthroughException(e);
-            }
-        }
-
-        if (node.left instanceof FieldAccessNode) {
-            FieldAccessNode fieldAccess = (FieldAccessNode) node.left;
-            Object object = get(fieldAccess.stem);
-            if (object == Null.INSTANCE)
-                throw new PassthroughException(
-                    new NullPointerException("accessing field of null object"));
-            Map<String, Object> struct = cast(object);
-            Object right = get(node.right);
-            struct.put(fieldAccess.fieldName, right);
-            return right;
-        }
-
-        if (node.left instanceof BoxElementAccessNode) {
-            // TODO this should change the value in the scope instead of the current way
-            BoxElementAccessNode boxAccess = (BoxElementAccessNode) node.left;
-            Object object = get(boxAccess.stem);
-            if (object == Null.INSTANCE)
-                throw new PassthroughException(
-                    new NullPointerException("accessing box of null object"));
-            Map<String, Object> box = cast(object);
-            Object right = get(node.right);
-            box.put(boxAccess.elementName, right);
-            return right;
-        }
-
-        throw new Error("should not reach here");
+        Linked last = linked;
+        if (last != null && last.root == root)
+            return last;
+        Linker linker = Linker.link(reactor, root);
+        Tiering.Code code = compileThreshold > 0 && root instanceof RootNode
+            ? new Tiering.Code(reactor, linker, (RootNode) root)
+            : null;
+        last = new Linked(root, linker, code);
+        linked = last;
+        return last;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private int getIndex (ExpressionNode node)
+    static int checkIndex (long index)
     {
-        long index = get(node);
         if (index < 0)
             throw new ArrayIndexOutOfBoundsException("Negative index: " + index);
         if (index >= Integer.MAX_VALUE - 1)
@@ -322,169 +210,74 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object[] getNonNullArray (ExpressionNode node)
-    {
-        Object object = get(node);
-        if (object == Null.INSTANCE)
-            throw new PassthroughException(new NullPointerException("indexing null array"));
-        return (Object[]) object;
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Object unaryExpression (UnaryExpressionNode node)
-    {
-        // there is only NOT
-        assert node.operator == UnaryOperator.NOT;
-        return ! (boolean) get(node.operand);
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Object arrayAccess (ArrayAccessNode node)
-    {
-        Object[] array = getNonNullArray(node.array);
-        try {
-            return array[getIndex(node.index)];
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new PassthroughException(e);
-        }
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Object root (RootNode node)
+    /**
+     * Creates an array of the given length, whose class is the representation of arrays whose
+     * components have the given type.
+     */
+    static Object newArray (Type componentType, int length)
     {
-        assert storage == null;
-        rootScope = reactor.get(node, "scope");
-        storage = rootStorage = new ScopeStorage(rootScope, null);
-        storage.initRoot(rootScope);
-
-        try {
-            node.statements.forEach(this::run);
-        } catch (Return r) {
-            return r.value;
-            // allow returning from the main script
-        } finally {
-            storage = null;
-        }
-        return null;
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Void block (BlockNode node) {
-        Scope scope = reactor.get(node, "scope");
-        storage = new ScopeStorage(scope, storage);
-        node.statements.forEach(this::run);
-        storage = storage.parent;
-        return null;
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Constructor constructor (ConstructorNode node) {
-        // guaranteed safe by semantic analysis
-        return new Constructor(get(node.ref));
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private BoxConstructor boxConstructor (BoxConstructorNode node) {
-        // guaranteed safe by semantic analysis
-        return new BoxConstructor(get(node.ref));
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Object expressionStmt (ExpressionStatementNode node) {
-        get(node.expression);
-        return null;  // discard value
+        if (componentType instanceof IntType)
+            return new long[length];
+        else if (componentType instanceof FloatType)
+            return new double[length];
+        else if (componentType instanceof BoolType)
+            return new boolean[length];
+        else
+            return new Object[length];
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object fieldAccess (FieldAccessNode node)
+    /**
+     * Returns the component of the array at the given index, boxing it if needed.
+     */
+    static Object arrayGet (Object array, int index)
     {
-        Object stem = get(node.stem);
-        if (stem == Null.INSTANCE)
-            throw new PassthroughException(
-                new NullPointerException("accessing field of null object"));
-        return stem instanceof Map
-            ? Util.<Map<String, Object>>cast(stem).get(node.fieldName)
-            : (long) ((Object[]) stem).length; // only field on arrays
+        if (array instanceof long[])
+            return ((long[]) array)[index];
+        else if (array instanceof double[])
+            return ((double[]) array)[index];
+        else if (array instanceof boolean[])
+            return ((boolean[]) array)[index];
+        else
+            return ((Object[]) array)[index];
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object boxElementAccess (BoxElementAccessNode node)
+    /**
+     * Sets the component of the array at the given index, and returns the value, unconverted.
+     */
+    static Object arraySet (Object array, int index, Object value)
     {
-        // TODO this should look in the scope to find the value
-        Object stem = get(node.stem);
-        if (stem == Null.INSTANCE)
-            throw new PassthroughException(
-                new NullPointerException("accessing attribute of null object"));
-        return stem instanceof Map
-            ? Util.<Map<String, Object>>cast(stem).get(node.elementName)
-            : (long) ((Object[]) stem).length; // only element on arrays
+        if (array instanceof long[])
+            ((long[]) array)[index] = (long) value;
+        else if (array instanceof double[])
+            ((double[]) array)[index] = ((Number) value).doubleValue();
+        else if (array instanceof boolean[])
+            ((boolean[]) array)[index] = (boolean) value;
+        else
+            ((Object[]) array)[index] = value;
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object funCall (FunCallNode node)
+    static long arrayLength (Object array)
     {
-        Object decl = get(node.function);
-        node.arguments.forEach(this::run);
-        Object[] args = map(node.arguments, new Object[0], visitor);
-
-        if (decl == Null.INSTANCE)
-            throw new PassthroughException(new NullPointerException("calling a null function"));
-
-        if (decl instanceof SyntheticDeclarationNode)
-            return builtin(((SyntheticDeclarationNode) decl).name(), args);
-
-        if (decl instanceof Constructor)
-            return buildStruct(((Constructor) decl).declaration, args);
-
-        if (decl instanceof BoxConstructor)
-            return buildBox(((BoxConstructor) decl).declaration, args);
-
-        ScopeStorage oldStorage = storage;
-        Scope scope = reactor.get(decl, "scope");
-        storage = new ScopeStorage(scope, storage);
-
-        if (decl instanceof FunDeclarationNode) {
-            FunDeclarationNode funDecl = (FunDeclarationNode) decl;
-            coIterate(args, funDecl.parameters,
-                (arg, param) -> storage.set(scope, param.name, arg));
-
-            try {
-                get(funDecl.block);
-            } catch (Return r) {
-                return r.value;
-            } finally {
-                storage = oldStorage;
-            }
-        } else if (decl instanceof MethodDeclarationNode) {
-            MethodDeclarationNode methDecl = (MethodDeclarationNode) decl;
-            coIterate(args, methDecl.parameters,
-                (arg, param) -> storage.set(scope, param.name, arg));
-
-            try {
-                get(methDecl.block);
-            } catch (Return r) {
-                return r.value;
-            } finally {
-                storage = oldStorage;
-            }
-        }
-
-        return null;
+        if (array instanceof long[])
+            return ((long[]) array).length;
+        else if (array instanceof double[])
+            return ((double[]) array).length;
+        else if (array instanceof boolean[])
+            return ((boolean[]) array).length;
+        else
+            return ((Object[]) array).length;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object builtin (String name, Object[] args)
+    static Object builtin (String name, Object[] args)
     {
         assert name.equals("print"); // only one at the moment
         String out = convertToString(args[0]);
@@ -494,12 +287,18 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private String convertToString (Object arg)
+    static String convertToString (Object arg)
     {
         if (arg == Null.INSTANCE)
             return "null";
         else if (arg instanceof Object[])
             return Arrays.deepToString((Object[]) arg);
+        else if (arg instanceof long[])
+            return Arrays.toString((long[]) arg);
+        else if (arg instanceof double[])
+            return Arrays.toString((double[]) arg);
+        else if (arg instanceof boolean[])
+            return Arrays.toString((boolean[]) arg);
         else if (arg instanceof FunDeclarationNode)
             return ((FunDeclarationNode) arg).name;
         else if (arg instanceof StructDeclarationNode)
@@ -516,89 +315,62 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
-    private HashMap<String, Object> buildStruct (StructDeclarationNode node, Object[] args)
-    {
-        HashMap<String, Object> struct = new HashMap<>();
-        for (int i = 0; i < node.fields.size(); ++i)
-            struct.put(node.fields.get(i).name, args[i]);
-        return struct;
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private HashMap<String, Object> buildBox (BoxDeclarationNode node, Object[] args)
-    {
-        Scope scope = reactor.get(node, "scope");
-        storage = new ScopeStorage(scope, storage);
-        HashMap<String, Object> box = new HashMap<>();
-        for (int i = 0; i < node.attributes.size(); ++i)
-            box.put(node.attributes.get(i).name, node.attributes.get(i));
-        for (int i = 0; i < node.methods.size(); ++i)
-            box.put(node.methods.get(i).name, node.methods.get(i));
-        storage = storage.parent;
-        return box;
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Void ifStmt (IfNode node)
-    {
-        if (get(node.condition))
-            get(node.trueStatement);
-        else if (node.falseStatement != null)
-            get(node.falseStatement);
-        return null;
+    static Instance buildStruct (Shape shape, Object[] args) {
+        // the arguments are the fields, in order
+        return new Instance(shape, args);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Void whileStmt (WhileNode node)
-    {
-        while (get(node.condition))
-            get(node.body);
-        return null;
+    static Instance buildBox (Shape shape, Object[] args) {
+        return new Instance(shape, shape.initialValues.clone());
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Object reference (ReferenceNode node)
-    {
-        Scope scope = reactor.get(node, "scope");
-        DeclarationNode decl = reactor.get(node, "decl");
-
-        if (decl instanceof VarDeclarationNode
-            || decl instanceof ParameterNode
-            || decl instanceof SyntheticDeclarationNode
-            && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE)
-            return scope == rootScope
-                ? rootStorage.get(scope, node.name)
-                : storage.get(scope, node.name);
-
-        return decl; // structure, box or function
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    private Void returnStmt (ReturnNode node) {
-        throw new Return(node.expression == null ? null : get(node.expression));
+    /**
+     * Applies the implicit conversion of a value to the type of the location it is assigned to.
+     */
+    static Object convert (Object value, Type targetType) {
+        return targetType instanceof FloatType ? convertToFloat(value) : value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Void varDecl (VarDeclarationNode node)
+    /**
+     * Converts an {@code Int[]} value (or {@code Int[][]}, ...) to a new array with the
+     * representation of the given {@code Float[]} type (respectively {@code Float[][]}, ...).
+     * Leaves {@code null} untouched.
+     */
+    static Object widen (Object value, ArrayType type)
     {
-        Scope scope = reactor.get(node, "scope");
-        assign(scope, node.name, get(node.initializer), reactor.get(node, "type"));
-        return null;
+        if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            double[] widened = new double[array.length];
+            for (int i = 0; i < array.length; ++i)
+                widened[i] = array[i];
+            return widened;
+        }
+        if (value instanceof Object[] && type.componentType instanceof ArrayType) {
+            Object[] array = (Object[]) value;
+            Object[] widened = new Object[array.length];
+            for (int i = 0; i < array.length; ++i)
+                widened[i] = widen(array[i], (ArrayType) type.componentType);
+            return widened;
+        }
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private void assign (Scope scope, String name, Object value, Type targetType)
+    /**
+     * Converts {@code Int} values to {@code Float}, leaving other values untouched.
+     */
+    static Object convertToFloat (Object value)
     {
-        if (value instanceof Long && targetType instanceof FloatType)
-            value = ((Long) value).doubleValue();
-        storage.set(scope, name, value);
+        if (value instanceof Long)
+            return ((Long) value).doubleValue();
+        return value;
     }
 
     // ---------------------------------------------------------------------------------------------
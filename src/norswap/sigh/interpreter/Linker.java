@@ -0,0 +1,579 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.LoopOptimization.Temp;
+import norswap.sigh.ast.*;
+import norswap.sigh.scopes.DeclarationKind;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.FunType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.Type;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * A one-time link step, to be run after {@link norswap.sigh.SemanticAnalysis}, that prepares a
+ * tree for execution, so that the interpreter never needs to consult the {@link Reactor}.
+ *
+ * <p>The link step does two things. First, it lays out the {@link Frame frames} used by the
+ * interpreter. Each {@link RootNode}, {@link FunDeclarationNode} and {@link MethodDeclarationNode}
+ * owns a frame, in which every {@link VarDeclarationNode} and {@link ParameterNode} it
+ * (transitively) contains gets a slot. Parameters always come first, in declaration order. The
+ * root frame additionally holds the built-in {@code true}, {@code false} and {@code null}
+ * variables. Each {@link ReferenceNode} to a variable is then resolved to a {@link Slot}: the
+ * number of frames to go up from the frame of the current function, and the slot index in that
+ * frame.
+ *
+ * <p>Variables declared with a primitive type ({@code Int}, {@code Float} or {@code Bool}) are
+ * stored unboxed, in a separate primitive part of the frame (see {@link Kind}). Parameters are
+ * always stored boxed, as they are not converted to their declared type.
+ *
+ * <p>Second, it snapshots the attributes the interpreter needs: the {@code type} of expressions
+ * and variable declarations, the {@code decl} of references to non-variables and the {@code
+ * fieldIndex} of field and box element accesses, the {@code constant} and {@code simplified}
+ * attributes set by {@link norswap.sigh.ConstantFolding} and the {@code defines}, {@code reuses}
+ * and {@code hoisted} attributes set by {@link norswap.sigh.LoopOptimization}, if they were run.
+ * Each {@link Temp temporary} introduced by the latter gets a slot in the frame of the function
+ * that uses it, like a variable. It also creates the {@link Shape} of each structure and box.
+ *
+ * <p>Finally, it finds the values of type {@code Int[]} (or {@code Int[][]}, ...) that flow into
+ * a location of type {@code Float[]} (respectively {@code Float[][]}, ...): the initializer of a
+ * variable, the right side of an assignment, an argument, a returned value or a component of an
+ * array literal. Array literals get the type of the location (which determines their
+ * representation, see {@link Interpreter}), and the other values must be widened with {@link
+ * Interpreter#widen}, so that a {@code Float[]} value is always represented by a {@code
+ * double[]}.
+ *
+ * <p>The results are kept in identity maps: {@link SighNode#hashCode()} is reflective (and so is
+ * the hash of the {@link norswap.uranium.Attribute} keys used by the reactor), which makes it
+ * much too slow to be used at run time.
+ */
+public final class Linker
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * How the value of a variable is represented in its {@link Frame}.
+     */
+    public enum Kind
+    {
+        /** Boxed, in {@code Frame#slots}. */
+        OBJECT,
+        /** An {@code Int}, in {@code Frame#primitives}. */
+        LONG,
+        /** A {@code Float}, in {@code Frame#primitives}, as raw long bits. */
+        DOUBLE,
+        /** A {@code Bool}, in {@code Frame#primitives}, as 0 or 1. */
+        BOOLEAN
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The static location of a variable: {@code depth} frames up from the current frame, at
+     * index {@code index} in the part of the frame indicated by {@code kind}.
+     */
+    public static final class Slot
+    {
+        public final int depth;
+        public final int index;
+        public final Kind kind;
+
+        Slot (int depth, int index, Kind kind) {
+            this.depth = depth;
+            this.index = index;
+            this.kind = kind;
+        }
+
+        @Override public String toString () {
+            return "Slot(" + depth + ", " + index + ", " + kind + ")";
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Frame layout for a frame owner. */
+    private static final class Layout
+    {
+        final SighNode owner;
+        final Layout parent;
+        int size = 0;
+        int primitiveSize = 0;
+
+        Layout (SighNode owner, Layout parent) {
+            this.owner = owner;
+            this.parent = parent;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+    private RootScope rootScope;
+    private final IdentityHashMap<SighNode, Layout> layouts = new IdentityHashMap<>();
+    private final IdentityHashMap<DeclarationNode, Layout>  declOwners = new IdentityHashMap<>();
+    private final IdentityHashMap<DeclarationNode, Slot>    declSlots  = new IdentityHashMap<>();
+    private final IdentityHashMap<ReferenceNode, Slot>      refSlots   = new IdentityHashMap<>();
+    private final IdentityHashMap<ReferenceNode, DeclarationNode> refDecls
+        = new IdentityHashMap<>();
+    private final IdentityHashMap<SighNode, Type> types = new IdentityHashMap<>();
+    private final IdentityHashMap<SighNode, Integer> fieldIndices = new IdentityHashMap<>();
+    private final IdentityHashMap<DeclarationNode, Shape> shapes = new IdentityHashMap<>();
+    private final IdentityHashMap<ExpressionNode, Object> constants = new IdentityHashMap<>();
+    private final IdentityHashMap<ExpressionNode, ExpressionNode> simplifications
+        = new IdentityHashMap<>();
+    private final IdentityHashMap<Temp, Slot> tempSlots = new IdentityHashMap<>();
+    private final IdentityHashMap<ExpressionNode, Slot> tempReads  = new IdentityHashMap<>();
+    private final IdentityHashMap<ExpressionNode, Slot> tempWrites = new IdentityHashMap<>();
+    private final IdentityHashMap<WhileNode, List<ExpressionNode>> hoists
+        = new IdentityHashMap<>();
+    private final IdentityHashMap<ArrayLiteralNode, ArrayType> literalTypes
+        = new IdentityHashMap<>();
+    private final IdentityHashMap<ExpressionNode, ArrayType> widenings = new IdentityHashMap<>();
+
+    /** Stack of the layouts of the frame owners enclosing the current node during the walk. */
+    private final ArrayDeque<Layout> owners = new ArrayDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Linker (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the link step over the given tree, whose semantic analysis must have completed
+     * successfully using {@code reactor}.
+     */
+    public static Linker link (Reactor reactor, SighNode root)
+    {
+        Linker linker = new Linker(reactor);
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(RootNode.class,              PRE_VISIT,  linker::root);
+        walker.register(FunDeclarationNode.class,    PRE_VISIT,  linker::pushOwner);
+        walker.register(MethodDeclarationNode.class, PRE_VISIT,  linker::pushOwner);
+        walker.register(ParameterNode.class,         PRE_VISIT,  linker::declare);
+        walker.register(VarDeclarationNode.class,    PRE_VISIT,  linker::varDecl);
+        walker.register(ReferenceNode.class,         PRE_VISIT,  linker::reference);
+        walker.register(ArrayAccessNode.class,       PRE_VISIT,  linker::arrayAccess);
+        walker.register(FieldAccessNode.class,       PRE_VISIT,  linker::fieldAccess);
+        walker.register(BoxElementAccessNode.class,  PRE_VISIT,  linker::fieldAccess);
+        walker.register(StructDeclarationNode.class, PRE_VISIT,  linker::structDecl);
+        walker.register(BoxDeclarationNode.class,    PRE_VISIT,  linker::boxDecl);
+        walker.register(UnaryExpressionNode.class,   PRE_VISIT,  linker::foldable);
+        walker.register(BinaryExpressionNode.class,  PRE_VISIT,  linker::foldable);
+        walker.register(WhileNode.class,             PRE_VISIT,  linker::whileStmt);
+        walker.register(ArrayLiteralNode.class,      PRE_VISIT,  linker::arrayLiteral);
+        walker.register(AssignmentNode.class,        PRE_VISIT,  linker::assignment);
+        walker.register(FunCallNode.class,           PRE_VISIT,  linker::funCall);
+        walker.register(ReturnNode.class,            PRE_VISIT,  linker::returnStmt);
+
+        walker.register(FunDeclarationNode.class,    POST_VISIT, linker::popOwner);
+        walker.register(MethodDeclarationNode.class, POST_VISIT, linker::popOwner);
+
+        walker.registerFallback(PRE_VISIT, linker::snapshotType);
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+        return linker;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void root (RootNode node)
+    {
+        pushOwner(node);
+        rootScope = reactor.get(node, "scope");
+        declare(rootScope._true);
+        declare(rootScope._false);
+        declare(rootScope._null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void pushOwner (SighNode node) {
+        Layout layout = new Layout(node, owners.peek());
+        layouts.put(node, layout);
+        owners.push(layout);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void popOwner (SighNode node) {
+        owners.pop();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node) {
+        declare(node, Kind.OBJECT);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void declare (DeclarationNode node, Kind kind)
+    {
+        Layout owner = owners.peek();
+        declOwners.put(node, owner);
+        int index = kind == Kind.OBJECT ? owner.size++ : owner.primitiveSize++;
+        declSlots.put(node, new Slot(0, index, kind));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void varDecl (VarDeclarationNode node)
+    {
+        snapshotType(node);
+        Type type = types.get(node);
+        flow(node.initializer, type);
+        declare(node,
+            type instanceof IntType   ? Kind.LONG :
+            type instanceof FloatType ? Kind.DOUBLE :
+            type instanceof BoolType  ? Kind.BOOLEAN :
+            Kind.OBJECT);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reference (ReferenceNode node)
+    {
+        snapshotType(node);
+        DeclarationNode decl = reactor.get(node, "decl");
+
+        if (!isVariable(decl)) {
+            refDecls.put(node, decl);
+            return;
+        }
+
+        Layout target = declOwners.get(decl);
+        int depth = 0;
+        for (Layout layout = owners.peek(); layout != target; layout = layout.parent)
+            ++depth;
+
+        Slot slot = declSlots.get(decl);
+        refSlots.put(node, new Slot(depth, slot.index, slot.kind));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void arrayAccess (ArrayAccessNode node) {
+        snapshotType(node);
+        temporaries(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void fieldAccess (ExpressionNode node)
+    {
+        snapshotType(node);
+        temporaries(node);
+        Integer index = reactor.get(node, "fieldIndex");
+        if (index != null) // not for the length of arrays
+            fieldIndices.put(node, index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void temporaries (ExpressionNode node)
+    {
+        Temp reused = reactor.get(node, "reuses");
+        if (reused != null)
+            tempReads.put(node, tempSlot(reused));
+        Temp defined = reactor.get(node, "defines");
+        if (defined != null)
+            tempWrites.put(node, tempSlot(defined));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Slot tempSlot (Temp temp)
+    {
+        return tempSlots.computeIfAbsent(temp, it -> {
+            Layout owner = owners.peek();
+            Kind kind =
+                it.type instanceof IntType  ? Kind.LONG :
+                it.type instanceof BoolType ? Kind.BOOLEAN :
+                Kind.OBJECT; // Float values may be Longs, see Interpreter
+            int index = kind == Kind.OBJECT ? owner.size++ : owner.primitiveSize++;
+            return new Slot(0, index, kind);
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void whileStmt (WhileNode node) {
+        List<ExpressionNode> hoisted = reactor.get(node, "hoisted");
+        if (hoisted != null)
+            hoists.put(node, hoisted);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records that the value of the expression is stored in a location of the given type, which
+     * may require widening it (see the class documentation).
+     */
+    private void flow (ExpressionNode node, Type target)
+    {
+        if (!(target instanceof ArrayType)) return;
+        Type type = reactor.get(node, "type");
+        if (!(type instanceof ArrayType) || type.equals(target)) return;
+        if (node instanceof ArrayLiteralNode)
+            literalTypes.put((ArrayLiteralNode) node, (ArrayType) target);
+        else
+            widenings.put(node, (ArrayType) target);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void arrayLiteral (ArrayLiteralNode node)
+    {
+        // visited after the node in which it flows
+        ArrayType type = literalTypes.get(node);
+        if (type == null) type = reactor.get(node, "type");
+        types.put(node, type);
+        for (ExpressionNode component: node.components)
+            flow(component, type.componentType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void assignment (AssignmentNode node) {
+        snapshotType(node);
+        flow(node.right, reactor.get(node.left, "type"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void funCall (FunCallNode node)
+    {
+        snapshotType(node);
+        FunType type = reactor.get(node.function, "type");
+        for (int i = 0; i < node.arguments.size(); ++i)
+            flow(node.arguments.get(i), type.paramTypes[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void returnStmt (ReturnNode node)
+    {
+        SighNode owner = owners.peek().owner;
+        if (node.expression == null || owner instanceof RootNode) return;
+        TypeNode returnType = owner instanceof FunDeclarationNode
+            ? ((FunDeclarationNode) owner).returnType
+            : ((MethodDeclarationNode) owner).returnType;
+        flow(node.expression, reactor.get(returnType, "value"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void structDecl (StructDeclarationNode node) {
+        shapes.put(node, new Shape(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void boxDecl (BoxDeclarationNode node) {
+        shapes.put(node, new Shape(node));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void foldable (ExpressionNode node)
+    {
+        snapshotType(node);
+        Object constant = reactor.get(node, "constant");
+        if (constant != null)
+            constants.put(node, constant);
+        ExpressionNode simplified = reactor.get(node, "simplified");
+        if (simplified != null)
+            simplifications.put(node, simplified);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void snapshotType (SighNode node) {
+        if (!(node instanceof ExpressionNode || node instanceof VarDeclarationNode)) return;
+        Type type = reactor.get(node, "type");
+        if (type != null) types.put(node, type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isVariable (DeclarationNode decl) {
+        return decl instanceof VarDeclarationNode
+            || decl instanceof ParameterNode
+            || decl instanceof SyntheticDeclarationNode
+                && ((SyntheticDeclarationNode) decl).kind() == DeclarationKind.VARIABLE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the scope of the root node.
+     */
+    public RootScope rootScope () {
+        return rootScope;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the location of the given variable or parameter in the frame of its owner (hence
+     * with a depth of 0).
+     */
+    public Slot slot (DeclarationNode decl) {
+        return declSlots.get(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the location of the variable referenced by the given node, or null if the reference
+     * isn't to a variable (but e.g. to a function or a type).
+     */
+    public Slot slot (ReferenceNode node) {
+        return refSlots.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the declaration referenced by the given node, if it isn't a variable (otherwise,
+     * use {@link #slot(ReferenceNode)}).
+     */
+    public DeclarationNode decl (ReferenceNode node) {
+        return refDecls.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@code type} attribute of the given expression or variable declaration.
+     */
+    public Type type (SighNode node) {
+        return types.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the accessed field in the {@link Instance} that is the stem of the given
+     * {@link FieldAccessNode} or {@link BoxElementAccessNode}.
+     */
+    public int fieldIndex (ExpressionNode node) {
+        return fieldIndices.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the given unary or binary expression, if it was folded by {@link
+     * norswap.sigh.ConstantFolding}, or null.
+     */
+    public Object constant (ExpressionNode node) {
+        return constants.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the operand to evaluate instead of the given unary or binary expression, if it was
+     * simplified by {@link norswap.sigh.ConstantFolding}, or null.
+     */
+    public ExpressionNode simplified (ExpressionNode node) {
+        return simplifications.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the slot of the temporary holding the value of the given read, if {@link
+     * norswap.sigh.LoopOptimization} found it can be reused, or null.
+     */
+    public Slot reusedTemp (ExpressionNode node) {
+        return tempReads.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the slot of the temporary in which the value of the given read must be stored after
+     * evaluating it, if {@link norswap.sigh.LoopOptimization} found it is reused later, or null.
+     */
+    public Slot definedTemp (ExpressionNode node) {
+        return tempWrites.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the reads to evaluate (ignoring {@link #reusedTemp(ExpressionNode)}) and store in
+     * their temporary before running the given loop, if {@link norswap.sigh.LoopOptimization}
+     * hoisted some out of it, or null.
+     */
+    public List<ExpressionNode> hoisted (WhileNode node) {
+        return hoists.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the type to which the value of the given expression must be widened with {@link
+     * Interpreter#widen} (see the class documentation), or null.
+     */
+    public ArrayType widening (ExpressionNode node) {
+        return widenings.get(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the shape of the instances of the given structure or box declaration.
+     */
+    public Shape shape (DeclarationNode decl) {
+        return shapes.get(decl);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of boxed slots in the frame owned by the given node.
+     */
+    public int frameSize (SighNode owner) {
+        return layouts.get(owner).size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of primitive slots in the frame owned by the given node.
+     */
+    public int primitiveFrameSize (SighNode owner) {
+        return layouts.get(owner).primitiveSize;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the owner of the frame lexically enclosing the frame owned by the given node, or
+     * null for the root.
+     */
+    public SighNode enclosingOwner (SighNode owner) {
+        Layout parent = layouts.get(owner).parent;
+        return parent == null ? null : parent.owner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
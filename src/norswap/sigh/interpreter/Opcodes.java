@@ -0,0 +1,230 @@
+package norswap.sigh.interpreter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * The instruction set of the {@link RegisterInterpreter}.
+ *
+ * <p>An instruction is an opcode followed by its operands, all stored in the {@code int[]} code
+ * array of a {@link RegisterFunction}. Operands are register numbers, indices in one of the
+ * constant pools of the function, frame depths, or jump targets (absolute code indices).
+ *
+ * <p>Registers are the slots of the {@link Frame} of the function. Primitive registers ({@code P}
+ * below) are the {@link Frame#primitives} slots, which hold {@code Int} values, {@code Float}
+ * values (as raw long bits) and {@code Bool} values (as 0 or 1). Object registers ({@code O}
+ * below) are the {@link Frame#slots}, which hold boxed values, as in the {@link Interpreter}. The
+ * first registers of each kind are the variables of the function, as laid out by the {@link
+ * Linker}, the others are temporaries allocated by the {@link RegisterCompiler}.
+ *
+ * <p>Suffixes indicate the type of the operands: {@code L} for {@code Int} ({@code long}), {@code
+ * D} for {@code Float} ({@code double}), {@code Z} for {@code Bool} and {@code O} for objects.
+ */
+final class Opcodes
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private Opcodes () {}
+
+    // ---------------------------------------------------------------------------------------------
+    // Constants and moves
+
+    /** {@code LOADK_P dst k}: P[dst] = primitive constant k */
+    static final int LOADK_P = 0;
+    /** {@code LOADK_O dst k}: O[dst] = object constant k */
+    static final int LOADK_O = 1;
+    /** {@code MOV_P dst src} */
+    static final int MOV_P = 2;
+    /** {@code MOV_O dst src} */
+    static final int MOV_O = 3;
+    /** {@code BOX_L dst(O) src(P)} */
+    static final int BOX_L = 4;
+    /** {@code BOX_D dst(O) src(P)} */
+    static final int BOX_D = 5;
+    /** {@code BOX_Z dst(O) src(P)} */
+    static final int BOX_Z = 6;
+    /** {@code UNBOX_L dst(P) src(O)} */
+    static final int UNBOX_L = 7;
+    /** {@code UNBOX_D dst(P) src(O)}: the source may be a {@code Long} */
+    static final int UNBOX_D = 8;
+    /** {@code UNBOX_Z dst(P) src(O)} */
+    static final int UNBOX_Z = 9;
+    /** {@code I2D dst(P) src(P)}: converts an {@code Int} to a {@code Float} */
+    static final int I2D = 10;
+    /** {@code TO_FLOAT dst(O) src(O)}: converts a boxed {@code Int} to a {@code Float} */
+    static final int TO_FLOAT = 11;
+
+    // ---------------------------------------------------------------------------------------------
+    // Variables of enclosing frames
+
+    /** {@code GET_OUTER_P dst depth index} */
+    static final int GET_OUTER_P = 12;
+    /** {@code GET_OUTER_O dst depth index} */
+    static final int GET_OUTER_O = 13;
+    /** {@code SET_OUTER_P depth index src} */
+    static final int SET_OUTER_P = 14;
+    /** {@code SET_OUTER_O depth index src} */
+    static final int SET_OUTER_O = 15;
+
+    // ---------------------------------------------------------------------------------------------
+    // Operators: {@code OP dst a b}, all in P registers (except for objects)
+
+    static final int ADD_L = 16;
+    static final int SUB_L = 17;
+    static final int MUL_L = 18;
+    static final int DIV_L = 19;
+    static final int REM_L = 20;
+    /** {@code ADDI_L dst a imm}: P[dst] = P[a] + imm */
+    static final int ADDI_L = 21;
+    static final int ADD_D = 22;
+    static final int SUB_D = 23;
+    static final int MUL_D = 24;
+    static final int DIV_D = 25;
+    static final int REM_D = 26;
+    static final int LT_L = 27;
+    static final int LE_L = 28;
+    static final int GT_L = 29;
+    static final int GE_L = 30;
+    static final int EQ_L = 31;
+    static final int NE_L = 32;
+    static final int LT_D = 33;
+    static final int LE_D = 34;
+    static final int GT_D = 35;
+    static final int GE_D = 36;
+    static final int EQ_D = 37;
+    static final int NE_D = 38;
+    /** {@code NOT dst src} */
+    static final int NOT = 39;
+    /** {@code SAME_O dst(P) a(O) b(O)}: reference equality */
+    static final int SAME_O = 40;
+    /** {@code NSAME_O dst(P) a(O) b(O)} */
+    static final int NSAME_O = 41;
+    /** {@code CONCAT dst(O) a(O) b(O)}: string concatenation */
+    static final int CONCAT = 42;
+
+    // ---------------------------------------------------------------------------------------------
+    // Jumps
+
+    /** {@code JMP target} */
+    static final int JMP = 43;
+    /** {@code JMP_IF cond(P) target} */
+    static final int JMP_IF = 44;
+    /** {@code JMP_IFNOT cond(P) target} */
+    static final int JMP_IFNOT = 45;
+    /** {@code JLT_L a b target}: jumps if P[a] < P[b] */
+    static final int JLT_L = 46;
+    static final int JLE_L = 47;
+    static final int JGT_L = 48;
+    static final int JGE_L = 49;
+    static final int JEQ_L = 50;
+    static final int JNE_L = 51;
+
+    // ---------------------------------------------------------------------------------------------
+    // Arrays, structures and boxes
+
+    /** {@code NEW_ARRAY_L dst(O) start(P) count}: array of the registers start..start+count */
+    static final int NEW_ARRAY_L = 52;
+    static final int NEW_ARRAY_D = 53;
+    static final int NEW_ARRAY_Z = 54;
+    /** {@code NEW_ARRAY_O dst(O) start(O) count} */
+    static final int NEW_ARRAY_O = 55;
+    /** {@code ALOAD_L dst(P) array(O) index(P)} */
+    static final int ALOAD_L = 56;
+    /** {@code ALOAD_D dst(P) array(O) index(P)} */
+    static final int ALOAD_D = 57;
+    static final int ALOAD_Z = 58;
+    /** {@code ALOAD_O dst(O) array(O) index(P)} */
+    static final int ALOAD_O = 59;
+    /** {@code ASTORE_L array(O) index(P) value(P)} */
+    static final int ASTORE_L = 60;
+    /** {@code ASTORE_D array(O) index(P) value(P)}: stores a {@code Float} into a {@code Float[]} */
+    static final int ASTORE_D = 61;
+    /** {@code ASTORE_DL array(O) index(P) value(P)}: stores an {@code Int} into a {@code Float[]} */
+    static final int ASTORE_DL = 62;
+    /** {@code ASTORE_DO array(O) index(P) value(O)}: stores a boxed value into a {@code Float[]} */
+    static final int ASTORE_DO = 63;
+    static final int ASTORE_Z = 64;
+    /** {@code ASTORE_O array(O) index(P) value(O)} */
+    static final int ASTORE_O = 65;
+    /** {@code ALEN dst(P) array(O) message(k)} */
+    static final int ALEN = 66;
+    /** {@code CHECK_NULL src(O) message(k)} */
+    static final int CHECK_NULL = 67;
+    /** {@code CHECK_INDEX index(P)} */
+    static final int CHECK_INDEX = 68;
+    /** {@code WIDEN dst(O) array(O) type(k)}: see {@link Interpreter#widen} */
+    static final int WIDEN = 69;
+    /** {@code GETFIELD dst(O) object(O) index message(k)} */
+    static final int GETFIELD = 70;
+    /** {@code PUTFIELD object(O) index value(O) message(k)} */
+    static final int PUTFIELD = 71;
+
+    // ---------------------------------------------------------------------------------------------
+    // Calls: the arguments are in the O registers start..start+count
+
+    /** {@code CALL dst(O) function(k) depth start count}: the parent frame is depth frames up */
+    static final int CALL = 72;
+    /** {@code CALL_DYN dst(O) function(O) start count} */
+    static final int CALL_DYN = 73;
+    /** {@code BUILTIN dst(O) name(k) start count} */
+    static final int BUILTIN = 74;
+    /** {@code NEW_STRUCT dst(O) shape(k) start count} */
+    static final int NEW_STRUCT = 75;
+    /** {@code NEW_BOX dst(O) shape(k) start count} */
+    static final int NEW_BOX = 76;
+    /** {@code RET src(O)} */
+    static final int RET = 77;
+    /** {@code RET_NULL} */
+    static final int RET_NULL = 78;
+    /** {@code THROW_INVALID name(k)}: assignment to something that isn't a variable */
+    static final int THROW_INVALID = 79;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final String[] NAMES = new String[THROW_INVALID + 1];
+    private static final int[] SIZES = new int[THROW_INVALID + 1];
+
+    static {
+        for (Field field: Opcodes.class.getDeclaredFields())
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers()))
+                try {
+                    NAMES[field.getInt(null)] = field.getName();
+                } catch (IllegalAccessException e) {
+                    throw new Error(e);
+                }
+
+        for (int op = 0; op < SIZES.length; ++op)
+            SIZES[op] = 4; // most common: operator with a destination and two operands
+
+        for (int op: new int[] { RET_NULL })
+            SIZES[op] = 1;
+        for (int op: new int[] { JMP, CHECK_INDEX, RET, THROW_INVALID })
+            SIZES[op] = 2;
+        for (int op: new int[] { LOADK_P, LOADK_O, MOV_P, MOV_O, BOX_L, BOX_D, BOX_Z, UNBOX_L,
+                UNBOX_D, UNBOX_Z, I2D, TO_FLOAT, NOT, JMP_IF, JMP_IFNOT, CHECK_NULL })
+            SIZES[op] = 3;
+        for (int op: new int[] { GETFIELD, PUTFIELD, CALL_DYN, BUILTIN, NEW_STRUCT, NEW_BOX })
+            SIZES[op] = 5;
+        SIZES[CALL] = 6;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the opcode.
+     */
+    static String name (int op) {
+        return NAMES[op];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of instructions with this opcode, including the opcode itself.
+     */
+    static int size (int op) {
+        return SIZES[op];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,263 @@
+package norswap.sigh.interpreter;
+
+import norswap.autumn.positions.LineMap;
+import norswap.autumn.positions.Position;
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.FunDeclarationNode;
+import norswap.sigh.ast.MethodDeclarationNode;
+import norswap.sigh.ast.RootNode;
+import norswap.sigh.ast.SighNode;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects an execution profile of the programs run by an {@link Interpreter} created with this
+ * profiler: for every node of the tree, and for every function and method (plus the top-level
+ * code, keyed by the {@link RootNode}), the number of executions, the total time spent executing
+ * it and its self time (the total time, minus the total time of its children nodes, respectively
+ * of the functions it calls).
+ *
+ * <p>The times of recursive nodes and functions are counted once per nested execution, so that
+ * their total time may exceed the time of the whole program. Calls to functions that have been
+ * compiled to bytecode (see {@link Tiering}) are not visible, and their time counts as self time
+ * of the call node.
+ *
+ * <p>Each execution records its profile separately, and merges it into the profiler when it
+ * completes. A profiler can hence be shared by concurrent executions, and accumulates the profiles
+ * of all of them until {@link #reset}.
+ *
+ * <p>Use {@link #report} to obtain a list of the hot spots of the program, mapped back to the
+ * source.
+ */
+public final class Profiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The profile of a node or of a function.
+     */
+    public static final class Entry
+    {
+        /** The node, or the {@link DeclarationNode} or {@link RootNode} of the function. */
+        public final SighNode node;
+
+        /** Number of executions of the node or calls to the function. */
+        public final long count;
+
+        /** Total time spent executing the node or function, in nanoseconds. */
+        public final long totalNanos;
+
+        /** Time spent executing the node or function itself, in nanoseconds. */
+        public final long selfNanos;
+
+        Entry (SighNode node, long[] stats) {
+            this.node = node;
+            this.count = stats[COUNT];
+            this.totalNanos = stats[TOTAL];
+            this.selfNanos = stats[SELF];
+        }
+
+        @Override public String toString () {
+            return String.format("%s: %d executions, %d ns total, %d ns self",
+                node, count, totalNanos, selfNanos);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int COUNT = 0, TOTAL = 1, SELF = 2;
+
+    private final IdentityHashMap<SighNode, long[]> nodes = new IdentityHashMap<>();
+    private final IdentityHashMap<SighNode, long[]> functions = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The profile of a single execution, which is not thread-safe.
+     *
+     * <p>Self times are computed without a stack: every recording keeps the sum of the self
+     * times of all completed nodes (respectively functions), so that the time spent in the
+     * children of a node is the growth of that sum during its execution.
+     */
+    final class Recording
+    {
+        private final IdentityHashMap<SighNode, long[]> nodes = new IdentityHashMap<>();
+        private final IdentityHashMap<SighNode, long[]> functions = new IdentityHashMap<>();
+
+        /** Sum of the self times of the completed nodes. */
+        long nodeSelfNanos = 0;
+
+        /** Sum of the self times of the completed functions. */
+        long functionSelfNanos = 0;
+
+        /**
+         * Records an execution of the node which started at time {@code start} (as given by
+         * {@link System#nanoTime}), when {@link #nodeSelfNanos} was {@code selfBefore}.
+         */
+        void node (SighNode node, long start, long selfBefore) {
+            long total = System.nanoTime() - start;
+            long self = total - (nodeSelfNanos - selfBefore);
+            nodeSelfNanos += self;
+            add(nodes, node, total, self);
+        }
+
+        /**
+         * Records a call of the function which started at time {@code start} (as given by
+         * {@link System#nanoTime}), when {@link #functionSelfNanos} was {@code selfBefore}.
+         */
+        void function (SighNode function, long start, long selfBefore) {
+            long total = System.nanoTime() - start;
+            long self = total - (functionSelfNanos - selfBefore);
+            functionSelfNanos += self;
+            add(functions, function, total, self);
+        }
+
+        /** Adds this recording to the profiler. */
+        void merge () {
+            synchronized (Profiler.this) {
+                nodes.forEach((node, stats) -> add(Profiler.this.nodes, node, stats));
+                functions.forEach((fun, stats) -> add(Profiler.this.functions, fun, stats));
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void add (Map<SighNode, long[]> map, SighNode node, long total, long self) {
+        long[] stats = map.computeIfAbsent(node, it -> new long[3]);
+        ++ stats[COUNT];
+        stats[TOTAL] += total;
+        stats[SELF]  += self;
+    }
+
+    private static void add (Map<SighNode, long[]> map, SighNode node, long[] other) {
+        long[] stats = map.computeIfAbsent(node, it -> new long[3]);
+        for (int i = 0; i < stats.length; ++i)
+            stats[i] += other[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the profile of every executed node, by decreasing self time.
+     */
+    public synchronized List<Entry> nodes () {
+        return entries(nodes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the profile of every called function and method, and of the top-level code, by
+     * decreasing self time.
+     */
+    public synchronized List<Entry> functions () {
+        return entries(functions);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static List<Entry> entries (Map<SighNode, long[]> map) {
+        List<Entry> entries = new ArrayList<>(map.size());
+        map.forEach((node, stats) -> entries.add(new Entry(node, stats)));
+        entries.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+        return entries;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards all the collected profiles.
+     */
+    public synchronized void reset () {
+        nodes.clear();
+        functions.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a report listing the functions, the source lines and the nodes with the highest
+     * self time (at most {@code limit} of each), whose positions are given using {@code map},
+     * which must be built from the source of the profiled tree.
+     *
+     * <p>The time of a line is the sum of the self times of the nodes starting on that line, and
+     * its execution count is the highest execution count among these nodes.
+     */
+    public String report (LineMap map, int limit)
+    {
+        List<Entry> functions = functions();
+        List<Entry> nodes = nodes();
+        StringBuilder b = new StringBuilder();
+
+        b.append(String.format("%-30s %-14s %10s %12s %12s%n",
+            "function", "position", "calls", "total ms", "self ms"));
+        for (Entry entry: functions.subList(0, Math.min(limit, functions.size())))
+            b.append(String.format("%-30s %-14s %10d %12.3f %12.3f%n",
+                functionName(entry.node), entry.node.span.startString(map),
+                entry.count, millis(entry.totalNanos), millis(entry.selfNanos)));
+
+        // line -> { count, self }
+        TreeMap<Integer, long[]> lines = new TreeMap<>();
+        for (Entry entry: nodes) {
+            long[] line = lines.computeIfAbsent(
+                map.lineFrom(entry.node.span.start), it -> new long[2]);
+            line[0] = Math.max(line[0], entry.count);
+            line[1] += entry.selfNanos;
+        }
+        List<Map.Entry<Integer, long[]>> hotLines = new ArrayList<>(lines.entrySet());
+        hotLines.sort((x, y) -> Long.compare(y.getValue()[1], x.getValue()[1]));
+
+        b.append(String.format("%n%-30s %-14s %10s %12s %12s%n",
+            "source", "line", "executions", "", "self ms"));
+        for (Map.Entry<Integer, long[]> line: hotLines.subList(0, Math.min(limit, hotLines.size())))
+            b.append(String.format("%-30s %-14s %10d %12s %12.3f%n",
+                lineText(map, line.getKey()), line.getKey(),
+                line.getValue()[0], "", millis(line.getValue()[1])));
+
+        b.append(String.format("%n%-30s %-14s %10s %12s %12s%n",
+            "node", "position", "executions", "total ms", "self ms"));
+        for (Entry entry: nodes.subList(0, Math.min(limit, nodes.size())))
+            b.append(String.format("%-30s %-14s %10d %12.3f %12.3f%n",
+                truncate(entry.node.toString()), entry.node.span.startString(map),
+                entry.count, millis(entry.totalNanos), millis(entry.selfNanos)));
+
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String functionName (SighNode node)
+    {
+        if (node instanceof FunDeclarationNode)
+            return ((FunDeclarationNode) node).name;
+        if (node instanceof MethodDeclarationNode)
+            return "meth " + ((MethodDeclarationNode) node).name;
+        return "<root>";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String lineText (LineMap map, int line) {
+        // the snippet is followed by a line with a caret marking the column
+        String snippet = map.lineSnippet(new Position(line, map.columnFrom(map.offsetFor(line))));
+        return truncate(snippet.split("\n", 2)[0].trim());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static String truncate (String string) {
+        return string.length() <= 30 ? string : string.substring(0, 27) + "...";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static double millis (long nanos) {
+        return nanos / 1e6;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,1226 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.interpreter.Linker.Kind;
+import norswap.sigh.interpreter.Linker.Slot;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.sigh.types.BoolType;
+import norswap.sigh.types.FloatType;
+import norswap.sigh.types.IntType;
+import norswap.sigh.types.StringType;
+import norswap.sigh.types.Type;
+import norswap.utils.visitors.ValuedVisitor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static norswap.sigh.interpreter.Opcodes.*;
+import static norswap.utils.Util.cast;
+
+/**
+ * Compiles a linked tree into {@link RegisterFunction register code}, for use by {@link
+ * RegisterInterpreter}.
+ *
+ * <p>Every expression is compiled into instructions that leave its value in a register, described
+ * by an {@link Operand}. Variables of the current frame are registers themselves, so that reading
+ * them doesn't require any instruction, and assignments write the result of the last instruction
+ * of the assigned expression directly into the variable (e.g. {@code i = i + 1} compiles to a
+ * single {@link Opcodes#ADDI_L} instruction). Values are only boxed when they are stored somewhere
+ * that isn't typed (e.g. function arguments, arrays of objects, or structure fields).
+ *
+ * <p>Temporary registers are allocated on top of the variables, in a stack discipline: the
+ * temporaries of a statement are freed once it has been compiled.
+ *
+ * <p>The evaluation order is the same as in the {@link Interpreter}: when an operand is read
+ * directly from a variable register and an expression evaluated after it (but before the
+ * instruction that uses it) may assign variables, the operand is first copied to a temporary.
+ */
+final class RegisterCompiler
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The location of the value of an expression. */
+    private static final class Operand
+    {
+        /** Whether the register is primitive (and how to interpret it) or holds an object. */
+        final Kind kind;
+        final int reg;
+        /** Whether the register is a variable, which may be reassigned. */
+        final boolean variable;
+
+        Operand (Kind kind, int reg, boolean variable) {
+            this.kind = kind;
+            this.reg = reg;
+            this.variable = variable;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The state of the compilation of a single function. */
+    private static final class Unit
+    {
+        final RegisterFunction function;
+        int[] code = new int[64];
+        int size = 0;
+
+        final ArrayList<Object> constants = new ArrayList<>();
+        final IdentityHashMap<Object, Integer> constantIndices = new IdentityHashMap<>();
+        final ArrayList<Long> primitiveConstants = new ArrayList<>();
+        final HashMap<Long, Integer> primitiveConstantIndices = new HashMap<>();
+
+        /** Next free temporary register, and number of registers used so far. */
+        int nextO, nextP, maxO, maxP;
+
+        final ArrayList<int[]> ranges = new ArrayList<>();
+        final ArrayList<SighNode> statements = new ArrayList<>();
+
+        Unit (RegisterFunction function, int frameSize, int primitiveFrameSize) {
+            this.function = function;
+            this.nextO = this.maxO = frameSize;
+            this.nextP = this.maxP = primitiveFrameSize;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ValuedVisitor<SighNode, Operand> visitor = new ValuedVisitor<>();
+    private final Linker linker;
+
+    /** Compiled code for every frame owner, created on demand and filled when compiled. */
+    private final IdentityHashMap<SighNode, RegisterFunction> functions;
+
+    /** The function being compiled. */
+    private Unit unit;
+
+    /**
+     * Registers in which the expression being compiled may leave its value, if it is primitive
+     * ({@code targetP}) or an object ({@code targetO}), or -1. Only read by expressions that
+     * write their result with their last instruction, at the start of their compilation (see
+     * {@link #compile(SighNode, int, int)}).
+     */
+    private int targetP = -1, targetO = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegisterCompiler (Linker linker, IdentityHashMap<SighNode, RegisterFunction> functions)
+    {
+        this.linker = linker;
+        this.functions = functions;
+
+        // expressions
+        visitor.register(IntLiteralNode.class,           this::intLiteral);
+        visitor.register(FloatLiteralNode.class,         this::floatLiteral);
+        visitor.register(StringLiteralNode.class,        this::stringLiteral);
+        visitor.register(ReferenceNode.class,            this::reference);
+        visitor.register(ConstructorNode.class,          this::constructor);
+        visitor.register(BoxConstructorNode.class,       this::boxConstructor);
+        visitor.register(ArrayLiteralNode.class,         this::arrayLiteral);
+        visitor.register(ParenthesizedNode.class,        this::parenthesized);
+        visitor.register(FieldAccessNode.class,          this::read);
+        visitor.register(BoxElementAccessNode.class,     this::read);
+        visitor.register(ArrayAccessNode.class,          this::read);
+        visitor.register(FunCallNode.class,              this::funCall);
+        visitor.register(UnaryExpressionNode.class,      this::unaryExpression);
+        visitor.register(BinaryExpressionNode.class,     this::binaryExpression);
+        visitor.register(AssignmentNode.class,           this::assignment);
+
+        // statement groups & declarations
+        visitor.register(RootNode.class,                 this::root);
+        visitor.register(BlockNode.class,                this::block);
+        visitor.register(VarDeclarationNode.class,       this::varDecl);
+        visitor.register(FunDeclarationNode.class,       this::funDecl);
+        visitor.register(BoxDeclarationNode.class,       this::boxDecl);
+        // other declarations do not generate code (use fallback)
+
+        // statements
+        visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
+        visitor.register(IfNode.class,                   this::ifStmt);
+        visitor.register(WhileNode.class,                this::whileStmt);
+        visitor.register(ReturnNode.class,               this::returnStmt);
+
+        visitor.registerFallback(node -> null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the whole program, returning the compiled code for the main script.
+     */
+    RegisterFunction compile (RootNode root) {
+        return compileBody(root, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand compile (SighNode node) {
+        return compile(node, -1, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the node, suggesting that its value be left in {@code targetP} (if primitive) or
+     * {@code targetO} (if an object). The returned operand indicates where the value actually is.
+     */
+    private Operand compile (SighNode node, int targetP, int targetO)
+    {
+        this.targetP = targetP;
+        this.targetO = targetO;
+        Operand operand = visitor.apply(node);
+        this.targetP = this.targetO = -1;
+        ArrayType widening = node instanceof ExpressionNode
+            ? linker.widening((ExpressionNode) node)
+            : null;
+        if (widening == null) return operand;
+        int dst = targetO >= 0 ? targetO : tempO();
+        emit(WIDEN, dst, toObject(operand, -1), constant(widening));
+        return new Operand(Kind.OBJECT, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the compiled code for the given frame owner, creating it if necessary (its code
+     * will be filled when the owner is compiled).
+     */
+    private RegisterFunction function (SighNode owner) {
+        return functions.computeIfAbsent(owner, it ->
+            new RegisterFunction(it, linker.enclosingOwner(it)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RegisterFunction compileBody (SighNode owner, SighNode body)
+    {
+        Unit oldUnit = unit;
+        RegisterFunction function = function(owner);
+        unit = new Unit(function, linker.frameSize(owner), linker.primitiveFrameSize(owner));
+
+        compile(body);
+        emit(RET_NULL);
+
+        function.code = Arrays.copyOf(unit.code, unit.size);
+        function.constants = unit.constants.toArray();
+        function.primitiveConstants = new long[unit.primitiveConstants.size()];
+        for (int i = 0; i < function.primitiveConstants.length; ++i)
+            function.primitiveConstants[i] = unit.primitiveConstants.get(i);
+        function.frameSize = unit.maxO;
+        function.primitiveFrameSize = unit.maxP;
+        function.statements = unit.statements.toArray(new SighNode[0]);
+        function.statementStarts = new int[function.statements.length];
+        function.statementEnds = new int[function.statements.length];
+        for (int i = 0; i < function.statements.length; ++i) {
+            function.statementStarts[i] = unit.ranges.get(i)[0];
+            function.statementEnds[i] = unit.ranges.get(i)[1];
+        }
+
+        unit = oldUnit;
+        return function;
+    }
+
+    // =============================================================================================
+    // Emission
+    // =============================================================================================
+
+    private void emit (int... instruction)
+    {
+        if (unit.size + instruction.length > unit.code.length)
+            unit.code = Arrays.copyOf(unit.code, unit.code.length * 2);
+        System.arraycopy(instruction, 0, unit.code, unit.size, instruction.length);
+        unit.size += instruction.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the instruction, whose last operand is a jump target, and returns the index of that
+     * operand, to be set by {@link #patch}.
+     */
+    private int emitJump (int... instruction) {
+        emit(instruction);
+        return unit.size - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the target of the jump whose target operand is at {@code index} to the next
+     * instruction.
+     */
+    private void patch (int index) {
+        unit.code[index] = unit.size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int constant (Object value) {
+        return unit.constantIndices.computeIfAbsent(value, it -> {
+            unit.constants.add(it);
+            return unit.constants.size() - 1;
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int primitiveConstant (long value) {
+        return unit.primitiveConstantIndices.computeIfAbsent(value, it -> {
+            unit.primitiveConstants.add(it);
+            return unit.primitiveConstants.size() - 1;
+        });
+    }
+
+    // =============================================================================================
+    // Registers
+    // =============================================================================================
+
+    private int tempP () {
+        return tempsP(1);
+    }
+
+    private int tempO () {
+        return tempsO(1);
+    }
+
+    /** Allocates {@code count} consecutive primitive temporaries, returning the first. */
+    private int tempsP (int count) {
+        int first = unit.nextP;
+        unit.nextP += count;
+        unit.maxP = Math.max(unit.maxP, unit.nextP);
+        return first;
+    }
+
+    /** Allocates {@code count} consecutive object temporaries, returning the first. */
+    private int tempsO (int count) {
+        int first = unit.nextO;
+        unit.nextO += count;
+        unit.maxO = Math.max(unit.maxO, unit.nextO);
+        return first;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the suggested primitive destination register, or a new temporary. */
+    private int destP () {
+        return targetP >= 0 ? targetP : tempP();
+    }
+
+    /** Returns the suggested object destination register, or a new temporary. */
+    private int destO () {
+        return targetO >= 0 ? targetO : tempO();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Copies {@code src} to {@code dst} with {@code opcode}, unless {@code dst} is -1 or {@code
+     * src} itself. Returns the register holding the value.
+     */
+    private int move (int opcode, int src, int dst) {
+        if (dst < 0 || dst == src) return src;
+        emit(opcode, dst, src);
+        return dst;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    // The conversion methods below return the register holding the value of the operand in the
+    // requested representation: dst if not -1, otherwise the operand register if no conversion is
+    // needed, or a new temporary.
+
+    private int toLong (Operand op, int dst)
+    {
+        if (op.kind == Kind.LONG)
+            return move(MOV_P, op.reg, dst);
+        assert op.kind == Kind.OBJECT;
+        dst = dst >= 0 ? dst : tempP();
+        emit(UNBOX_L, dst, op.reg);
+        return dst;
+    }
+
+    private int toDouble (Operand op, int dst)
+    {
+        switch (op.kind) {
+            case DOUBLE:
+                return move(MOV_P, op.reg, dst);
+            case LONG:
+                dst = dst >= 0 ? dst : tempP();
+                emit(I2D, dst, op.reg);
+                return dst;
+            default:
+                assert op.kind == Kind.OBJECT;
+                dst = dst >= 0 ? dst : tempP();
+                emit(UNBOX_D, dst, op.reg);
+                return dst;
+        }
+    }
+
+    private int toBoolean (Operand op, int dst)
+    {
+        if (op.kind == Kind.BOOLEAN)
+            return move(MOV_P, op.reg, dst);
+        assert op.kind == Kind.OBJECT;
+        dst = dst >= 0 ? dst : tempP();
+        emit(UNBOX_Z, dst, op.reg);
+        return dst;
+    }
+
+    private int toObject (Operand op, int dst)
+    {
+        if (op.kind == Kind.OBJECT)
+            return move(MOV_O, op.reg, dst);
+        int opcode = op.kind == Kind.LONG ? BOX_L : op.kind == Kind.DOUBLE ? BOX_D : BOX_Z;
+        dst = dst >= 0 ? dst : tempO();
+        emit(opcode, dst, op.reg);
+        return dst;
+    }
+
+    /** Converts the operand to a boxed {@code Float}, like {@link Interpreter#convertToFloat}. */
+    private void toFloatObject (Operand op, int dst)
+    {
+        switch (op.kind) {
+            case OBJECT:
+                emit(TO_FLOAT, dst, op.reg);
+                break;
+            case LONG:
+                int tmp = tempP();
+                emit(I2D, tmp, op.reg);
+                emit(BOX_D, dst, tmp);
+                break;
+            default:
+                emit(BOX_D, dst, op.reg);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    // The methods below compile an operand whose value will only be used after evaluating other
+    // expressions. If pin is true, these expressions may assign variables, and so the value is
+    // copied to a temporary if it is in a variable register.
+
+    private int longOperand (ExpressionNode node, boolean pin) {
+        Operand op = compile(node);
+        return pin && op.variable && op.kind == Kind.LONG
+            ? move(MOV_P, op.reg, tempP())
+            : toLong(op, -1);
+    }
+
+    private int doubleOperand (ExpressionNode node, boolean pin) {
+        Operand op = compile(node);
+        return pin && op.variable && op.kind == Kind.DOUBLE
+            ? move(MOV_P, op.reg, tempP())
+            : toDouble(op, -1);
+    }
+
+    private int booleanOperand (ExpressionNode node, boolean pin) {
+        Operand op = compile(node);
+        return pin && op.variable && op.kind == Kind.BOOLEAN
+            ? move(MOV_P, op.reg, tempP())
+            : toBoolean(op, -1);
+    }
+
+    private int objectOperand (ExpressionNode node, boolean pin) {
+        Operand op = compile(node);
+        return pin && op.variable && op.kind == Kind.OBJECT
+            ? move(MOV_O, op.reg, tempO())
+            : toObject(op, -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether evaluating the expression may assign a variable (conservatively: whether it
+     * contains an assignment or a call).
+     */
+    private static boolean mayWrite (SighNode node)
+    {
+        if (node instanceof FunCallNode || node instanceof AssignmentNode)
+            return true;
+        if (node instanceof ParenthesizedNode)
+            return mayWrite(((ParenthesizedNode) node).expression);
+        if (node instanceof UnaryExpressionNode)
+            return mayWrite(((UnaryExpressionNode) node).operand);
+        if (node instanceof BinaryExpressionNode)
+            return mayWrite(((BinaryExpressionNode) node).left)
+                || mayWrite(((BinaryExpressionNode) node).right);
+        if (node instanceof ArrayAccessNode)
+            return mayWrite(((ArrayAccessNode) node).array)
+                || mayWrite(((ArrayAccessNode) node).index);
+        if (node instanceof FieldAccessNode)
+            return mayWrite(((FieldAccessNode) node).stem);
+        if (node instanceof BoxElementAccessNode)
+            return mayWrite(((BoxElementAccessNode) node).stem);
+        if (node instanceof ArrayLiteralNode)
+            return mayWrite(((ArrayLiteralNode) node).components);
+        return false;
+    }
+
+    private static boolean mayWrite (List<? extends SighNode> nodes) {
+        for (SighNode node: nodes)
+            if (mayWrite(node)) return true;
+        return false;
+    }
+
+    // =============================================================================================
+    // Expressions
+    // =============================================================================================
+
+    private Operand intLiteral (IntLiteralNode node) {
+        int dst = destP();
+        emit(LOADK_P, dst, primitiveConstant(node.value));
+        return new Operand(Kind.LONG, dst, false);
+    }
+
+    private Operand floatLiteral (FloatLiteralNode node) {
+        int dst = destP();
+        emit(LOADK_P, dst, primitiveConstant(Double.doubleToRawLongBits(node.value)));
+        return new Operand(Kind.DOUBLE, dst, false);
+    }
+
+    private Operand stringLiteral (StringLiteralNode node) {
+        return constantOperand(node.value);
+    }
+
+    /**
+     * Returns the folded value of the expression (see {@link norswap.sigh.ConstantFolding}) as an
+     * operand, or compiles the operand it simplifies to, or returns null if it wasn't optimized.
+     */
+    private Operand folded (ExpressionNode node)
+    {
+        Object constant = linker.constant(node);
+        if (constant instanceof Long || constant instanceof Double || constant instanceof Boolean) {
+            int dst = destP();
+            if (constant instanceof Long) {
+                emit(LOADK_P, dst, primitiveConstant((long) constant));
+                return new Operand(Kind.LONG, dst, false);
+            } else if (constant instanceof Double) {
+                emit(LOADK_P, dst, primitiveConstant(Double.doubleToRawLongBits((double) constant)));
+                return new Operand(Kind.DOUBLE, dst, false);
+            } else {
+                emit(LOADK_P, dst, primitiveConstant((boolean) constant ? 1 : 0));
+                return new Operand(Kind.BOOLEAN, dst, false);
+            }
+        }
+        if (constant != null)
+            return constantOperand(constant);
+        ExpressionNode simplified = linker.simplified(node);
+        return simplified == null ? null : compile(simplified, targetP, targetO);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand constantOperand (Object value) {
+        int dst = destO();
+        emit(LOADK_O, dst, constant(value));
+        return new Operand(Kind.OBJECT, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand parenthesized (ParenthesizedNode node) {
+        return compile(node.expression, targetP, targetO);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand reference (ReferenceNode node)
+    {
+        Slot slot = linker.slot(node);
+        if (slot == null) // structure, box or function
+            return constantOperand(linker.decl(node));
+        if (slot.depth == 0)
+            return new Operand(slot.kind, slot.index, true);
+        if (slot.kind == Kind.OBJECT) {
+            int dst = destO();
+            emit(GET_OUTER_O, dst, slot.depth, slot.index);
+            return new Operand(Kind.OBJECT, dst, false);
+        } else {
+            int dst = destP();
+            emit(GET_OUTER_P, dst, slot.depth, slot.index);
+            return new Operand(slot.kind, dst, false);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand constructor (ConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        StructDeclarationNode decl = cast(linker.decl(node.ref));
+        return constantOperand(new Constructor(decl, linker.shape(decl)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand boxConstructor (BoxConstructorNode node) {
+        // guaranteed safe by semantic analysis
+        BoxDeclarationNode decl = cast(linker.decl(node.ref));
+        return constantOperand(new BoxConstructor(decl, linker.shape(decl)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand arrayLiteral (ArrayLiteralNode node)
+    {
+        int dst = destO();
+        Type componentType = ((ArrayType) linker.type(node)).componentType;
+        int count = node.components.size();
+
+        if (componentType instanceof IntType || componentType instanceof FloatType
+                || componentType instanceof BoolType) {
+            int start = tempsP(count);
+            for (int i = 0; i < count; ++i) {
+                Operand op = compile(node.components.get(i), start + i, -1);
+                if (componentType instanceof IntType)
+                    toLong(op, start + i);
+                else if (componentType instanceof FloatType)
+                    toDouble(op, start + i);
+                else
+                    toBoolean(op, start + i);
+            }
+            emit(componentType instanceof IntType ? NEW_ARRAY_L
+                : componentType instanceof FloatType ? NEW_ARRAY_D
+                : NEW_ARRAY_Z, dst, start, count);
+        } else {
+            emit(NEW_ARRAY_O, dst, arguments(node.components), count);
+        }
+
+        return new Operand(Kind.OBJECT, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the expressions, in order, into consecutive object temporaries, and returns the
+     * first one.
+     */
+    private int arguments (List<ExpressionNode> expressions)
+    {
+        int start = tempsO(expressions.size());
+        for (int i = 0; i < expressions.size(); ++i)
+            toObject(compile(expressions.get(i), -1, start + i), start + i);
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles an array access, field access or box element access, using or filling the
+     * temporary assigned to it by {@link norswap.sigh.LoopOptimization}, if any. Temporaries are
+     * registers, like variables.
+     */
+    private Operand read (ExpressionNode node)
+    {
+        Slot reused = linker.reusedTemp(node);
+        if (reused != null)
+            return new Operand(reused.kind, reused.index, false); // never reassigned while in use
+
+        Slot defined = linker.definedTemp(node);
+        return defined != null
+            ? defineTemp(node, defined)
+            : readUncached(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the read, leaving its value in the temporary at {@code slot}.
+     */
+    private Operand defineTemp (ExpressionNode node, Slot slot)
+    {
+        int reg = slot.index;
+        targetP = slot.kind == Kind.OBJECT ? -1 : reg;
+        targetO = slot.kind == Kind.OBJECT ? reg : -1;
+        Operand op = readUncached(node);
+        switch (slot.kind) {
+            case LONG:    toLong(op, reg);    break;
+            case BOOLEAN: toBoolean(op, reg); break;
+            default:      toObject(op, reg);
+        }
+        return new Operand(slot.kind, reg, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand readUncached (ExpressionNode node)
+    {
+        if (node instanceof ArrayAccessNode)
+            return arrayAccess((ArrayAccessNode) node);
+        if (node instanceof FieldAccessNode)
+            return fieldAccess((FieldAccessNode) node);
+        return boxElementAccess((BoxElementAccessNode) node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand fieldAccess (FieldAccessNode node) {
+        return fieldLoad(node, node.stem, "accessing field of null object");
+    }
+
+    private Operand boxElementAccess (BoxElementAccessNode node) {
+        return fieldLoad(node, node.stem, "accessing attribute of null object");
+    }
+
+    private Operand fieldLoad (ExpressionNode node, ExpressionNode stem, String message)
+    {
+        if (linker.type(stem) instanceof ArrayType) { // only field on arrays
+            int dst = destP();
+            emit(ALEN, dst, objectOperand(stem, false), constant(message));
+            return new Operand(Kind.LONG, dst, false);
+        }
+        int dst = destO();
+        emit(GETFIELD, dst, objectOperand(stem, false), linker.fieldIndex(node), constant(message));
+        return new Operand(Kind.OBJECT, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand arrayAccess (ArrayAccessNode node)
+    {
+        Type componentType = ((ArrayType) linker.type(node.array)).componentType;
+        Kind kind = kind(componentType);
+        int dst = kind == Kind.OBJECT ? destO() : destP();
+        int array = objectOperand(node.array, mayWrite(node.index));
+        int index = longOperand(node.index, false);
+        int opcode = kind == Kind.LONG ? ALOAD_L
+            : kind == Kind.DOUBLE ? ALOAD_D
+            : kind == Kind.BOOLEAN ? ALOAD_Z
+            : ALOAD_O;
+        emit(opcode, dst, array, index);
+        return new Operand(kind, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the kind of register used to hold the array components of the given type.
+     */
+    private static Kind kind (Type type) {
+        return type instanceof IntType   ? Kind.LONG
+             : type instanceof FloatType ? Kind.DOUBLE
+             : type instanceof BoolType  ? Kind.BOOLEAN
+             : Kind.OBJECT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand unaryExpression (UnaryExpressionNode node)
+    {
+        Operand folded = folded(node);
+        if (folded != null) return folded;
+
+        // there is only NOT
+        assert node.operator == UnaryOperator.NOT;
+        int dst = destP();
+        emit(NOT, dst, booleanOperand(node.operand, false));
+        return new Operand(Kind.BOOLEAN, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand binaryExpression (BinaryExpressionNode node)
+    {
+        Operand folded = folded(node);
+        if (folded != null) return folded;
+
+        Type leftType  = linker.type(node.left);
+        Type rightType = linker.type(node.right);
+        boolean pin = mayWrite(node.right);
+
+        switch (node.operator) {
+            case OR:
+            case AND: {
+                // the result register is written twice: it can't be the suggested target,
+                // which may be read by the right operand
+                int dst = tempP();
+                toBoolean(compile(node.left), dst);
+                int jump = emitJump(node.operator == BinaryOperator.AND ? JMP_IFNOT : JMP_IF,
+                    dst, -1);
+                toBoolean(compile(node.right), dst);
+                patch(jump);
+                return new Operand(Kind.BOOLEAN, dst, false);
+            }
+        }
+
+        if (node.operator == BinaryOperator.ADD
+            && (leftType instanceof StringType || rightType instanceof StringType)) {
+            int dst = destO();
+            int left = objectOperand(node.left, pin);
+            emit(CONCAT, dst, left, objectOperand(node.right, false));
+            return new Operand(Kind.OBJECT, dst, false);
+        }
+
+        if (leftType instanceof FloatType || rightType instanceof FloatType) {
+            int dst = destP();
+            int left = doubleOperand(node.left, pin);
+            int opcode = floatOpcode(node.operator);
+            emit(opcode, dst, left, doubleOperand(node.right, false));
+            return new Operand(opcode >= LT_D ? Kind.BOOLEAN : Kind.DOUBLE, dst, false);
+        }
+
+        if (leftType instanceof IntType) {
+            int dst = destP();
+            Integer immediate = immediate(node);
+            if (immediate != null) {
+                emit(ADDI_L, dst, longOperand(node.left, false), immediate);
+                return new Operand(Kind.LONG, dst, false);
+            }
+            int left = longOperand(node.left, pin);
+            int opcode = intOpcode(node.operator);
+            emit(opcode, dst, left, longOperand(node.right, false));
+            return new Operand(opcode >= LT_L ? Kind.BOOLEAN : Kind.LONG, dst, false);
+        }
+
+        boolean negate = node.operator == BinaryOperator.NOT_EQUALS;
+        int dst = destP();
+        if (leftType.isPrimitive()) { // Bool
+            int left = booleanOperand(node.left, pin);
+            emit(negate ? NE_L : EQ_L, dst, left, booleanOperand(node.right, false));
+        } else {
+            int left = objectOperand(node.left, pin);
+            emit(negate ? NSAME_O : SAME_O, dst, left, objectOperand(node.right, false));
+        }
+        return new Operand(Kind.BOOLEAN, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * If the node adds or subtracts an {@code Int} literal (or folded constant) that fits in an
+     * {@code int}, returns the value to add, otherwise null.
+     */
+    private Integer immediate (BinaryExpressionNode node)
+    {
+        Object constant = node.right instanceof IntLiteralNode
+            ? (Object) ((IntLiteralNode) node.right).value
+            : linker.constant(node.right);
+        if (!(constant instanceof Long)) return null;
+        long value = (long) constant;
+        if (value < -Integer.MAX_VALUE || value > Integer.MAX_VALUE) return null;
+        switch (node.operator) {
+            case ADD:      return (int) value;
+            case SUBTRACT: return (int) -value;
+            default:       return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int intOpcode (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return MUL_L;
+            case DIVIDE:        return DIV_L;
+            case REMAINDER:     return REM_L;
+            case ADD:           return ADD_L;
+            case SUBTRACT:      return SUB_L;
+            case GREATER:       return GT_L;
+            case LOWER:         return LT_L;
+            case GREATER_EQUAL: return GE_L;
+            case LOWER_EQUAL:   return LE_L;
+            case EQUALITY:      return EQ_L;
+            case NOT_EQUALS:    return NE_L;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int floatOpcode (BinaryOperator operator)
+    {
+        switch (operator) {
+            case MULTIPLY:      return MUL_D;
+            case DIVIDE:        return DIV_D;
+            case REMAINDER:     return REM_D;
+            case ADD:           return ADD_D;
+            case SUBTRACT:      return SUB_D;
+            case GREATER:       return GT_D;
+            case LOWER:         return LT_D;
+            case GREATER_EQUAL: return GE_D;
+            case LOWER_EQUAL:   return LE_D;
+            case EQUALITY:      return EQ_D;
+            case NOT_EQUALS:    return NE_D;
+            default:
+                throw new Error("should not reach here");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand assignment (AssignmentNode node)
+    {
+        if (node.left instanceof ReferenceNode) {
+            ReferenceNode ref = (ReferenceNode) node.left;
+            Slot slot = linker.slot(ref);
+            if (slot == null) {
+                Operand value = compile(node.right);
+                emit(THROW_INVALID, constant(ref.name));
+                return value;
+            }
+            return store(slot, linker.type(node), node.right);
+        }
+
+        if (node.left instanceof ArrayAccessNode) {
+            ArrayAccessNode arrayAccess = (ArrayAccessNode) node.left;
+            Kind kind = kind(((ArrayType) linker.type(arrayAccess.array)).componentType);
+            boolean valueWrites = mayWrite(node.right);
+
+            int array = objectOperand(arrayAccess.array,
+                valueWrites || mayWrite(arrayAccess.index));
+            if (valueWrites || mayWrite(arrayAccess.index))
+                emit(CHECK_NULL, array, constant("indexing null array"));
+            int index = longOperand(arrayAccess.index, valueWrites);
+            if (valueWrites)
+                emit(CHECK_INDEX, index);
+
+            Operand value = compile(node.right);
+            switch (kind) {
+                case LONG: {
+                    int reg = toLong(value, -1);
+                    emit(ASTORE_L, array, index, reg);
+                    return new Operand(Kind.LONG, reg, true);
+                }
+                case BOOLEAN: {
+                    int reg = toBoolean(value, -1);
+                    emit(ASTORE_Z, array, index, reg);
+                    return new Operand(Kind.BOOLEAN, reg, true);
+                }
+                case DOUBLE:
+                    // the value of the assignment is the unconverted value
+                    emit(value.kind == Kind.DOUBLE ? ASTORE_D
+                        : value.kind == Kind.LONG ? ASTORE_DL
+                        : ASTORE_DO, array, index, value.reg);
+                    return new Operand(value.kind, value.reg, true);
+                default: {
+                    int reg = toObject(value, -1);
+                    emit(ASTORE_O, array, index, reg);
+                    return new Operand(Kind.OBJECT, reg, true);
+                }
+            }
+        }
+
+        ExpressionNode stem;
+        String message;
+        if (node.left instanceof FieldAccessNode) {
+            stem = ((FieldAccessNode) node.left).stem;
+            message = "accessing field of null object";
+        } else if (node.left instanceof BoxElementAccessNode) {
+            stem = ((BoxElementAccessNode) node.left).stem;
+            message = "accessing box of null object";
+        } else {
+            throw new Error("should not reach here");
+        }
+
+        boolean valueWrites = mayWrite(node.right);
+        int object = objectOperand(stem, valueWrites);
+        if (valueWrites)
+            emit(CHECK_NULL, object, constant(message));
+        int value = toObject(compile(node.right), -1);
+        emit(PUTFIELD, object, linker.fieldIndex(node.left), value, constant(message));
+        return new Operand(Kind.OBJECT, value, true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles the assignment of {@code value} to the variable at {@code slot}, whose type is
+     * {@code type}. Returns the value of the assignment: the assigned value, before conversion to
+     * {@code Float}.
+     */
+    private Operand store (Slot slot, Type type, ExpressionNode value)
+    {
+        boolean fromInt = linker.type(value) instanceof IntType;
+
+        if (slot.depth == 0) {
+            int reg = slot.index;
+            switch (slot.kind) {
+                case LONG:
+                    toLong(compile(value, reg, -1), reg);
+                    return new Operand(Kind.LONG, reg, true);
+                case BOOLEAN:
+                    toBoolean(compile(value, reg, -1), reg);
+                    return new Operand(Kind.BOOLEAN, reg, true);
+                case DOUBLE:
+                    if (fromInt) {
+                        int src = toLong(compile(value), -1);
+                        emit(I2D, reg, src);
+                        return new Operand(Kind.LONG, src, true);
+                    }
+                    toDouble(compile(value, reg, -1), reg);
+                    return new Operand(Kind.DOUBLE, reg, true);
+                default:
+                    if (type instanceof FloatType) {
+                        Operand op = compile(value);
+                        toFloatObject(op, reg);
+                        return new Operand(op.kind, op.reg, true);
+                    }
+                    toObject(compile(value, -1, reg), reg);
+                    return new Operand(Kind.OBJECT, reg, true);
+            }
+        }
+
+        switch (slot.kind) {
+            case LONG:
+            case BOOLEAN: {
+                Operand op = compile(value);
+                int src = slot.kind == Kind.LONG ? toLong(op, -1) : toBoolean(op, -1);
+                emit(SET_OUTER_P, slot.depth, slot.index, src);
+                return new Operand(slot.kind, src, true);
+            }
+            case DOUBLE: {
+                if (fromInt) {
+                    int src = toLong(compile(value), -1);
+                    int tmp = tempP();
+                    emit(I2D, tmp, src);
+                    emit(SET_OUTER_P, slot.depth, slot.index, tmp);
+                    return new Operand(Kind.LONG, src, true);
+                }
+                int src = toDouble(compile(value), -1);
+                emit(SET_OUTER_P, slot.depth, slot.index, src);
+                return new Operand(Kind.DOUBLE, src, true);
+            }
+            default: {
+                Operand op = compile(value);
+                if (type instanceof FloatType) {
+                    int tmp = tempO();
+                    toFloatObject(op, tmp);
+                    emit(SET_OUTER_O, slot.depth, slot.index, tmp);
+                    return new Operand(op.kind, op.reg, true);
+                }
+                int src = toObject(op, -1);
+                emit(SET_OUTER_O, slot.depth, slot.index, src);
+                return new Operand(Kind.OBJECT, src, true);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand funCall (FunCallNode node)
+    {
+        int dst = destO();
+        int count = node.arguments.size();
+
+        if (node.function instanceof ConstructorNode) {
+            Shape shape = linker.shape(linker.decl(((ConstructorNode) node.function).ref));
+            emit(NEW_STRUCT, dst, constant(shape), arguments(node.arguments), count);
+            return new Operand(Kind.OBJECT, dst, false);
+        }
+
+        if (node.function instanceof BoxConstructorNode) {
+            Shape shape = linker.shape(linker.decl(((BoxConstructorNode) node.function).ref));
+            emit(NEW_BOX, dst, constant(shape), arguments(node.arguments), count);
+            return new Operand(Kind.OBJECT, dst, false);
+        }
+
+        if (node.function instanceof ReferenceNode) {
+            DeclarationNode decl = linker.decl((ReferenceNode) node.function);
+
+            if (decl instanceof SyntheticDeclarationNode) {
+                String name = ((SyntheticDeclarationNode) decl).name();
+                emit(BUILTIN, dst, constant(name), arguments(node.arguments), count);
+                return new Operand(Kind.OBJECT, dst, false);
+            }
+
+            if (decl instanceof FunDeclarationNode) {
+                RegisterFunction function = function(decl);
+                int depth = depth(function.enclosing);
+                if (depth >= 0) {
+                    emit(CALL, dst, constant(function), depth, arguments(node.arguments), count);
+                    return new Operand(Kind.OBJECT, dst, false);
+                }
+            }
+        }
+
+        int function = objectOperand(node.function, mayWrite(node.arguments));
+        emit(CALL_DYN, dst, function, arguments(node.arguments), count);
+        return new Operand(Kind.OBJECT, dst, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of frames to go up from the frame of the current owner to reach the
+     * frame of {@code target}, or -1 if {@code target} doesn't enclose the current owner.
+     */
+    private int depth (SighNode target)
+    {
+        int depth = 0;
+        for (SighNode it = unit.function.owner; it != null; it = linker.enclosingOwner(it), ++depth)
+            if (it == target)
+                return depth;
+        return -1;
+    }
+
+    // =============================================================================================
+    // Statements
+    // =============================================================================================
+
+    private Operand root (RootNode node) {
+        statements(node.statements);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand block (BlockNode node) {
+        statements(node.statements);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a list of statements, recording the code range of each, and freeing the
+     * temporaries used by each statement after it.
+     */
+    private void statements (List<StatementNode> statements)
+    {
+        for (StatementNode statement: statements) {
+            int nextO = unit.nextO, nextP = unit.nextP;
+            int start = unit.size;
+            int index = unit.statements.size();
+            unit.statements.add(statement);
+            unit.ranges.add(null);
+
+            compile(statement);
+
+            unit.ranges.set(index, new int[] { start, unit.size });
+            unit.nextO = nextO;
+            unit.nextP = nextP;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand varDecl (VarDeclarationNode node) {
+        // a declaration is always in the frame of the current function
+        store(linker.slot(node), linker.type(node), node.initializer);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand funDecl (FunDeclarationNode node) {
+        compileBody(node, node.block);
+        return null; // functions are not stored in frames
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand boxDecl (BoxDeclarationNode node) {
+        for (MethodDeclarationNode method: node.methods)
+            compileBody(method, method.block);
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand expressionStmt (ExpressionStatementNode node) {
+        compile(node.expression); // value discarded
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand ifStmt (IfNode node)
+    {
+        int jumpToElse = branch(node.condition, false);
+        compile(node.trueStatement);
+        if (node.falseStatement == null) {
+            patch(jumpToElse);
+        } else {
+            int jumpToEnd = emitJump(JMP, -1);
+            patch(jumpToElse);
+            compile(node.falseStatement);
+            patch(jumpToEnd);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand whileStmt (WhileNode node)
+    {
+        List<ExpressionNode> hoisted = linker.hoisted(node);
+        if (hoisted != null)
+            for (ExpressionNode read: hoisted)
+                defineTemp(read, linker.reusedTemp(read));
+
+        // the condition is at the end, so that each iteration only needs one jump
+        int jumpToCondition = emitJump(JMP, -1);
+        int body = unit.size;
+        compile(node.body);
+        patch(jumpToCondition);
+        int jumpToBody = branch(node.condition, true);
+        unit.code[jumpToBody] = body;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a jump taken if the condition evaluates to {@code when}, and returns the index of
+     * its target operand. {@code Int} comparisons are fused with the jump.
+     */
+    private int branch (ExpressionNode condition, boolean when)
+    {
+        ExpressionNode simplified = linker.simplified(condition);
+        if (simplified != null)
+            return branch(simplified, when);
+
+        if (condition instanceof ParenthesizedNode)
+            return branch(((ParenthesizedNode) condition).expression, when);
+
+        if (condition instanceof UnaryExpressionNode) // NOT
+            return branch(((UnaryExpressionNode) condition).operand, !when);
+
+        if (condition instanceof BinaryExpressionNode && linker.constant(condition) == null) {
+            BinaryExpressionNode node = (BinaryExpressionNode) condition;
+            int opcode = jumpOpcode(node.operator, when);
+            if (opcode >= 0
+                    && linker.type(node.left) instanceof IntType
+                    && linker.type(node.right) instanceof IntType) {
+                int left = longOperand(node.left, mayWrite(node.right));
+                return emitJump(opcode, left, longOperand(node.right, false), -1);
+            }
+        }
+
+        return emitJump(when ? JMP_IF : JMP_IFNOT, booleanOperand(condition, false), -1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the opcode of the jump taken if the result of the comparison is {@code when}, or -1
+     * if the operator isn't a comparison.
+     */
+    private static int jumpOpcode (BinaryOperator operator, boolean when)
+    {
+        switch (operator) {
+            case LOWER:         return when ? JLT_L : JGE_L;
+            case LOWER_EQUAL:   return when ? JLE_L : JGT_L;
+            case GREATER:       return when ? JGT_L : JLE_L;
+            case GREATER_EQUAL: return when ? JGE_L : JLT_L;
+            case EQUALITY:      return when ? JEQ_L : JNE_L;
+            case NOT_EQUALS:    return when ? JNE_L : JEQ_L;
+            default:            return -1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Operand returnStmt (ReturnNode node)
+    {
+        if (node.expression == null)
+            emit(RET_NULL);
+        else
+            emit(RET, toObject(compile(node.expression), -1));
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,111 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.SighNode;
+
+/**
+ * The compiled code of a frame owner (function, method or the main script) for the {@link
+ * RegisterInterpreter}: a flat array of instructions (see {@link Opcodes}) and the constants they
+ * refer to.
+ */
+final class RegisterFunction
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A {@code RootNode}, {@code FunDeclarationNode} or {@code MethodDeclarationNode}. */
+    final SighNode owner;
+
+    /** The owner of the lexically enclosing frame, or null for the root. */
+    final SighNode enclosing;
+
+    // The fields below are set by RegisterCompiler once the function has been compiled.
+
+    /** The instructions. */
+    int[] code;
+
+    /** Constants referenced by {@link Opcodes#LOADK_P}. */
+    long[] primitiveConstants;
+
+    /** Constants referenced by the other instructions. */
+    Object[] constants;
+
+    /** The number of object and primitive registers (variables and temporaries). */
+    int frameSize, primitiveFrameSize;
+
+    /**
+     * For each statement, in order of their first instruction: the code range (start inclusive,
+     * end exclusive) of its instructions, used to report exceptions as {@code Block} does in the
+     * {@link ClosureInterpreter}.
+     */
+    int[] statementStarts, statementEnds;
+    SighNode[] statements;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegisterFunction (SighNode owner, SighNode enclosing) {
+        this.owner = owner;
+        this.enclosing = enclosing;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new frame for this function, with the given parent.
+     */
+    Frame newFrame (Frame parent) {
+        return new Frame(owner, parent, frameSize, primitiveFrameSize);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the parent frame for a call to this function from {@code caller}, when it cannot be
+     * determined statically (see {@link CompiledFunction#lexicalParent}).
+     */
+    Frame lexicalParent (Frame caller)
+    {
+        for (Frame f = caller; f != null; f = f.parent)
+            if (f.owner == enclosing)
+                return f;
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the innermost statement whose code includes the instruction at {@code pc}.
+     */
+    SighNode statementAt (int pc)
+    {
+        SighNode statement = owner;
+        // ranges are properly nested and sorted by start: the last match is the innermost
+        for (int i = 0; i < statements.length && statementStarts[i] <= pc; ++i)
+            if (pc < statementEnds[i])
+                statement = statements[i];
+        return statement;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a human-readable listing of the instructions.
+     */
+    String disassemble ()
+    {
+        StringBuilder b = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += Opcodes.size(code[pc])) {
+            b.append(String.format("%4d  %-12s", pc, Opcodes.name(code[pc])));
+            for (int i = 1; i < Opcodes.size(code[pc]); ++i)
+                b.append(' ').append(code[pc + i]);
+            b.append('\n');
+        }
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "RegisterFunction(" + owner + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,543 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.ArrayType;
+import norswap.uranium.Reactor;
+import norswap.utils.exceptions.Exceptions;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import static norswap.sigh.interpreter.Opcodes.*;
+import static norswap.utils.Util.cast;
+
+/**
+ * An alternative to {@link Interpreter} and {@link ClosureInterpreter}, that first compiles the
+ * tree into compact register-based code (see {@link RegisterCompiler} and {@link Opcodes}), then
+ * executes it with a switch-dispatch loop.
+ *
+ * <p>Each function is compiled into a flat {@code int[]} array of instructions, whose operands are
+ * registers: the slots of its {@link Frame}, which hold its variables, followed by temporaries.
+ * Values of type {@code Int}, {@code Float} and {@code Bool} are kept unboxed in the primitive
+ * registers, and conditional jumps on {@code Int} comparisons don't need to materialize the
+ * comparison result.
+ *
+ * <p>Calls to Sigh functions don't recurse on the Java stack: the frames of the callers are kept
+ * on an explicit call stack, so that the recursion depth is only limited by the heap (up to {@link
+ * #MAX_DEPTH} nested calls), and a call is little more than allocating the frame of the callee.
+ *
+ * <p>Compared to the bytecode compiler, there is no class to generate, verify, load and
+ * JIT-compile: compiling is a single pass over the tree, and the compiled code of a script is a
+ * few arrays on the heap, which makes startup time predictable and doesn't consume metaspace.
+ *
+ * <p>The runtime value representation, frame layout and observable behaviour are the same as in
+ * {@link Interpreter}.
+ */
+public final class RegisterInterpreter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Reactor reactor;
+
+    /** Compiled code for every frame owner, used for calls through function values. */
+    private final IdentityHashMap<SighNode, RegisterFunction> functions = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public RegisterInterpreter (Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public Object interpret (SighNode root)
+    {
+        Linker linker = Linker.link(reactor, root);
+        RegisterFunction main = new RegisterCompiler(linker, functions).compile(cast(root));
+
+        RootScope rootScope = linker.rootScope();
+        Frame frame = main.newFrame(null);
+        frame.set(linker.slot(rootScope._true),  true);
+        frame.set(linker.slot(rootScope._false), false);
+        frame.set(linker.slot(rootScope._null),  Null.INSTANCE);
+
+        try {
+            return execute(main, frame);
+        } catch (PassthroughException e) {
+            throw Exceptions.runtime(e.getCause());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a listing of the code compiled by the last call to {@link #interpret}, for every
+     * function.
+     */
+    public String disassemble ()
+    {
+        StringBuilder b = new StringBuilder();
+        for (RegisterFunction function: functions.values())
+            b.append(function.owner instanceof DeclarationNode
+                    ? ((DeclarationNode) function.owner).name()
+                    : "<root>")
+                .append(":\n")
+                .append(function.disassemble());
+        return b.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of bytes of code (instructions and constant pools, excluding the objects
+     * referenced by the constants) compiled by the last call to {@link #interpret}.
+     */
+    public int codeSize ()
+    {
+        int size = 0;
+        for (RegisterFunction function: functions.values())
+            size += 4 * function.code.length
+                + 8 * function.primitiveConstants.length
+                + 4 * function.constants.length;
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maximum number of nested calls, beyond which a {@link StackOverflowError} is thrown, as it
+     * would be by the other backends.
+     */
+    private static final int MAX_DEPTH = 1 << 18;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The frames of the callers of the executing function, each with the position of its call
+     * instruction.
+     */
+    private static final class CallStack
+    {
+        RegisterFunction[] functions = new RegisterFunction[16];
+        Frame[] frames = new Frame[16];
+        int[] pcs = new int[16];
+        int size = 0;
+
+        void push (RegisterFunction function, Frame frame, int pc)
+        {
+            if (size == pcs.length) {
+                if (size == MAX_DEPTH)
+                    throw new StackOverflowError("more than " + MAX_DEPTH + " nested calls");
+                functions = Arrays.copyOf(functions, size * 2);
+                frames = Arrays.copyOf(frames, size * 2);
+                pcs = Arrays.copyOf(pcs, size * 2);
+            }
+            functions[size] = function;
+            frames[size] = frame;
+            pcs[size] = pc;
+            ++ size;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the function in the given frame (whose parameter registers must have been filled), and
+     * returns the returned value.
+     *
+     * <p>Calls to Sigh functions don't recurse on the Java stack: the caller is pushed on a {@link
+     * CallStack}, and the loop switches to the code and frame of the callee (hence the outer loop,
+     * which loads them into locals).
+     */
+    private Object execute (RegisterFunction function, Frame frame)
+    {
+        CallStack stack = new CallStack();
+        int pc = 0;
+
+        call: while (true) {
+            final int[] code = function.code;
+            final long[] constantsP = function.primitiveConstants;
+            final Object[] constants = function.constants;
+            final long[] p = frame.primitives;
+            final Object[] o = frame.slots;
+
+            try {
+                while (true) {
+                    switch (code[pc]) {
+                        case LOADK_P:
+                            p[code[pc + 1]] = constantsP[code[pc + 2]];
+                            pc += 3; break;
+                        case LOADK_O:
+                            o[code[pc + 1]] = constants[code[pc + 2]];
+                            pc += 3; break;
+                        case MOV_P:
+                            p[code[pc + 1]] = p[code[pc + 2]];
+                            pc += 3; break;
+                        case MOV_O:
+                            o[code[pc + 1]] = o[code[pc + 2]];
+                            pc += 3; break;
+                        case BOX_L:
+                            o[code[pc + 1]] = p[code[pc + 2]];
+                            pc += 3; break;
+                        case BOX_D:
+                            o[code[pc + 1]] = Double.longBitsToDouble(p[code[pc + 2]]);
+                            pc += 3; break;
+                        case BOX_Z:
+                            o[code[pc + 1]] = p[code[pc + 2]] != 0;
+                            pc += 3; break;
+                        case UNBOX_L:
+                            p[code[pc + 1]] = (long) o[code[pc + 2]];
+                            pc += 3; break;
+                        case UNBOX_D:
+                            p[code[pc + 1]] = bits(((Number) o[code[pc + 2]]).doubleValue());
+                            pc += 3; break;
+                        case UNBOX_Z:
+                            p[code[pc + 1]] = (boolean) o[code[pc + 2]] ? 1 : 0;
+                            pc += 3; break;
+                        case I2D:
+                            p[code[pc + 1]] = bits(p[code[pc + 2]]);
+                            pc += 3; break;
+                        case TO_FLOAT:
+                            o[code[pc + 1]] = Interpreter.convertToFloat(o[code[pc + 2]]);
+                            pc += 3; break;
+
+                        case GET_OUTER_P:
+                            p[code[pc + 1]] = frame.up(code[pc + 2]).primitives[code[pc + 3]];
+                            pc += 4; break;
+                        case GET_OUTER_O:
+                            o[code[pc + 1]] = frame.up(code[pc + 2]).slots[code[pc + 3]];
+                            pc += 4; break;
+                        case SET_OUTER_P:
+                            frame.up(code[pc + 1]).primitives[code[pc + 2]] = p[code[pc + 3]];
+                            pc += 4; break;
+                        case SET_OUTER_O:
+                            frame.up(code[pc + 1]).slots[code[pc + 2]] = o[code[pc + 3]];
+                            pc += 4; break;
+
+                        case ADD_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] + p[code[pc + 3]];
+                            pc += 4; break;
+                        case SUB_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] - p[code[pc + 3]];
+                            pc += 4; break;
+                        case MUL_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] * p[code[pc + 3]];
+                            pc += 4; break;
+                        case DIV_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] / p[code[pc + 3]];
+                            pc += 4; break;
+                        case REM_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] % p[code[pc + 3]];
+                            pc += 4; break;
+                        case ADDI_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] + code[pc + 3];
+                            pc += 4; break;
+                        case ADD_D:
+                            p[code[pc + 1]] = bits(dbl(p[code[pc + 2]]) + dbl(p[code[pc + 3]]));
+                            pc += 4; break;
+                        case SUB_D:
+                            p[code[pc + 1]] = bits(dbl(p[code[pc + 2]]) - dbl(p[code[pc + 3]]));
+                            pc += 4; break;
+                        case MUL_D:
+                            p[code[pc + 1]] = bits(dbl(p[code[pc + 2]]) * dbl(p[code[pc + 3]]));
+                            pc += 4; break;
+                        case DIV_D:
+                            p[code[pc + 1]] = bits(dbl(p[code[pc + 2]]) / dbl(p[code[pc + 3]]));
+                            pc += 4; break;
+                        case REM_D:
+                            p[code[pc + 1]] = bits(dbl(p[code[pc + 2]]) % dbl(p[code[pc + 3]]));
+                            pc += 4; break;
+                        case LT_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] < p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case LE_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] <= p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case GT_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] > p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case GE_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] >= p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case EQ_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] == p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case NE_L:
+                            p[code[pc + 1]] = p[code[pc + 2]] != p[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case LT_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) < dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case LE_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) <= dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case GT_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) > dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case GE_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) >= dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case EQ_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) == dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case NE_D:
+                            p[code[pc + 1]] = dbl(p[code[pc + 2]]) != dbl(p[code[pc + 3]]) ? 1 : 0;
+                            pc += 4; break;
+                        case NOT:
+                            p[code[pc + 1]] = p[code[pc + 2]] ^ 1;
+                            pc += 3; break;
+                        case SAME_O:
+                            p[code[pc + 1]] = o[code[pc + 2]] == o[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case NSAME_O:
+                            p[code[pc + 1]] = o[code[pc + 2]] != o[code[pc + 3]] ? 1 : 0;
+                            pc += 4; break;
+                        case CONCAT:
+                            o[code[pc + 1]] = Interpreter.convertToString(o[code[pc + 2]])
+                                + Interpreter.convertToString(o[code[pc + 3]]);
+                            pc += 4; break;
+
+                        case JMP:
+                            pc = code[pc + 1]; break;
+                        case JMP_IF:
+                            pc = p[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3; break;
+                        case JMP_IFNOT:
+                            pc = p[code[pc + 1]] == 0 ? code[pc + 2] : pc + 3; break;
+                        case JLT_L:
+                            pc = p[code[pc + 1]] <  p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                        case JLE_L:
+                            pc = p[code[pc + 1]] <= p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                        case JGT_L:
+                            pc = p[code[pc + 1]] >  p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                        case JGE_L:
+                            pc = p[code[pc + 1]] >= p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                        case JEQ_L:
+                            pc = p[code[pc + 1]] == p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                        case JNE_L:
+                            pc = p[code[pc + 1]] != p[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+
+                        case NEW_ARRAY_L:
+                        case NEW_ARRAY_D:
+                        case NEW_ARRAY_Z:
+                        case NEW_ARRAY_O:
+                            o[code[pc + 1]] = newArray(code[pc], frame, code[pc + 2], code[pc + 3]);
+                            pc += 4; break;
+                        case ALOAD_L:
+                            p[code[pc + 1]] = ((long[]) array(o[code[pc + 2]]))
+                                [Interpreter.checkIndex(p[code[pc + 3]])];
+                            pc += 4; break;
+                        case ALOAD_D:
+                            p[code[pc + 1]] = bits(((double[]) array(o[code[pc + 2]]))
+                                [Interpreter.checkIndex(p[code[pc + 3]])]);
+                            pc += 4; break;
+                        case ALOAD_Z:
+                            p[code[pc + 1]] = ((boolean[]) array(o[code[pc + 2]]))
+                                [Interpreter.checkIndex(p[code[pc + 3]])] ? 1 : 0;
+                            pc += 4; break;
+                        case ALOAD_O:
+                            o[code[pc + 1]] = ((Object[]) array(o[code[pc + 2]]))
+                                [Interpreter.checkIndex(p[code[pc + 3]])];
+                            pc += 4; break;
+                        case ASTORE_L:
+                            ((long[]) array(o[code[pc + 1]]))
+                                [Interpreter.checkIndex(p[code[pc + 2]])] = p[code[pc + 3]];
+                            pc += 4; break;
+                        case ASTORE_D:
+                            ((double[]) array(o[code[pc + 1]]))
+                                [Interpreter.checkIndex(p[code[pc + 2]])] = dbl(p[code[pc + 3]]);
+                            pc += 4; break;
+                        case ASTORE_DL:
+                            Interpreter.arraySet(array(o[code[pc + 1]]),
+                                Interpreter.checkIndex(p[code[pc + 2]]), p[code[pc + 3]]);
+                            pc += 4; break;
+                        case ASTORE_DO:
+                            Interpreter.arraySet(array(o[code[pc + 1]]),
+                                Interpreter.checkIndex(p[code[pc + 2]]), o[code[pc + 3]]);
+                            pc += 4; break;
+                        case ASTORE_Z:
+                            ((boolean[]) array(o[code[pc + 1]]))
+                                [Interpreter.checkIndex(p[code[pc + 2]])] = p[code[pc + 3]] != 0;
+                            pc += 4; break;
+                        case ASTORE_O:
+                            ((Object[]) array(o[code[pc + 1]]))
+                                [Interpreter.checkIndex(p[code[pc + 2]])] = o[code[pc + 3]];
+                            pc += 4; break;
+                        case ALEN:
+                            p[code[pc + 1]] = Interpreter.arrayLength(
+                                nonNull(o[code[pc + 2]], constants[code[pc + 3]]));
+                            pc += 4; break;
+                        case CHECK_NULL:
+                            nonNull(o[code[pc + 1]], constants[code[pc + 2]]);
+                            pc += 3; break;
+                        case CHECK_INDEX:
+                            Interpreter.checkIndex(p[code[pc + 1]]);
+                            pc += 2; break;
+                        case WIDEN:
+                            o[code[pc + 1]] = Interpreter.widen(o[code[pc + 2]],
+                                (ArrayType) constants[code[pc + 3]]);
+                            pc += 4; break;
+                        case GETFIELD:
+                            o[code[pc + 1]] = ((Instance) nonNull(o[code[pc + 2]],
+                                constants[code[pc + 4]])).values[code[pc + 3]];
+                            pc += 5; break;
+                        case PUTFIELD:
+                            ((Instance) nonNull(o[code[pc + 1]], constants[code[pc + 4]]))
+                                .values[code[pc + 2]] = o[code[pc + 3]];
+                            pc += 5; break;
+
+                        case CALL: {
+                            RegisterFunction callee = (RegisterFunction) constants[code[pc + 2]];
+                            Frame calleeFrame = callee.newFrame(frame.up(code[pc + 3]));
+                            System.arraycopy(o, code[pc + 4], calleeFrame.slots, 0, code[pc + 5]);
+                            stack.push(function, frame, pc);
+                            function = callee;
+                            frame = calleeFrame;
+                            pc = 0;
+                            continue call;
+                        }
+                        case CALL_DYN: {
+                            Object decl = o[code[pc + 2]];
+                            RegisterFunction callee = functions.get(decl);
+                            if (callee == null) {
+                                o[code[pc + 1]] = callDynamic(decl,
+                                    arguments(o, code[pc + 3], code[pc + 4]));
+                                pc += 5; break;
+                            }
+                            Frame calleeFrame = callee.newFrame(callee.lexicalParent(frame));
+                            System.arraycopy(o, code[pc + 3], calleeFrame.slots, 0, code[pc + 4]);
+                            stack.push(function, frame, pc);
+                            function = callee;
+                            frame = calleeFrame;
+                            pc = 0;
+                            continue call;
+                        }
+                        case BUILTIN:
+                            o[code[pc + 1]] = Interpreter.builtin((String) constants[code[pc + 2]],
+                                arguments(o, code[pc + 3], code[pc + 4]));
+                            pc += 5; break;
+                        case NEW_STRUCT:
+                            o[code[pc + 1]] = Interpreter.buildStruct(
+                                (Shape) constants[code[pc + 2]],
+                                arguments(o, code[pc + 3], code[pc + 4]));
+                            pc += 5; break;
+                        case NEW_BOX:
+                            o[code[pc + 1]] = Interpreter.buildBox((Shape) constants[code[pc + 2]],
+                                arguments(o, code[pc + 3], code[pc + 4]));
+                            pc += 5; break;
+                        case RET:
+                        case RET_NULL: {
+                            Object value = code[pc] == RET ? o[code[pc + 1]] : null;
+                            if (stack.size == 0)
+                                return value;
+                            -- stack.size;
+                            function = stack.functions[stack.size];
+                            frame = stack.frames[stack.size];
+                            pc = stack.pcs[stack.size];
+                            // back in the caller, at its CALL or CALL_DYN instruction
+                            frame.slots[function.code[pc + 1]] = value;
+                            pc += function.code[pc] == CALL ? 6 : 5;
+                            continue call;
+                        }
+                        case THROW_INVALID:
+                            throw new UnsupportedOperationException(
+                                "assigning to non-variable: " + constants[code[pc + 1]]);
+
+                        default:
+                            throw new Error("unknown opcode: " + code[pc]);
+                    }
+                }
+            } catch (InterpreterException | PassthroughException e) {
+                throw e;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new PassthroughException(e);
+            } catch (RuntimeException e) {
+                throw new InterpreterException(
+                    "exception while executing " + function.statementAt(pc), e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long bits (double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static double dbl (long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object nonNull (Object object, Object message) {
+        if (object == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException((String) message));
+        return object;
+    }
+
+    private static Object array (Object array) {
+        return nonNull(array, "indexing null array");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object newArray (int opcode, Frame frame, int start, int count)
+    {
+        switch (opcode) {
+            case NEW_ARRAY_L: {
+                long[] array = new long[count];
+                System.arraycopy(frame.primitives, start, array, 0, count);
+                return array;
+            }
+            case NEW_ARRAY_D: {
+                double[] array = new double[count];
+                for (int i = 0; i < count; ++i)
+                    array[i] = dbl(frame.primitives[start + i]);
+                return array;
+            }
+            case NEW_ARRAY_Z: {
+                boolean[] array = new boolean[count];
+                for (int i = 0; i < count; ++i)
+                    array[i] = frame.primitives[start + i] != 0;
+                return array;
+            }
+            default:
+                return arguments(frame.slots, start, count);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object[] arguments (Object[] registers, int start, int count) {
+        Object[] arguments = new Object[count];
+        System.arraycopy(registers, start, arguments, 0, count);
+        return arguments;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A call to a function value only known at run time (e.g. a function stored in a variable),
+     * which isn't a Sigh function or method (these are called by {@link #execute} directly).
+     */
+    private static Object callDynamic (Object decl, Object[] args)
+    {
+        if (decl == Null.INSTANCE)
+            throw new PassthroughException(new NullPointerException("calling a null function"));
+
+        if (decl instanceof SyntheticDeclarationNode)
+            return Interpreter.builtin(((SyntheticDeclarationNode) decl).name(), args);
+
+        if (decl instanceof Constructor)
+            return Interpreter.buildStruct(((Constructor) decl).shape, args);
+
+        if (decl instanceof BoxConstructor)
+            return Interpreter.buildBox(((BoxConstructor) decl).shape, args);
+
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,97 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.BoxDeclarationNode;
+import norswap.sigh.ast.DeclarationNode;
+import norswap.sigh.ast.StructDeclarationNode;
+
+/**
+ * The layout of the {@link Instance instances} of a structure or box: the names of its fields
+ * (attributes and methods for boxes), in the order of their indices.
+ *
+ * <p>There is a single shape per declaration, created by the {@link Linker}. Field accesses do
+ * not look up names at run time: they use the {@code fieldIndex} attribute computed by semantic
+ * analysis.
+ */
+public final class Shape
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A {@link StructDeclarationNode} or a {@link BoxDeclarationNode}. */
+    public final DeclarationNode declaration;
+
+    final String[] names;
+
+    /**
+     * The initial values of the fields of a box: the declaration of each attribute (until it is
+     * assigned) and each method. Null for structures.
+     */
+    final Object[] initialValues;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Shape (StructDeclarationNode declaration)
+    {
+        this.declaration = declaration;
+        this.names = new String[declaration.fields.size()];
+        for (int i = 0; i < names.length; ++i)
+            names[i] = declaration.fields.get(i).name;
+        this.initialValues = null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    Shape (BoxDeclarationNode declaration)
+    {
+        this.declaration = declaration;
+        int attributes = declaration.attributes.size();
+        this.names = new String[attributes + declaration.methods.size()];
+        this.initialValues = new Object[names.length];
+        for (int i = 0; i < attributes; ++i) {
+            names[i] = declaration.attributes.get(i).name;
+            initialValues[i] = declaration.attributes.get(i);
+        }
+        for (int i = attributes; i < names.length; ++i) {
+            names[i] = declaration.methods.get(i - attributes).name;
+            initialValues[i] = declaration.methods.get(i - attributes);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of fields.
+     */
+    public int size () {
+        return names.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the name of the field at the given index.
+     */
+    public String name (int index) {
+        return names[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the field with the given name, or -1 if there is none.
+     */
+    public int indexOf (String name)
+    {
+        for (int i = 0; i < names.length; ++i)
+            if (names[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "Shape(" + declaration.name() + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,472 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.*;
+import norswap.sigh.bytecode.BytecodeCompiler;
+import norswap.sigh.bytecode.TypeUtils;
+import norswap.sigh.scopes.RootScope;
+import norswap.sigh.scopes.Scope;
+import norswap.sigh.scopes.SyntheticDeclarationNode;
+import norswap.sigh.types.*;
+import norswap.uranium.Reactor;
+import norswap.utils.exceptions.NoStackException;
+import norswap.utils.visitors.ReflectiveFieldWalker;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static norswap.sigh.ast.BinaryOperator.EQUALITY;
+import static norswap.sigh.ast.BinaryOperator.NOT_EQUALS;
+import static norswap.utils.visitors.WalkVisitType.POST_VISIT;
+import static norswap.utils.visitors.WalkVisitType.PRE_VISIT;
+
+/**
+ * Implements tiered execution for the {@link Interpreter}: functions start out interpreted, and
+ * once they are hot, they are compiled with the {@link BytecodeCompiler} and subsequently called
+ * through a method handle, so that they can reach the speed of JIT-compiled code.
+ *
+ * <p>Each function has a counter, incremented on every call and on every iteration of a while
+ * loop (back-edge) that runs in its frame. When it reaches the compile threshold, the whole
+ * program is compiled (once) and the function, if it is eligible, is called in its compiled
+ * form from then on. Since there is no on-stack replacement, a function that is hot because of
+ * a long loop only switches to compiled code on its next call.
+ *
+ * <p>The counters belong to a single execution, but the compiled code ({@link Code}) is shared by
+ * all the executions of the same tree: functions compiled by a previous execution are called in
+ * compiled form from their first call.
+ *
+ * <p>Compiled code represents values differently (see {@link BytecodeCompiler}), and does not
+ * share the interpreter's frames. Hence only the functions declared in the root scope whose
+ * code (transitively, through the functions it calls) satisfies the following conditions are
+ * eligible:
+ * <ul>
+ *     <li>It only uses values of type {@code Int}, {@code Float}, {@code Bool}, {@code String},
+ *     and arrays of {@code Int}, {@code Float} and {@code Bool}, which are represented the same
+ *     way in both tiers (with boxing at the boundary).</li>
+ *     <li>It only uses its own variables and parameters (no top-level variables and no variables
+ *     of an enclosing function).</li>
+ *     <li>It only calls {@code print} and eligible functions, directly.</li>
+ *     <li>It doesn't pass an {@code Int} argument for a {@code Float} parameter or return an {@code
+ *     Int} from a {@code Float} function: the interpreter doesn't convert these values while
+ *     compiled code does, which would affect the result of later operations. For the same
+ *     reason, a call from the interpreter whose arguments aren't of the exact parameter types
+ *     (e.g. a {@code Long} for a {@code Float} parameter) is interpreted.</li>
+ *     <li>It doesn't compare strings or arrays with {@code ==} or {@code !=}.</li>
+ * </ul>
+ *
+ * <p>If the program can't be compiled, or if the generated class can't be loaded or linked,
+ * everything keeps being interpreted.
+ *
+ * <p>Exceptions thrown by compiled code propagate as if thrown by the interpreter itself.
+ */
+final class Tiering
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returned by {@link #call} when the call must be interpreted.
+     */
+    static final Object INTERPRET = new Object() {
+        @Override public String toString () {
+            return "INTERPRET";
+        }
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The compiled form of a function. */
+    private static final class Compiled
+    {
+        /** Marks functions that are not compiled. */
+        static final Compiled NONE = new Compiled(null, null);
+
+        /** The compiled function, taking its arguments as an Object[], or null. */
+        final MethodHandle handle;
+
+        /** The representation classes of the parameters, used to check the arguments. */
+        final Class<?>[] paramClasses;
+
+        Compiled (MethodHandle handle, Class<?>[] paramClasses) {
+            this.handle = handle;
+            this.paramClasses = paramClasses;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The compiled code of a tree, shared by all its executions, so that the program is compiled
+     * and loaded at most once, however many times it is executed. It is thread-safe.
+     */
+    static final class Code
+    {
+        private final Reactor reactor;
+        private final Linker linker;
+        private final RootNode root;
+
+        /** The functions for which it was decided whether to compile them. */
+        private final IdentityHashMap<FunDeclarationNode, Compiled> functions
+            = new IdentityHashMap<>();
+
+        /** The main class of the compiled program, once compiled. */
+        private Class<?> compiledClass;
+
+        /** Whether compiling the program failed, in which case everything is interpreted. */
+        private boolean failed = false;
+
+        /** Functions that are not eligible for compilation (computed on first compilation). */
+        private Set<FunDeclarationNode> ineligible;
+
+        Code (Reactor reactor, Linker linker, RootNode root) {
+            this.reactor = reactor;
+            this.linker = linker;
+            this.root = root;
+        }
+
+        /**
+         * Returns the compiled form of the function, or null if it was not compiled yet (and not
+         * decided to be interpreted).
+         */
+        synchronized Compiled get (FunDeclarationNode fun) {
+            return functions.get(fun);
+        }
+
+        /**
+         * Returns the compiled form of the function, compiling the program first if needed, or
+         * {@link Compiled#NONE} if it can't be compiled.
+         */
+        synchronized Compiled compile (FunDeclarationNode fun) {
+            return functions.computeIfAbsent(fun, this::compileFunction);
+        }
+
+        private Compiled compileFunction (FunDeclarationNode fun)
+        {
+            if (failed) return Compiled.NONE;
+
+            if (compiledClass == null) {
+                try {
+                    ineligible = ineligibleFunctions(reactor, linker, root);
+                    String name = BytecodeCompiler.uniqueName("SighTiered");
+                    compiledClass = new BytecodeCompiler(reactor).compile(name, root).load();
+                } catch (UnsupportedOperationException | LinkageError e) {
+                    failed = true;
+                    return Compiled.NONE;
+                }
+            }
+
+            Scope scope = reactor.get(fun, "scope");
+            if (ineligible.contains(fun) || !(scope.parent instanceof RootScope))
+                return Compiled.NONE; // nested functions may have a mangled name
+
+            FunType type = reactor.get(fun, "type");
+            Class<?>[] params = new Class<?>[type.paramTypes.length];
+            Class<?>[] paramClasses = new Class<?>[params.length];
+            for (int i = 0; i < params.length; ++i) {
+                params[i] = TypeUtils.javaClass(type.paramTypes[i]);
+                paramClasses[i] = boxedClass(params[i]);
+            }
+
+            try {
+                MethodHandle handle = MethodHandles.publicLookup().findStatic(compiledClass,
+                    fun.name, MethodType.methodType(TypeUtils.javaClass(type.returnType), params));
+                return new Compiled(handle
+                    .asType(handle.type().generic())
+                    .asSpreader(Object[].class, params.length),
+                    paramClasses);
+            } catch (LinkageError | ReflectiveOperationException e) {
+                // the generated class fails verification (possibly in code unrelated to the function)
+                failed = true;
+                return Compiled.NONE;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The tiering state of a function in an execution. */
+    private static final class Tier
+    {
+        /** Number of calls and back-edges so far. */
+        int count = 0;
+
+        /** The compiled form of the function, or null if not decided yet. */
+        Compiled compiled;
+
+        Tier (Compiled compiled) {
+            this.compiled = compiled;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Code code;
+    private final int threshold;
+
+    private final IdentityHashMap<FunDeclarationNode, Tier> tiers = new IdentityHashMap<>();
+
+    private int compiledFunctions = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates the tiering state of an execution of the tree whose compiled code is {@code code}.
+     */
+    Tiering (Code code, int threshold) {
+        this.code = code;
+        this.threshold = threshold;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the tier of the function, which starts out compiled if a previous execution
+     * already compiled it.
+     */
+    private Tier tier (FunDeclarationNode fun)
+    {
+        Tier tier = tiers.get(fun);
+        if (tier == null) {
+            tier = new Tier(code.get(fun));
+            tiers.put(fun, tier);
+            if (tier.compiled != null && tier.compiled.handle != null)
+                ++ compiledFunctions;
+        }
+        return tier;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a back-edge of a while loop executing in the frame of the given owner.
+     */
+    void backEdge (SighNode owner) {
+        if (owner instanceof FunDeclarationNode)
+            ++ tier((FunDeclarationNode) owner).count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a call to the given function, and executes it in compiled form if possible,
+     * returning its result. Otherwise, returns {@link #INTERPRET}.
+     */
+    Object call (FunDeclarationNode fun, Object[] args)
+    {
+        Tier tier = tier(fun);
+        if (tier.compiled == null) {
+            if (++ tier.count < threshold)
+                return INTERPRET;
+            tier.compiled = code.compile(fun);
+            if (tier.compiled.handle != null)
+                ++ compiledFunctions;
+        }
+
+        Compiled compiled = tier.compiled;
+        if (compiled.handle == null)
+            return INTERPRET;
+
+        for (int i = 0; i < args.length; ++i)
+            if (!compiled.paramClasses[i].isInstance(args[i]))
+                return INTERPRET;
+
+        try {
+            return (Object) compiled.handle.invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new NoStackException(t);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of functions that have been called in compiled form so far.
+     */
+    int compiledFunctions () {
+        return compiledFunctions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Class<?> boxedClass (Class<?> klass) {
+        return klass == long.class    ? Long.class
+             : klass == double.class  ? Double.class
+             : klass == boolean.class ? Boolean.class
+             : klass;
+    }
+
+    // =============================================================================================
+    // Eligibility analysis
+    // =============================================================================================
+
+    /**
+     * Returns the set of functions that are not eligible for compilation (see the class
+     * documentation).
+     */
+    private static Set<FunDeclarationNode> ineligibleFunctions (
+            Reactor reactor, Linker linker, RootNode root)
+    {
+        Set<FunDeclarationNode> ineligible = Collections.newSetFromMap(new IdentityHashMap<>());
+        IdentityHashMap<FunDeclarationNode, List<FunDeclarationNode>> callees
+            = new IdentityHashMap<>();
+        Set<SighNode> calledReferences = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<FunDeclarationNode> functions = new ArrayDeque<>();
+
+        ReflectiveFieldWalker<SighNode> walker = new ReflectiveFieldWalker<>(
+            SighNode.class, PRE_VISIT, POST_VISIT);
+
+        walker.register(FunDeclarationNode.class, PRE_VISIT, node -> {
+            FunType type = reactor.get(node, "type");
+            if (!supported(type.returnType) && !(type.returnType instanceof VoidType))
+                ineligible.add(node);
+            for (Type param: type.paramTypes)
+                if (!supported(param))
+                    ineligible.add(node);
+            // the function itself is ineligible if it is nested in an ineligible function,
+            // e.g. in a method
+            if (!functions.isEmpty() && ineligible.contains(functions.peek()))
+                ineligible.add(node);
+            callees.put(node, new ArrayList<>());
+            functions.push(node);
+        });
+        walker.register(FunDeclarationNode.class, POST_VISIT, node -> functions.pop());
+
+        walker.registerFallback(PRE_VISIT, node -> {
+            FunDeclarationNode fun = functions.peek();
+            if (fun != null && !eligible(reactor, linker, node, fun,
+                    callees.get(fun), calledReferences))
+                ineligible.add(fun);
+        });
+        walker.registerFallback(POST_VISIT, node -> {});
+        walker.walk(root);
+
+        // a function calling an ineligible function is ineligible
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FunDeclarationNode fun: callees.keySet())
+                if (!ineligible.contains(fun))
+                    for (FunDeclarationNode callee: callees.get(fun))
+                        if (ineligible.contains(callee)) {
+                            ineligible.add(fun);
+                            changed = true;
+                            break;
+                        }
+        }
+
+        return ineligible;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the given node, part of the body of {@code fun}, can be compiled with the same
+     * semantics as in the interpreter. Adds the functions called by the node to {@code callees},
+     * and function references in call position to {@code calledReferences}.
+     */
+    private static boolean eligible (Reactor reactor, Linker linker, SighNode node,
+            FunDeclarationNode fun, List<FunDeclarationNode> callees,
+            Set<SighNode> calledReferences)
+    {
+        if (node instanceof StructDeclarationNode || node instanceof BoxDeclarationNode
+                || node instanceof ConstructorNode || node instanceof BoxConstructorNode
+                || node instanceof BoxElementAccessNode)
+            return false;
+
+        if (node instanceof FunCallNode) {
+            FunCallNode call = (FunCallNode) node;
+            if (!(call.function instanceof ReferenceNode)) return false;
+            DeclarationNode decl = reactor.get(call.function, "decl");
+            if (decl instanceof FunDeclarationNode)
+                callees.add((FunDeclarationNode) decl);
+            else if (!(decl instanceof SyntheticDeclarationNode))
+                return false; // print is the only function that isn't declared
+            calledReferences.add(call.function);
+
+            FunType type = reactor.get(call.function, "type");
+            for (int i = 0; i < call.arguments.size(); ++i)
+                if (!type.paramTypes[i].equals(reactor.get(call.arguments.get(i), "type")))
+                    return false;
+            return true;
+        }
+
+        if (node instanceof ReturnNode && ((ReturnNode) node).expression != null) {
+            FunType type = reactor.get(fun, "type");
+            Type returned = reactor.get(((ReturnNode) node).expression, "type");
+            return !(type.returnType instanceof FloatType && returned instanceof IntType);
+        }
+
+        if (node instanceof ReferenceNode) {
+            if (calledReferences.contains(node)) return true;
+            Linker.Slot slot = linker.slot((ReferenceNode) node);
+            if (slot != null && slot.depth != 0) {
+                // true, false and null live in the root frame
+                DeclarationNode decl = reactor.get(node, "decl");
+                if (!(decl instanceof SyntheticDeclarationNode)) return false;
+            }
+        }
+
+        if (node instanceof BinaryExpressionNode) {
+            BinaryExpressionNode binary = (BinaryExpressionNode) node;
+            if ((binary.operator == EQUALITY || binary.operator == NOT_EQUALS)
+                    && !(isPrimitive(reactor.get(binary.left, "type"))
+                        && isPrimitive(reactor.get(binary.right, "type"))))
+                return false;
+        }
+
+        if (node instanceof ArrayLiteralNode) {
+            ArrayType type = reactor.get(node, "type");
+            for (ExpressionNode component: ((ArrayLiteralNode) node).components)
+                if (!type.componentType.equals(reactor.get(component, "type")))
+                    return false;
+        }
+
+        // Int[] values are assignable to Float[] variables
+        if (node instanceof VarDeclarationNode) {
+            VarDeclarationNode decl = (VarDeclarationNode) node;
+            Type type = reactor.get(decl, "type");
+            if (type instanceof ArrayType && !type.equals(reactor.get(decl.initializer, "type")))
+                return false;
+        }
+
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            Type type = reactor.get(assignment.left, "type");
+            if (type instanceof ArrayType && !type.equals(reactor.get(assignment.right, "type")))
+                return false;
+        }
+
+        if (node instanceof ExpressionNode) {
+            Type type = reactor.get(node, "type");
+            return supported(type) || type instanceof VoidType && node instanceof FunCallNode;
+        }
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether values of the given type have the same representation in the interpreter and in
+     * compiled code.
+     */
+    private static boolean supported (Type type) {
+        return isPrimitive(type)
+            || type instanceof StringType
+            || type instanceof ArrayType && isPrimitive(((ArrayType) type).componentType);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean isPrimitive (Type type) {
+        return type instanceof IntType || type instanceof FloatType || type instanceof BoolType;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
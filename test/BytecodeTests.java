@@ -1,19 +1,50 @@
 import norswap.autumn.Autumn;
 import norswap.autumn.ParseOptions;
 import norswap.autumn.ParseResult;
+import norswap.autumn.positions.LineMapString;
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.LoopOptimization;
+import norswap.sigh.PreparedProgram;
+import norswap.sigh.RunListener.Metric;
+import norswap.sigh.RunListener.Phase;
+import norswap.sigh.RunMetrics;
+import norswap.sigh.ScriptCache;
 import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.SighRunner;
 import norswap.sigh.SighGrammar;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.bytecode.BytecodeCompiler;
 import norswap.sigh.bytecode.CompilationResult;
+import norswap.sigh.bytecode.CompiledScript;
 import norswap.uranium.Reactor;
 import norswap.utils.IO;
+import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.testng.annotations.Test;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -42,8 +73,20 @@ public class BytecodeTests
         if (!reactor.errors().isEmpty())
             throw new AssertionError(reactor.reportErrors(Object::toString));
 
+        // run both without and with the optimization passes
+        run(reactor, tree, input, expected);
+        ConstantFolding.run(reactor, tree);
+        LoopOptimization.run(reactor, tree);
+        run(reactor, tree, input, expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void run (Reactor reactor, SighNode tree, String input, String expected)
+    {
         String className = "BytecodeTestsRun";
-        BytecodeCompiler compiler = new BytecodeCompiler(reactor);
+        BytecodeCompiler compiler =
+            new BytecodeCompiler(reactor, new LineMapString(className + ".si", input));
         CompilationResult result = compiler.compile(className, tree);
 
         // using a new loader each time allows to overwrite the class every time.
@@ -258,6 +301,78 @@ public class BytecodeTests
         check("fun test () { fun foo() { print(\"a\") } foo() foo() } test()", "a\na");
     }
 
+    @Test public void testClosures() {
+        // nested functions without captures (from examples/kitchensink.si)
+        check("fun array_add (a: Int[]): Int {" +
+            "    fun add (a: Int, b: Int): Int { return add2(a, b) " +
+            "        fun add2 (a: Int, b: Int): Int { return a + b } }" +
+            "    var i: Int = 1 ; var result: Int = a[0]" +
+            "    while i < a.length { result = add(result, a[i]) ; i = i + 1 }" +
+            "    return result }" +
+            "print(\"\" + array_add([1, 2, 3]))", "6");
+
+        // nested functions with the same name
+        check("fun f(): String { fun x(): String { return \"f\" } return x() }" +
+            "fun g(): String { fun x(): String { return \"g\" } return x() }" +
+            "print(f() + g())", "fg");
+
+        // captured parameters, and variables of the root
+        check("var y: Int = 100 " +
+            "fun outer(x: Int): Int { fun inner(): Int { return x + y } return inner() } " +
+            "print(\"\" + outer(1))", "101");
+
+        // assigned captures are shared
+        check("var n: Int = 1 " +
+            "fun f(): Int { var m: Int = 10 fun g(): Int { m = m + n ; return m } " +
+            "g() ; return g() + m } " +
+            "print(\"\" + f())", "24");
+        check("fun f(x: Float): Float { fun g() { x = x * 2 } g() ; g() ; return x }" +
+            "print(\"\" + f(1))", "4.0");
+        check("fun f(): Bool { var b: Bool = false fun flip() { b = !b } flip() ; return b }" +
+            "print(\"\" + f())", "true");
+        check("fun f(): String { var s: String = \"a\" " +
+            "fun g() { fun h() { s = s + \"b\" } h() ; h() } g() ; return s }" +
+            "print(f())", "abb");
+
+        // captures of referenced functions
+        check("fun f(a: Int): Int { fun g(): Int { return h() + 1 } " +
+            "fun h(): Int { return a } return g() } print(\"\" + f(7))", "8");
+
+        // function values of functions with captures
+        check("fun f(a: Int): Int { var c: Int = 0 fun g(b: Int): Int { c = c + 1 ; return a + b } " +
+            "return (g)(1) + [g][0](2) + c } print(\"\" + f(10))", "25");
+
+        // variables of top-level blocks
+        check("{ var k: Int = 5 fun f(): Int { k = k + 1 ; return k } f() ; print(\"\" + f() + k) }",
+            "77");
+
+        // functions nested in methods
+        check("box Acc { attr total: Int " +
+            "meth add(n: Int): Int { fun step(): Int { total = total + n ; return total }" +
+            "step() ; return (step)() } }" +
+            "var a: Acc = create Acc() ; print(\"\" + a#add(2) + a#add(3))", "410");
+    }
+
+    @Test public void testGlobals() {
+        // read and written from functions, with implicit conversion
+        check("var x: Int = 1 ; fun f(): Int { return x + 1 } " + printx + " ; print(\"\" + f())",
+            "1\n2");
+        check("var x: Float = 1 ; fun inc() { x = x + 1 } inc() ; inc() ;" + printx, "3.0");
+        check("var x: Int = 1 ; var y: String = \"a\" ;" +
+            "fun f(): String { x = x * 2 ; return y + x } " +
+            "while x < 8 { print(f()) }", "a2\na4\na8");
+
+        // from box methods
+        check("var count: Int = 0 ;" +
+            "box Counter { attr n: Int meth inc() { n = n + 1 ; count = count + 1 } }" +
+            "var a: Counter = create Counter() ; var b: Counter = create Counter() ;" +
+            "a#inc() ; b#inc() ; b#inc() ; print(\"\" + count + a#n + b#n)", "312");
+
+        // globals next to locals
+        check("var x: Int = 1 ; var y: Int = 2 ; var z: Float = 3 ; fun f(): Int { return y }" +
+            "print(\"\" + x + f() + z)", "123.0");
+    }
+
     private final String makePair =
         "struct Pair { var x: Int ; var y: Float }" +
             "var x: Pair = $Pair(1, 2.0) ;";
@@ -267,4 +382,275 @@ public class BytecodeTests
         check(makePair + "x.x = 3; print(\"\" + x.x)", "3");
         check(makePair + "x.y = 3; print(\"\" + x.y)", "3.0");
     }
+
+    private final String makeFunctions =
+        "fun add (a: Int, b: Int): Int { return a + b }\n" +
+        "fun sub (a: Int, b: Int): Int { return a - b }\n" +
+        "fun mul (a: Int, b: Int): Int { return a * b }\n" +
+        "fun div (a: Int, b: Int): Int { return a / b }\n" +
+        "fun half (x: Float): Float { return x / 2 }\n";
+
+    @Test public void testFunctionValues() {
+        check(makeFunctions + "print(\"\" + (add)(1, 2))", "3");
+        check(makeFunctions + "print(\"\" + [add, sub][1](5, 3))", "2");
+        check(makeFunctions + "print(\"\" + [half][0](3))", "1.5");
+        check("(print)(\"a\")", "a");
+        check("print((print)(\"a\"))", "a\na");
+        check(makeFunctions + "print(\"\" + ((add) == (add)) + ((add) == (sub)))", "truefalse");
+
+        // more functions than the inline cache can hold
+        check(makeFunctions +
+            "var i: Int = 0\n" +
+            "var sum: Int = 0\n" +
+            "while i < 20 {\n" +
+            "    sum = sum + [add, sub, mul, div][i % 4](12, 3)\n" +
+            "    i = i + 1\n" +
+            "}\n" +
+            "print(\"\" + sum)",
+            "" + 5 * (15 + 9 + 36 + 4));
+
+        check(
+            "box Counter {\n" +
+            "    attr count: Int\n" +
+            "    meth inc(n: Int): Int { count = count + n return count }\n" +
+            "    meth incTwice(n: Int): Int { return [inc][0](n) + (inc)(n) }\n" +
+            "}\n" +
+            "var c: Counter = create Counter()\n" +
+            "print(\"\" + (c#inc)(2) + (c#inc)(3) + c#incTwice(1))",
+            "25" + (6 + 7));
+    }
+
+    private final String makeCar =
+        "box Car {\n" +
+        "    attr speed: Int\n" +
+        "    attr boost: Float\n" +
+        "    attr name: String\n" +
+        "    meth getSpeed(): Int { return speed }\n" +
+        "    meth setSpeed(s: Int) { speed = s }\n" +
+        "    meth boosted(): Float { return getSpeed() * boost }\n" +
+        "    meth describe(prefix: String): String { return prefix + name + \":\" + speed }\n" +
+        "}\n" +
+        "var car: Car = create Car() ;";
+
+    @Test public void testBoxes() {
+        check(makeCar + "print(\"\" + car#speed + \":\" + car#boost)", "0:0.0");
+        check(makeCar + "car#speed = 3; print(\"\" + car#speed)", "3");
+        check(makeCar + "car#boost = 2; print(\"\" + car#boost)", "2.0");
+        check(makeCar + "car#setSpeed(7); print(\"\" + car#getSpeed())", "7");
+        check(makeCar + "car#speed = 2; car#boost = 1.5; print(\"\" + car#boosted())", "3.0");
+        check(makeCar + "car#name = \"a\"; car#speed = 1; print(car#describe(\">\"))", ">a:1");
+
+        check(makeCar +
+            "var cars: Car[] = [car, create Car()]\n" +
+            "var i: Int = 0\n" +
+            "while i < cars.length { cars[i]#setSpeed(i + 1) ; i = i + 1 }\n" +
+            "print(\"\" + (cars[0]#speed + cars[1]#getSpeed()) + \":\" + cars#length)",
+            "3:2");
+
+        check(makeCar +
+            "fun faster (c: Car): Int { c#setSpeed(c#speed + 1) return c#speed }\n" +
+            "print(\"\" + faster(car) + faster(car))",
+            "12");
+
+        check(
+            "box Wheel { attr size: Int }\n" +
+            "box Bike {\n" +
+            "    attr front: Wheel\n" +
+            "    meth frontSize(): Int { return front#size }\n" +
+            "}\n" +
+            "var bike: Bike = create Bike()\n" +
+            "bike#front = create Wheel()\n" +
+            "bike#front#size = 26\n" +
+            "print(\"\" + bike#frontSize())",
+            "26");
+    }
+
+    @Test public void testAheadOfTime() throws IOException {
+        String src = makePair + "print(\"\" + x.x + x.y)\n return x.x";
+        CompilationResult result = new SighRunner().compile(src, "sigh.tests.AheadOfTime");
+        Path dir = Files.createTempDirectory("sigh");
+        Path jar = dir.resolve("script.jar");
+        Path classes = dir.resolve("classes");
+
+        result.writeJar(jar);
+        result.writeClasses(classes);
+        assertTrue(Files.exists(classes.resolve("sigh/tests/AheadOfTime.class")));
+        assertTrue(Files.exists(classes.resolve("Pair.class")));
+
+        for (Path location: new Path[] { jar, classes }) {
+            Class<?> mainClass = CompilationResult.loadCompiled(location, "sigh.tests.AheadOfTime");
+            Pair<String, Object> capture = IO.captureStdout(() -> CompilationResult.callRun(mainClass));
+            assertEquals(capture.a, "12.0\n");
+            assertEquals(capture.b, 1L);
+        }
+    }
+
+    @Test public void testScriptCache() throws IOException {
+        Path dir = Files.createTempDirectory("sigh");
+        String a = "return 1", b = "return 2", c = "return 3";
+
+        ScriptCache cache = new ScriptCache(2, dir);
+        SighRunner runner = new SighRunner(SighRunner.Backend.INTERPRETER, cache);
+        assertEquals(runner.run(a), 1L);
+        assertEquals(runner.run(a), 1L);
+        assertEquals(cache.hits(), 1);
+        assertEquals(cache.misses(), 1);
+
+        CompilationResult compiled = runner.compile(a, "CachedA");
+        assertSame(runner.compile(a, "CachedA"), compiled);
+        assertNotSame(runner.compile(a, "CachedB"), compiled);
+        assertEquals(cache.hits(), 2);
+        assertEquals(cache.misses(), 3);
+
+        // least recently used entries are evicted
+        runner.run(b);
+        runner.run(c);
+        runner.run(a);
+        assertEquals(cache.misses(), 6);
+
+        // compilation results survive on disk
+        ScriptCache other = new ScriptCache(2, dir);
+        CompilationResult read = new SighRunner(SighRunner.Backend.INTERPRETER, other)
+            .compile(a, "CachedA");
+        assertEquals(other.hits(), 1);
+        assertEquals(other.misses(), 0);
+        assertEquals(read.mainClass.bytes(), compiled.mainClass.bytes());
+        assertEquals(CompilationResult.callRun(read.load(new ByteArrayClassLoader())), 1L);
+    }
+
+    @Test public void testPreparedProgram() {
+        String src = makePair + "print(\"\" + x.y) ; return x.x";
+        PreparedProgram program = new SighRunner().prepare(src);
+
+        for (SighRunner.Backend backend: SighRunner.Backend.values()) {
+            for (int i = 0; i < 3; ++i) {
+                Pair<String, Object> capture = IO.captureStdout(() -> program.execute(backend));
+                assertEquals(capture.a, "2.0\n", "backend: " + backend);
+                assertEquals(capture.b, 1L, "backend: " + backend);
+            }
+        }
+
+        Pair<String, Object> capture = IO.captureStdout(() ->
+            CompiledScript.load(program.compile("PreparedProgramTest")).run());
+        assertEquals(capture.a, "2.0\n");
+        assertEquals(capture.b, 1L);
+
+        // the cache holds prepared programs
+        ScriptCache cache = new ScriptCache(2);
+        SighRunner runner = new SighRunner(SighRunner.Backend.CLOSURES, cache);
+        assertSame(runner.prepare(src), runner.prepare(src));
+        assertEquals(IO.captureStdout(() -> runner.run(src)).b, 1L);
+        assertEquals(cache.misses(), 1);
+    }
+
+    @Test public void testRunMetrics() {
+        String src = makePair + "return x.x";
+        RunMetrics metrics = new RunMetrics();
+        SighRunner runner =
+            new SighRunner(SighRunner.Backend.INTERPRETER, new ScriptCache(2), metrics);
+
+        assertEquals(runner.run(src), 1L);
+        for (Phase phase: new Phase[] {
+                Phase.PARSE, Phase.ANALYSIS, Phase.OPTIMIZATION, Phase.EXECUTION }) {
+            assertEquals(metrics.count(phase), 1, phase.toString());
+            assertTrue(metrics.nanos(phase) > 0, phase.toString());
+        }
+        assertTrue(metrics.total(Metric.NODES) > 10);
+        assertTrue(metrics.total(Metric.ATTRIBUTES) > metrics.total(Metric.NODES));
+        assertEquals(metrics.total(Metric.CLASSES_LOADED), 0);
+
+        // the front end is skipped on cache hits
+        runner.run(src);
+        assertEquals(metrics.count(Phase.PARSE), 1);
+        assertEquals(metrics.count(Phase.EXECUTION), 2);
+
+        runner.compile(src, "RunMetricsTest");
+        assertEquals(metrics.count(Phase.PARSE), 2);
+        assertEquals(metrics.count(Phase.COMPILATION), 1);
+        assertEquals(metrics.total(Metric.CLASSES_GENERATED), 2);
+        assertTrue(metrics.total(Metric.BYTECODE_BYTES) > 100);
+        assertEquals(metrics.snapshot().get("compilation.count"), (Long) 1L);
+
+        metrics.reset();
+        assertEquals(metrics.count(Phase.PARSE), 0);
+        assertEquals(metrics.total(Metric.NODES), 0);
+    }
+
+    @Test public void testDebugInformation() {
+        String src = "" +
+            "fun get(a: Int[], i: Int): Int {\n" +
+            "    var j: Int = i + 1\n" +
+            "    return a[j]\n" +
+            "}\n" +
+            "var xs: Int[] = [1, 2]\n" +
+            "return get(xs, 4)";
+        CompilationResult result = new SighRunner().compile(src, "DebugInfo");
+
+        // stack traces show source lines
+        ArrayIndexOutOfBoundsException e = expectThrows(ArrayIndexOutOfBoundsException.class,
+            () -> CompiledScript.load(result).run());
+        List<String> frames = new ArrayList<>();
+        for (StackTraceElement frame: e.getStackTrace())
+            if ("DebugInfo.si".equals(frame.getFileName()))
+                frames.add(frame.getMethodName() + ":" + frame.getLineNumber());
+        assertEquals(frames, Arrays.asList("get:3", "run:6"));
+
+        // variables are named
+        Map<String, Set<String>> locals = new HashMap<>();
+        new ClassReader(result.mainClass.bytes()).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override public MethodVisitor visitMethod (
+                    int access, String name, String desc, String signature, String[] exceptions) {
+                Set<String> names = locals.computeIfAbsent(name, k -> new TreeSet<>());
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override public void visitLocalVariable (String local, String localDesc,
+                            String localSignature, Label start, Label end, int index) {
+                        names.add(local + ":" + localDesc);
+                    }
+                };
+            }
+        }, 0);
+        assertEquals(locals.get("get"), new TreeSet<>(Arrays.asList("a:[J", "i:J", "j:J")));
+        assertEquals(locals.get("run"), new TreeSet<>(Arrays.asList("xs:[J")));
+    }
+
+    @Test public void testClassLoading() throws InterruptedException {
+        SighRunner runner = new SighRunner();
+        String src = makePair + "return x.x";
+        long loaded = ByteArrayClassLoader.loadedClasses();
+
+        // classes with the same name in separate loaders
+        String name1 = BytecodeCompiler.uniqueName("Script");
+        String name2 = BytecodeCompiler.uniqueName("Script");
+        assertNotEquals(name1, name2);
+        Class<?> class1 = runner.compile(src, name1).load();
+        Class<?> class2 = runner.compile(src, name1).load();
+        assertNotSame(class1, class2);
+        assertEquals(CompilationResult.callRun(class1), 1L);
+        assertEquals(CompilationResult.callRun(class2), 1L);
+        assertEquals(ByteArrayClassLoader.loadedClasses() - loaded, 4);
+
+        // classes are unloaded once unreachable
+        long unloaded = ByteArrayClassLoader.unloadedClasses();
+        class1 = class2 = null;
+        for (int i = 0; i < 20 && ByteArrayClassLoader.unloadedClasses() - unloaded < 4; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(ByteArrayClassLoader.unloadedClasses() - unloaded >= 4);
+    }
+
+    @Test public void testCompiledScript() {
+        SighRunner runner = new SighRunner();
+        CompiledScript script = CompiledScript.load(
+            runner.compile(makePair + "print(\"\" + x.y) ; return x.x", "CompiledScriptTest"));
+
+        for (int i = 0; i < 3; ++i) {
+            Pair<String, Object> capture = IO.captureStdout(() -> script.run());
+            assertEquals(capture.a, "2.0\n");
+            assertEquals(capture.b, 1L);
+        }
+
+        assertEquals(IO.captureStdout(() -> { script.main(); return null; }).a, "2.0\n");
+        assertEquals(CompiledScript.load(runner.compile("print(\"a\")", "NoReturn")).run(), null);
+    }
 }
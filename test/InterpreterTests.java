@@ -3,15 +3,24 @@ import norswap.autumn.Grammar;
 import norswap.autumn.Grammar.rule;
 import norswap.autumn.ParseResult;
 import norswap.autumn.positions.LineMapString;
+import norswap.sigh.ConstantFolding;
+import norswap.sigh.LoopOptimization;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.SighRunner.Backend;
+import norswap.sigh.ast.AssignmentNode;
 import norswap.sigh.ast.AttributeDeclarationNode;
 import norswap.sigh.ast.BoxDeclarationNode;
+import norswap.sigh.ast.FunDeclarationNode;
 import norswap.sigh.ast.SighNode;
 import norswap.sigh.ast.SimpleTypeNode;
+import norswap.sigh.ast.WhileNode;
+import norswap.sigh.bytecode.ByteArrayClassLoader;
 import norswap.sigh.interpreter.Interpreter;
 import norswap.sigh.interpreter.InterpreterException;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.Profiler;
+import norswap.sigh.interpreter.RegisterInterpreter;
 import norswap.sigh.types.BoxType;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
@@ -20,11 +29,13 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.function.BiFunction;
 
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
 
 public final class InterpreterTests extends TestFixture {
 
@@ -61,6 +72,28 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void check (rule rule, String input, Object expectedReturn, String expectedOutput) {
+        for (Backend backend: Backend.values())
+            check(rule, input, expectedReturn, expectedOutput, backend);
+        check(rule, input, expectedReturn, expectedOutput, "eager tiering", EAGER_TIERING);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compiles every eligible function on its first call, to check that both tiers agree. */
+    private static final BiFunction<Reactor, SighNode, Object> EAGER_TIERING =
+        (reactor, root) -> new Interpreter(reactor, 1).interpret(root);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check (rule rule, String input, Object expectedReturn, String expectedOutput,
+                        Backend backend) {
+        check(rule, input, expectedReturn, expectedOutput, backend.toString(), backend::execute);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check (rule rule, String input, Object expectedReturn, String expectedOutput,
+                        String backend, BiFunction<Reactor, SighNode, Object> execute) {
         // TODO
         // (1) write proper parsing tests
         // (2) write some kind of automated runner, and use it here
@@ -71,7 +104,6 @@ public final class InterpreterTests extends TestFixture {
 
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
-        Interpreter interpreter = new Interpreter(reactor);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -86,9 +118,18 @@ public final class InterpreterTests extends TestFixture {
             throw new AssertionError(report);
         }
 
-        Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
-        assertEquals(result.b, expectedReturn);
-        if (expectedOutput != null) assertEquals(result.a, expectedOutput);
+        // run both without and with the optimization passes
+        for (boolean optimized: new boolean[] { false, true }) {
+            if (optimized) {
+                ConstantFolding.run(reactor, root);
+                LoopOptimization.run(reactor, root);
+            }
+            String variant = optimized ? backend + " (optimized)" : backend;
+            Pair<String, Object> result = IO.captureStdout(() -> execute.apply(reactor, root));
+            assertEquals(result.b, expectedReturn, "backend: " + variant);
+            if (expectedOutput != null)
+                assertEquals(result.a, expectedOutput, "backend: " + variant);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -108,7 +149,11 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private void checkThrows (String input, Class<? extends Throwable> expected) {
-        assertThrows(expected, () -> check(input, null));
+        assertNotNull(rule, "You forgot to initialize the rule field.");
+        for (Backend backend: Backend.values())
+            assertThrows(expected, () -> check(rule, input, null, null, backend));
+        assertThrows(expected, () ->
+            check(rule, input, null, null, "eager tiering", EAGER_TIERING));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -119,7 +164,7 @@ public final class InterpreterTests extends TestFixture {
         checkExpr("42.0", 42.0d);
         checkExpr("\"hello\"", "hello");
         checkExpr("(42)", 42L);
-        checkExpr("[1, 2, 3]", new Object[]{1L, 2L, 3L});
+        checkExpr("[1, 2, 3]", new long[]{1L, 2L, 3L});
         checkExpr("true", true);
         checkExpr("false", false);
         checkExpr("null", Null.INSTANCE);
@@ -256,20 +301,34 @@ public final class InterpreterTests extends TestFixture {
                 "return add(4, 7)",
             11L);
 
-        HashMap<String, Object> point = new HashMap<>();
-        point.put("x", 1L);
-        point.put("y", 2L);
-
         check(
             "struct Point { var x: Int; var y: Int }" +
-                "return $Point(1, 2)",
-            point);
+                "return \"\" + $Point(1, 2)",
+            "{x=1, y=2}");
 
         check("var str: String = null; return print(str + 1)", "null1", "null1\n");
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test
+    public void testArgumentsEvaluatedOnce () {
+        rule = grammar.root;
+
+        check(
+            "var count: Int = 0 " +
+                "fun tick (): Int { count = count + 1 ; return count } " +
+                "fun id (x: Int): Int { return x } " +
+                "id(id(tick())) " +
+                "return count",
+            1L);
+
+        check("fun id (x: String): String { return x } ; id(print(\"a\"))", null, "a\n");
+        check("var x: Int = 0 ; fun id (x: Int): Int { return x } ; id(x = x + 1) ; return x", 1L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Test
     public void testArrayStructAccess () {
         checkExpr("[1][0]", 1L);
@@ -319,6 +378,37 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test
+    public void testPrimitiveArrays ()
+    {
+        checkExpr("[1, 2.5][0]", 1d);
+        checkExpr("[true, false][1]", false);
+        check("var x: Float[] = [1.0, 2.0]; x[1] = 3; return x[1]", 3d);
+        check("var x: Float[] = [1.0, 2.0]; x[1] = 3; return x[1] + 0.5", 3.5d);
+        check("var x: Bool[] = [true, false]; x[1] = x[0]; return x[1]", true);
+        check("var x: Int[][] = [[1], [2, 3]]; x[1][0] = 4; return x[1][0] + x[0].length", 5L);
+
+        // Int[] is assignable to Float[]
+        check("var x: Int[] = [1, 2]; var y: Float[] = x; return y[0] + 0.5", 1.5d);
+        check("var x: Int[] = [1, 2]; var y: Float[] = x; y[1] = 1.5; return y[1]", 1.5d);
+        check("var x: Int[] = [1, 2]; var y: Float[] = x; y[1] = 1.5; return x[1]", 2L);
+        check("var x: Float[] = [1, 2]; x[0] = 1.5; print(\"\" + x[0])", null, "1.5\n");
+        check("var x: Float[] = [1, 2]; x = [3, 4]; x[0] = 1.5; return x[0]", 1.5d);
+        check("fun f (a: Float[]): Float { a[0] = 1.5; return a[0] } return f([1, 2])", 1.5d);
+        check("fun f (): Float[] { return [1, 2] } var x: Float[] = f(); x[0] = 1.5; return x[0]",
+            1.5d);
+        check("var x: Float[][] = [[1, 2]]; x[0][0] = 1.5; return x[0][0]", 1.5d);
+        check("var x: Int[][] = [[1, 2]]; var y: Float[][] = x; y[0][0] = 1.5; return y[0][0]",
+            1.5d);
+        check("var x: Float[][] = [[1, 2], [0.5]]; x[0][1] = 1.5; return x[0][1] + x[1][0]", 2d);
+
+        checkExpr("\"\" + [1, 2]", "[1, 2]");
+        checkExpr("\"\" + [1.5]", "[1.5]");
+        checkExpr("\"\" + [[true], [false]]", "[[true], [false]]");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Test
     public void testIfWhile () {
         check("if (true) return 1 else return 2", 1L);
@@ -355,6 +445,330 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test public void testReturnFromNestedStatements()
+    {
+        rule = grammar.root;
+
+        check("fun f(): Int { var i: Int = 0 " +
+            "while (true) { i = i + 1 if (i == 3) { return i } } return 0 } " +
+            "return f()", 3L);
+        check("var i: Int = 0 while (i < 10) { { if (i == 2) return i } i = i + 1 } return -1",
+            2L);
+        check("{ print(\"a\") { return 1 } print(\"b\") } return 2", 1L, "a\n");
+        check("fun f(): Int { print(\"a\") return 1 print(\"b\") return 2 } print(\"\" + f())",
+            null, "a\n1\n");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testFrames()
+    {
+        rule = grammar.root;
+
+        // each invocation gets its own frame
+        check("fun fact(n: Int): Int { if (n <= 1) return 1 else return n * fact(n - 1) } " +
+            "return fact(5)", 120L);
+
+        // variables of the enclosing function and of the root
+        check("var y: Int = 100 " +
+            "fun outer(x: Int): Int { fun inner(): Int { return x + y } return inner() } " +
+            "return outer(1)", 101L);
+
+        // shadowing variables in nested blocks get their own slots
+        check("fun f(): Int { var x: Int = 1 { var x: Int = 2 ; x = 3 } return x } return f()", 1L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testEvaluationOrder()
+    {
+        rule = grammar.root;
+
+        // operands read from variables must not see later assignments
+        check("var a: Int = 1 return a + (a = 5)", 6L);
+        check("var a: Int = 1 fun f(): Int { a = 10 return 1 } return a + f()", 2L);
+        check("var s: String = \"a\" fun f(): String { s = \"b\" return \"c\" } return s + f()",
+            "ac");
+        check("var a: Int[] = [1, 2] var i: Int = 0 " +
+            "fun f(): Int { i = 1 return 7 } a[i] = f() return \"\" + a", "[7, 2]");
+
+        // the value of an assignment is the assigned value, before conversion
+        check("var x: Float = 0 return \"\" + (x = 1) + \" \" + x", "1 1.0");
+
+        check("var a: Float[] = [1.5] a[0] = 2 return a[0] + 1", 3.0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRegisterCode()
+    {
+        String input = "var i: Int = 0 var sum: Int = 0 " +
+            "while (i < 10) { sum = sum + i  i = i + 1 } return sum";
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+
+        RegisterInterpreter interpreter = new RegisterInterpreter(reactor);
+        assertEquals(interpreter.interpret(root), 45L);
+
+        // variables are registers: the loop body is one instruction per statement, the
+        // condition is fused with the backward jump, and only the returned value is boxed
+        String code = interpreter.disassemble();
+        assertTrue(code.contains("ADD_L        1 1 0"), code);
+        assertTrue(code.contains("ADDI_L       0 0 1"), code);
+        assertTrue(code.contains("JLT_L"), code);
+        assertEquals(code.split("BOX").length, 2, code);
+
+        // calls don't recurse on the Java stack
+        String recursive =
+            "fun even (n: Int): Bool { if (n == 0) return true ; return odd(n - 1) } " +
+            "fun odd (n: Int): Bool { if (n == 0) return false ; return (even)(n - 1) } " +
+            "return even(100000)";
+        root = autumnFixture.success(recursive).topValue();
+        Reactor recursiveReactor = new Reactor();
+        SemanticAnalysis.createWalker(recursiveReactor).walk(root);
+        recursiveReactor.run();
+        assertEquals(recursiveReactor.errors().size(), 0);
+        assertEquals(new RegisterInterpreter(recursiveReactor).interpret(root), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testConstantFolding()
+    {
+        rule = grammar.root;
+
+        // folding follows the run-time semantics
+        check("return 1 + 3 * 4 * (1 + 3) / 12", 5L);
+        check("return 1 + 2.5 * 2", 6.0d);
+        check("return 9223372036854775807 + 1", Long.MIN_VALUE);
+        check("return 7 % 3 == 1 && !(2.0 < 1)", true);
+        check("return \"a\" + 1 + 1.5 + (1 < 2)", "a11.5true");
+        check("return true == !false", true);
+        checkThrows("return 1 / 0", InterpreterException.class);
+
+        // true and false are variables, which may be assigned
+        check("true = false return true && true", false);
+        check("var b: Bool = !false false = true return b && !false", false);
+
+        // identities never drop a side effect
+        check("var n: Int = 0 " +
+            "fun f(): Int { n = n + 1 ; return 2 } " +
+            "return (f() + 0) * 1 + (1 * f() - 0) / 1 + n", 6L);
+        check("var n: Int = 0 " +
+            "fun f(): Bool { n = n + 1 ; return true } " +
+            "var b: Bool = false && f() " +
+            "b = (f() && true) || false " +
+            "b = !!(true && f()) " +
+            "return n", 2L);
+
+        String input = "var x: Int = 3 return x * 1 + 1 + 3 * 4 * (1 + 3) / 12";
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        ConstantFolding.run(reactor, root);
+
+        // x * 1 is x, and the constant part is a single constant
+        RegisterInterpreter interpreter = new RegisterInterpreter(reactor);
+        assertEquals(interpreter.interpret(root), 8L);
+        String code = interpreter.disassemble();
+        assertTrue(code.contains("ADDI_L"), code);
+        assertFalse(code.contains("MUL_L"), code);
+        assertFalse(code.contains("DIV_L"), code);
+
+        // failing operations are left to fail at run time
+        SighNode failing = autumnFixture.success("return 1 % 0").topValue();
+        Reactor failingReactor = new Reactor();
+        SemanticAnalysis.createWalker(failingReactor).walk(failing);
+        failingReactor.run();
+        ConstantFolding.run(failingReactor, failing);
+        assertThrows(InterpreterException.class,
+            () -> new Interpreter(failingReactor).interpret(failing));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testLoopOptimization()
+    {
+        rule = grammar.root;
+
+        // repeated reads of box attributes through an array, and a method call
+        check("box B { attr h: Int attr w: Int meth area(h: Int, w: Int): Int { return h * w } } " +
+            "var bs: B[] = [create B(), create B(), create B()] " +
+            "var i: Int = 0 " +
+            "while i < bs.length { bs[i]#h = i + 1  bs[i]#w = bs[i]#h * 2  i = i + 1 } " +
+            "i = 0 var total: Int = 0 " +
+            "while i < bs.length { " +
+            "    total = total + bs[i]#area(bs[i]#h, bs[i]#w) + bs[i]#h  i = i + 1 } " +
+            "return total", 34L);
+
+        // reads are evaluated again after a store that may change them
+        check("var a: Int[] = [1, 2, 3] var i: Int = 0 var s: Int = 0 " +
+            "while i < a.length { s = s + a[0]  a[0] = a[0] + 1  s = s + a[0]  i = i + 1 } " +
+            "return s", 15L);
+        check("var a: Int[] = [1, 2, 3] var i: Int = 0 var s: Int = 0 " +
+            "while i < 2 { s = s + a[i]  i = i + 1  s = s * 10 + a[i] } " +
+            "return s", 143L);
+        check("struct P { var x: Int } var p: P = $P(1) var q: P = p var n: Int = 0 var s: Int = 0 " +
+            "while n < 2 { s = s + p.x  q.x = q.x + 1  s = s * 10 + p.x  n = n + 1 } " +
+            "return s", 143L);
+        check("var a: Int[] = [1, 2] " +
+            "fun f(): Int { a[1] = a[1] * 2 ; return 0 } " +
+            "var n: Int = 0 var s: Int = 0 " +
+            "while n < 2 { s = s + a[1] + f() + a[1]  n = n + 1 } " +
+            "return s", 18L);
+        check("var a: Int[] = [1] var i: Int = 0 var s: Int = 0 " +
+            "while i < 3 { if (i == 1) a[0] = 5 else s = s + a[0]  s = s + a[0]  i = i + 1 } " +
+            "return s", 17L);
+
+        // loop conditions only reuse values that can't change during the loop
+        check("var a: Int[] = [0, 0] var i: Int = 0 " +
+            "while i < a.length { if (i == 1) a = [0, 0, 0, 0] ; i = i + 1 } " +
+            "return i", 4L);
+        check("var a: Int[] = [0, 0] var i: Int = 0 " +
+            "fun grow(): Void { a = [0, 0, 0] } " +
+            "while i < a.length { grow() ; i = i + 1 } " +
+            "return i", 3L);
+        check("var a: Int[] = [3, 0] var i: Int = 0 " +
+            "while i < a[0] { a[0] = 2 ; i = i + 1 } " +
+            "return i", 2L);
+
+        // reads after && are not evaluated before the loop
+        check("var a: Int[] = null var i: Int = 0 " +
+            "while i > 0 && a.length > 0 { i = i - 1 } " +
+            "return i", 0L);
+
+        String input = "var a: Int[] = [1, 2, 3] var i: Int = 0 var s: Int = 0 " +
+            "while i < a.length { s = s + a[i] * a[i]  i = i + 1 } return s";
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        LoopOptimization.run(reactor, root);
+
+        // the length is read once before the loop, and a[i] once per iteration
+        RegisterInterpreter interpreter = new RegisterInterpreter(reactor);
+        assertEquals(interpreter.interpret(root), 14L);
+        String code = interpreter.disassemble();
+        assertEquals(code.split("ALEN").length, 2, code);
+        assertEquals(code.split("ALOAD_L").length, 2, code);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testConcurrentExecutions() throws InterruptedException
+    {
+        String input = "struct P { var x: Int } " +
+            "fun fib(n: Int): Int { if (n < 2) return n ; return fib(n - 1) + fib(n - 2) } " +
+            "var ps: P[] = [$P(1), $P(2)] var i: Int = 0 " +
+            "while i < 20 { ps[i % 2].x = ps[i % 2].x + fib(i % 10) ; i = i + 1 } " +
+            "return ps[0].x + ps[1].x";
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+
+        // a single interpreter (with and without tiering) shared by several threads
+        for (int threshold: new int[] { 0, 5 }) {
+            Interpreter interpreter = new Interpreter(reactor, threshold);
+            Interpreter.Result[] results = new Interpreter.Result[4 * 50];
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; ++t) {
+                int first = t * 50;
+                threads[t] = new Thread(() -> {
+                    for (int i = first; i < first + 50; ++i)
+                        results[i] = interpreter.execute(root);
+                });
+                threads[t].start();
+            }
+            for (Thread thread: threads) thread.join();
+            // every execution reports its own compiled functions
+            for (Interpreter.Result result: results) {
+                assertEquals(result.value, 179L);
+                assertEquals(result.compiledFunctions, threshold == 0 ? 0 : 1);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testProfiler()
+    {
+        String input = "" +
+            "fun square(n: Int): Int { return n * n }\n" +
+            "var i: Int = 0\n" +
+            "var sum: Int = 0\n" +
+            "while i < 10 {\n" +
+            "    sum = sum + square(i)\n" +
+            "    i = i + 1\n" +
+            "}\n" +
+            "return sum";
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+
+        Profiler profiler = new Profiler();
+        Interpreter interpreter = new Interpreter(reactor, 0, profiler);
+        assertEquals(interpreter.interpret(root), 285L);
+        assertEquals(interpreter.interpret(root), 285L);
+
+        Profiler.Entry square = profiler.functions().stream()
+            .filter(it -> it.node instanceof FunDeclarationNode).findFirst().get();
+        assertEquals(square.count, 20L);
+        Profiler.Entry main = profiler.functions().stream()
+            .filter(it -> it.node == root).findFirst().get();
+        assertEquals(main.count, 2L);
+        assertTrue(main.totalNanos >= main.selfNanos + square.totalNanos);
+
+        Profiler.Entry loop = profiler.nodes().stream()
+            .filter(it -> it.node instanceof WhileNode).findFirst().get();
+        assertEquals(loop.count, 2L);
+        for (Profiler.Entry entry: profiler.nodes()) {
+            assertTrue(entry.selfNanos >= 0 && entry.selfNanos <= entry.totalNanos);
+            if (entry.node instanceof AssignmentNode)
+                assertEquals(entry.count, 20L);
+        }
+
+        String report = profiler.report(new LineMapString("<test>", input), 10);
+        assertTrue(report.contains("square"), report);
+        assertTrue(report.contains("sum = sum + square(i)"), report);
+
+        profiler.reset();
+        assertTrue(profiler.nodes().isEmpty());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPrimitiveVariables()
+    {
+        rule = grammar.root;
+
+        check("var x: Float = 1 ; var y: Float = x + 0.5 ; return y", 1.5d);
+        check("var x: Float = 0.0 ; return x = 2", 2L); // the unconverted value
+        check("var x: Float = 0.0 ; x = 2 ; return x", 2.0d);
+        check("var b: Bool = 1 < 2 ; var c: Bool = !b ; return b && !c", true);
+
+        // primitive variables of the enclosing function and of the root
+        check("var n: Int = 1 " +
+            "fun f(): Int { var m: Int = 10 fun g(): Int { m = m + n ; return m } " +
+            "g() ; return g() } " +
+            "return f()", 12L);
+
+        // parameters are not converted
+        check("fun f(x: Float): Float { return x } return f(1)", 1L);
+        check("fun f(x: Float): Float { var y: Float = x ; return y } return f(1)", 1.0d);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
      *                                                                                             *
      *                                 TESTS DONE BY GROUP 10                                      *                                                             *
@@ -579,5 +993,90 @@ public final class InterpreterTests extends TestFixture {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Runs the input with an {@link Interpreter} with the given compile threshold, checks its
+     * return value and returns the number of functions it called in compiled form.
+     */
+    private int checkTiered (String input, int threshold, Object expectedReturn)
+    {
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(input).topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        assertEquals(reactor.errors().size(), 0);
+
+        Interpreter.Result result = new Interpreter(reactor, threshold).execute(root);
+        assertEquals(result.value, expectedReturn);
+        return result.compiledFunctions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTiering()
+    {
+        String fib =
+            "fun fib (n: Int): Int { if (n < 2) return n else return fib(n - 1) + fib(n - 2) } ";
+
+        // compiled after 10 calls, while the interpreted calls are still on the stack
+        assertEquals(checkTiered(fib + "return fib(20)", 10, 6765L), 1);
+        // not hot enough
+        assertEquals(checkTiered(fib + "return fib(3)", 10, 2L), 0);
+
+        // hot because of its loop, compiled on the next call
+        assertEquals(checkTiered(
+            "fun sum (n: Int): Int { var s: Int = 0 var i: Int = 0 " +
+            "while (i < n) { s = s + i  i = i + 1 } return s } " +
+            "return sum(100) + sum(100)", 50, 9900L), 1);
+
+        // compiled callers call their callees directly, without going through the interpreter
+        assertEquals(checkTiered(
+            "fun sq (x: Float): Float { return x * x } " +
+            "fun norm (xs: Float[]): Float { var s: Float = 0 var i: Int = 0 " +
+            "while (i < xs.length) { s = s + sq(xs[i])  i = i + 1 } return s } " +
+            "var t: Float = 0 var j: Int = 0 " +
+            "while (j < 5) { t = t + norm([1.0, 2.0])  j = j + 1 } return t", 1, 25.0), 1);
+
+        // uses a top-level variable: stays interpreted
+        assertEquals(checkTiered(
+            "var count: Int = 0 fun inc () { count = count + 1 } " +
+            "inc() inc() inc() return count", 1, 3L), 0);
+
+        // calls an ineligible function: stays interpreted
+        assertEquals(checkTiered(
+            "struct P { var x: Int } fun get (p: P): Int { return p.x } " +
+            "fun twice (x: Int): Int { return get($P(x)) * 2 } return twice(4)", 1, 8L), 0);
+
+        // calls with an Int argument for a Float parameter remain interpreted
+        assertEquals(checkTiered(
+            "fun half (x: Float): Float { return x / 2 } " +
+            "var a: Float = half(3.0) return \"\" + a + \" \" + half(3)", 1, "1.5 1.5"), 1);
+
+        // the generated class fails verification: everything stays interpreted
+        assertEquals(checkTiered(
+            "fun f (a: Float[]): Float { return a[0] } return f([1, 2])", 1, 1.0), 0);
+        assertEquals(checkTiered(
+            "fun sq (x: Int): Int { return x * x } " +
+            "var i: Int = 0 var s: Int = 0 while (i < 2000) { s = s + sq(i)  i = i + 1 } " +
+            "var f: Float = [1.5, 2][1] return s", 1000, 2664667000L), 0);
+
+        // the compiled code is reused by later executions of the same tree
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(fib + "return fib(20)").topValue();
+        Reactor reactor = new Reactor();
+        SemanticAnalysis.createWalker(reactor).walk(root);
+        reactor.run();
+        Interpreter interpreter = new Interpreter(reactor, 10);
+        long loaded = ByteArrayClassLoader.loadedClasses();
+        for (int i = 0; i < 3; ++i) {
+            Interpreter.Result result = interpreter.execute(root);
+            assertEquals(result.value, 6765L);
+            assertEquals(result.compiledFunctions, 1);
+        }
+        assertEquals(ByteArrayClassLoader.loadedClasses() - loaded, 1L);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     // NOTE(norswap): Not incredibly complete, but should cover the basics.
 }